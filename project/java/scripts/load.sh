@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#ramps virtual users of the sample dataset against the database loaded by
+#create_db.sh and bulk_load.sh until a latency target is missed
+#Use your database name, port number and login
+java -Dmessenger.pool.max=64 -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar LoadGenerator $DB_NAME $PGPORT $USER $DIR/../../data
@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#runs the commands of the file given as argument, or of stdin, without
+#the menus and prints one JSON result per command
+#Use your database name, port number and login
+java -Dmessenger.pool.max=16 -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ScriptRunner $DB_NAME $PGPORT $USER "$@"
@@ -0,0 +1,12 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#serve the messenger to many users on one port, connect with telnet or nc
+#Use your database name, port number and login
+java -Dmessenger.pool.max=32 -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessengerServer $DB_NAME $PGPORT $USER ${LISTEN_PORT:-7070}
@@ -0,0 +1,74 @@
+/*
+ * Block filter benchmark
+ * ======================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * This class measures what the block check adds to sending a message as
+ * the chat grows. For every group size it fills a SocialGraphCache with
+ * the block filters of that many members, each blocking a few random
+ * users, and times the in memory part of Messenger.isBlockedInChat. It
+ * also counts the false positives, every one of which costs the send path
+ * an exact check (one query when the member's lists are not cached).
+ *
+ * The database part of the check is one indexed read of CHAT_LIST per
+ * send whatever the group size, where checking every member with a query
+ * would cost one round trip per member.
+ *
+ */
+public class BlockFilterBenchmark {
+
+   private static final int[] GROUP_SIZES = {2, 8, 32, 128, 512, 2048, 8192};
+   private static final int BLOCKS_PER_USER = 20;
+   private static final int SENDS = 20000;
+
+   /**
+    * The main execution method
+    *
+    * @param args [sends per group size]
+    */
+   public static void main (String[] args) {
+      int sends = args.length > 0 ? Integer.parseInt(args[0]) : SENDS;
+      Random random = new Random(42);
+
+      System.out.println(String.format("%10s %14s %14s %16s", "members", "ns/send", "ns/member", "exact checks/send"));
+      for (int size : GROUP_SIZES) {
+         SocialGraphCache graph = new SocialGraphCache(size);
+         List<String> members = new ArrayList<String>();
+         for (int m = 0; m < size; ++m) {
+            String member = "member_" + m;
+            List<String> blocked = new ArrayList<String>();
+            for (int b = 0; b < BLOCKS_PER_USER; ++b)
+               blocked.add("user_" + random.nextInt(1000000));
+            graph.putBlockFilter(member, BloomFilter.of(blocked, blocked.size()));
+            members.add(member);
+         }//end for
+
+         // warm up, then measure
+         long hits = 0;
+         for (int pass = 0; pass < 2; ++pass) {
+            hits = 0;
+            long begin = System.nanoTime();
+            for (int i = 0; i < sends; ++i) {
+               String sender = "sender_" + i;
+               hits += graph.mightBlock(members, sender, new ArrayList<String>()).size();
+            }//end for
+            long elapsed = System.nanoTime() - begin;
+            if (pass == 1)
+               System.out.println(String.format("%10d %14.0f %14.1f %16.4f", size,
+                                                (double) elapsed / sends,
+                                                (double) elapsed / sends / size,
+                                                (double) hits / sends));
+         }//end for
+      }//end for
+   }//end main
+}//end BlockFilterBenchmark
@@ -0,0 +1,111 @@
+/*
+ * Bloom filter
+ * ============
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ */
+
+/**
+ * This class is a Bloom filter of logins. mightContain never answers
+ * false for a login that was added, and answers true for a login that was
+ * not added with a probability of about 1% as long as no more than the
+ * expected number of logins were added. Logins are compared without
+ * trailing blanks, like SocialGraphCache does.
+ *
+ * Logins cannot be removed; the owner rebuilds the filter instead.
+ * Not thread safe, SocialGraphCache guards every filter with its lock.
+ *
+ */
+public class BloomFilter {
+
+   // 10 bits and 7 probes per login give a false positive rate near 1%
+   private static final int BITS_PER_ENTRY = 10;
+   private static final int PROBES = 7;
+
+   private final long[] _bits;
+   private final int _mask;
+   private final int _expected;
+   private int _count = 0;
+
+   /**
+    * Creates an empty filter
+    *
+    * @param expected the number of logins the filter is sized for
+    */
+   public BloomFilter (int expected) {
+      this._expected = Math.max(expected, 8);
+      // a power of two number of bits, at least 64
+      int bits = Integer.highestOneBit(this._expected * BITS_PER_ENTRY - 1) << 1;
+      this._bits = new long[Math.max(1, bits >>> 6)];
+      this._mask = this._bits.length * 64 - 1;
+   }//end BloomFilter
+
+   /**
+    * Creates a filter holding the given logins, with room to grow
+    */
+   public static BloomFilter of (Iterable<String> logins, int count) {
+      BloomFilter filter = new BloomFilter(2 * count);
+      for (String login : logins)
+         filter.add(login);
+      return filter;
+   }//end of
+
+   public void add (String login) {
+      long h = hash(login);
+      int h1 = (int) h;
+      int h2 = (int) (h >>> 32) | 1;
+      for (int i = 0; i < PROBES; ++i) {
+         int bit = (h1 + i * h2) & this._mask;
+         this._bits[bit >>> 6] |= 1L << bit;
+      }//end for
+      ++this._count;
+   }//end add
+
+   public boolean mightContain (String login) {
+      if (this._count == 0)
+         return false;
+      long h = hash(login);
+      int h1 = (int) h;
+      int h2 = (int) (h >>> 32) | 1;
+      for (int i = 0; i < PROBES; ++i) {
+         int bit = (h1 + i * h2) & this._mask;
+         if ((this._bits[bit >>> 6] & (1L << bit)) == 0)
+            return false;
+      }//end for
+      return true;
+   }//end mightContain
+
+   /**
+    * @return true once more logins were added than the filter is sized
+    *         for, from then on the false positive rate grows
+    */
+   public boolean isFull () {
+      return this._count > this._expected;
+   }//end isFull
+
+   public int size () { return this._count; }
+
+   /*
+    * 64 bit hash of a login without its trailing blanks: FNV-1a over the
+    * characters, finished with the MurmurHash3 mixer.
+    **/
+   private static long hash (String login) {
+      int end = login.length();
+      while (end > 0 && login.charAt(end - 1) == ' ')
+         --end;
+      long h = 0xcbf29ce484222325L;
+      for (int i = 0; i < end; ++i) {
+         h ^= login.charAt(i);
+         h *= 0x100000001b3L;
+      }//end for
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }//end hash
+}//end BloomFilter
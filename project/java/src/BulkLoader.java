@@ -0,0 +1,437 @@
+/*
+ * Bulk data loader
+ * ================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class loads the ';' separated data files into a freshly created
+ * schema. Every file is streamed, so memory use does not depend on its
+ * size, and the files are loaded in parallel, one connection each. It
+ * expects the tables without foreign keys, indexes or triggers
+ * (create_tables.sql); those are added afterwards by create_constraints.sql
+ * and create_indexes.sql.
+ *
+ * Progress is committed per chunk together with a LOAD_CHECKPOINT row, so
+ * running the loader again after a crash continues where it stopped.
+ *
+ * The data files name users by login while the tables reference them by
+ * user_id, so the users are loaded first and the other tables second,
+ * with logins translated through an in memory map.
+ *
+ */
+public class BulkLoader {
+
+   // rows sent per multi-row INSERT statement
+   private static final int ROWS_PER_INSERT = 256;
+
+   // rows per transaction, i.e. how often a checkpoint is written
+   private static final int ROWS_PER_COMMIT = 10000;
+
+   /**
+    * Describes how one data file maps onto a table. Column types are
+    * 'i' (integer), 's' (text), 't' (timestamp) and 'u' (a login, stored
+    * as the user_id of that user).
+    */
+   static class TableSpec {
+      final String table;
+      final String filePrefix;
+      final String[] columns;
+      final String types;
+      final String sequence;
+      final String idColumn;
+
+      TableSpec (String table, String filePrefix, String[] columns, String types,
+                 String sequence, String idColumn) {
+         this.table = table;
+         this.filePrefix = filePrefix;
+         this.columns = columns;
+         this.types = types;
+         this.sequence = sequence;
+         this.idColumn = idColumn;
+      }//end TableSpec
+   }//end TableSpec
+
+   static final TableSpec[] TABLES = {
+      new TableSpec("USER_LIST", "usr_list",
+                    new String[] {"list_id", "list_type"}, "is",
+                    "user_list_list_id_seq", "list_id"),
+      new TableSpec("USR", "usr",
+                    new String[] {"login", "phoneNum", "password", "status", "block_list", "contact_list"}, "ssssii",
+                    null, null),
+      new TableSpec("USER_LIST_CONTAINS", "usr_list_contains",
+                    new String[] {"list_id", "member_id"}, "iu",
+                    null, null),
+      new TableSpec("CHAT", "chat",
+                    new String[] {"chat_id", "chat_type", "init_sender_id"}, "isu",
+                    "chat_chat_id_seq", "chat_id"),
+      new TableSpec("CHAT_LIST", "chat_list",
+                    new String[] {"chat_id", "member_id"}, "iu",
+                    null, null),
+      new TableSpec("MESSAGE", "message",
+                    new String[] {"msg_id", "msg_text", "msg_timestamp", "sender_id", "chat_id"}, "istui",
+                    "message_msg_id_seq", "msg_id"),
+   };
+
+   private final ConnectionPool _pool;
+   private final File _dataDir;
+
+   // user_id by login, read once the users are loaded
+   private final Map<String, Integer> _userIds = new HashMap<String, Integer>();
+
+   public BulkLoader (ConnectionPool pool, File dataDir) {
+      this._pool = pool;
+      this._dataDir = dataDir;
+   }//end BulkLoader
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> <data dir> [threads]
+    */
+   public static void main (String[] args) {
+      if (args.length != 4 && args.length != 5) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BulkLoader.class.getName () +
+            " <dbname> <port> <user> <data dir> [threads]");
+         return;
+      }//end if
+
+      ConnectionPool pool = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+         int threads = args.length == 5 ? Integer.parseInt(args[4]) : TABLES.length;
+         pool = new ConnectionPool(url, args[2], "", 0, threads,
+                                   ConnectionPool.DEFAULT_WAIT_TIMEOUT_MS,
+                                   ConnectionPool.DEFAULT_IDLE_TIMEOUT_MS);
+
+         long start = System.currentTimeMillis();
+         long rows = new BulkLoader(pool, new File(args[3])).load(threads);
+         long ms = Math.max(1, System.currentTimeMillis() - start);
+         System.out.println(String.format("Loaded %d rows in %.1f s (%d rows/s)",
+                                          rows, ms / 1000.0, rows * 1000 / ms));
+      }catch (Exception e){
+         System.err.println ("Load failed: " + e.getMessage ());
+         System.exit(-1);
+      }finally{
+         if (pool != null)
+            pool.close ();
+      }//end try
+   }//end main
+
+   /**
+    * Loads every data file found for the known tables, then moves the
+    * sequences past the loaded ids.
+    *
+    * @param threads number of files loaded at the same time
+    * @return the number of rows loaded by this run
+    */
+   public long load (int threads) throws SQLException, IOException, InterruptedException {
+      ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, threads));
+      long rows = 0;
+      try{
+         // tables without logins first, USR among them
+         rows += load(workers, false);
+         readUserIds();
+         rows += load(workers, true);
+      }finally{
+         workers.shutdownNow();
+      }//end try
+      resetSequences();
+      return rows;
+   }//end load
+
+   /*
+    * Loads the files of the tables that do or do not reference users, in
+    * parallel.
+    **/
+   private long load (ExecutorService workers, boolean referencesUsers)
+      throws SQLException, IOException, InterruptedException {
+      List<Callable<Long>> jobs = new ArrayList<Callable<Long>>();
+      for (final TableSpec spec : TABLES) {
+         if ((spec.types.indexOf('u') >= 0) != referencesUsers)
+            continue;
+         List<File> files = dataFiles(spec);
+         if (files.isEmpty())
+            System.out.println(spec.table + ": no " + spec.filePrefix + "*.csv file, skipped");
+         for (final File file : files) {
+            jobs.add(new Callable<Long>() {
+               public Long call () throws Exception {
+                  return loadFile(spec, file);
+               }
+            });
+         }//end for
+      }//end for
+
+      long rows = 0;
+      try{
+         for (Future<Long> result : workers.invokeAll(jobs))
+            rows += result.get();
+      }catch (ExecutionException e){
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         if (cause instanceof IOException)
+            throw (IOException) cause;
+         throw new RuntimeException(cause);
+      }//end try
+      return rows;
+   }//end load
+
+   /*
+    * Reads the user_id of every login, including users loaded by an
+    * earlier interrupted run.
+    **/
+   private void readUserIds () throws SQLException {
+      ConnectionPool.PooledConnection conn = this._pool.borrow();
+      try{
+         // every user, streamed so the driver does not buffer them all next to the map
+         StreamingQuery.stream(conn, "SELECT login, user_id FROM USR", StreamingQuery.fetchSize(),
+                               new StreamingQuery.RowHandler() {
+            public void row (ResultSet rs) throws SQLException {
+               _userIds.put(rs.getString(1), Integer.valueOf(rs.getInt(2)));
+            }
+         });
+      }finally{
+         this._pool.release(conn);
+      }//end try
+   }//end readUserIds
+
+   /*
+    * Finds <prefix>.csv and any split parts named <prefix>_<n>.csv
+    **/
+   private List<File> dataFiles (TableSpec spec) {
+      List<File> files = new ArrayList<File>();
+      File[] all = this._dataDir.listFiles();
+      if (all == null)
+         return files;
+      Arrays.sort(all);
+      for (File f : all) {
+         String name = f.getName();
+         if (name.equals(spec.filePrefix + ".csv")
+             || (name.startsWith(spec.filePrefix + "_") && name.endsWith(".csv")
+                 && name.substring(spec.filePrefix.length() + 1, name.length() - 4).matches("[0-9]+")))
+            files.add(f);
+      }//end for
+      return files;
+   }//end dataFiles
+
+   /*
+    * Streams one file into its table, committing every ROWS_PER_COMMIT
+    * lines together with the checkpoint.
+    **/
+   private long loadFile (TableSpec spec, File file) throws SQLException, IOException {
+      ConnectionPool.PooledConnection conn = this._pool.borrow();
+      BufferedReader reader = new BufferedReader(
+         new InputStreamReader(new FileInputStream(file), "UTF-8"), 1 << 16);
+      Connection c = conn.getConnection();
+      try{
+         c.setAutoCommit(false);
+         long done = readCheckpoint(conn, file.getName());
+         long line = 0;
+         String text;
+         while (line < done && reader.readLine() != null)
+            ++line;
+         if (done > 0)
+            System.out.println(spec.table + ": resuming " + file.getName() + " after line " + done);
+
+         long loaded = 0;
+         List<Object[]> rows = new ArrayList<Object[]>(ROWS_PER_INSERT);
+         int uncommitted = 0;
+         while ((text = reader.readLine()) != null) {
+            ++line;
+            if (text.length() == 0)
+               continue;
+            rows.add(parse(spec, text, file.getName(), line, this._userIds));
+            if (rows.size() == ROWS_PER_INSERT) {
+               insert(conn, spec, rows);
+               uncommitted += rows.size();
+               rows.clear();
+            }//end if
+            if (uncommitted >= ROWS_PER_COMMIT) {
+               loaded += uncommitted;
+               commit(conn, file.getName(), line);
+               uncommitted = 0;
+            }//end if
+         }//end while
+         insert(conn, spec, rows);
+         uncommitted += rows.size();
+         loaded += uncommitted;
+         commit(conn, file.getName(), line);
+         System.out.println(spec.table + ": " + file.getName() + " done, " + loaded + " rows");
+         return loaded;
+      }finally{
+         if (!c.getAutoCommit()) {
+            // a parse or read error must not let the work since the last
+            // checkpoint be committed when autocommit is restored.
+            try{
+               c.rollback();
+            }catch (SQLException ignored){
+               // the original error is reported.
+            }//end try
+         }//end if
+         reader.close();
+         try{
+            c.setAutoCommit(true);
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+         this._pool.release(conn);
+      }//end try
+   }//end loadFile
+
+   /*
+    * Parses one line in COPY text format: ';' separated, \N for null and
+    * backslash escapes.
+    **/
+   private static Object[] parse (TableSpec spec, String text, String file, long line,
+                                  Map<String, Integer> userIds) {
+      Object[] row = new Object[spec.columns.length];
+      int col = 0;
+      StringBuilder field = new StringBuilder();
+      boolean isNull = false;
+      for (int i = 0; i <= text.length(); ++i) {
+         char ch = i < text.length() ? text.charAt(i) : ';';
+         if (ch == '\\' && i + 1 < text.length()) {
+            char next = text.charAt(++i);
+            switch (next) {
+               case 'N': isNull = true; break;
+               case 't': field.append('\t'); break;
+               case 'n': field.append('\n'); break;
+               case 'r': field.append('\r'); break;
+               default: field.append(next); break;
+            }//end switch
+         }else if (ch == ';') {
+            if (col >= row.length)
+               throw new IllegalArgumentException(file + ":" + line + ": too many fields");
+            row[col] = isNull ? null : convert(spec.types.charAt(col), field.toString(), file, line, userIds);
+            ++col;
+            field.setLength(0);
+            isNull = false;
+         }else{
+            field.append(ch);
+         }//end if
+      }//end for
+      if (col != row.length)
+         throw new IllegalArgumentException(file + ":" + line + ": expected "
+                                            + row.length + " fields, found " + col);
+      return row;
+   }//end parse
+
+   private static Object convert (char type, String value, String file, long line,
+                                  Map<String, Integer> userIds) {
+      if (type == 'u') {
+         Integer id = userIds.get(value.trim());
+         if (id == null)
+            throw new IllegalArgumentException(file + ":" + line + ": no such user: " + value);
+         return id;
+      }//end if
+      if (type != 'i')
+         return value;
+      try{
+         return Integer.valueOf(value.trim());
+      }catch (NumberFormatException e){
+         throw new IllegalArgumentException(file + ":" + line + ": not an integer: " + value);
+      }//end try
+   }//end convert
+
+   /*
+    * Inserts the rows with multi-row VALUES statements. Leftovers smaller
+    * than ROWS_PER_INSERT are split into power of two chunks so the number
+    * of distinct statements stays small.
+    **/
+   private static void insert (ConnectionPool.PooledConnection conn, TableSpec spec, List<Object[]> rows) throws SQLException {
+      int done = 0;
+      while (done < rows.size()) {
+         int count = ROWS_PER_INSERT;
+         while (count > rows.size() - done)
+            count /= 2;
+         Object[] params = new Object[count * spec.columns.length];
+         int p = 0;
+         for (int r = done; r < done + count; ++r)
+            for (Object value : rows.get(r))
+               params[p++] = value;
+         conn.prepare(insertSql(spec, count), params).executeUpdate();
+         done += count;
+      }//end while
+   }//end insert
+
+   private static String insertSql (TableSpec spec, int count) {
+      StringBuilder tuple = new StringBuilder("(");
+      for (int i = 0; i < spec.columns.length; ++i) {
+         if (i > 0)
+            tuple.append(", ");
+         tuple.append(spec.types.charAt(i) == 't' ? "cast(? as timestamp)" : "?");
+      }//end for
+      tuple.append(")");
+
+      StringBuilder sql = new StringBuilder("INSERT INTO ").append(spec.table).append(" (");
+      for (int i = 0; i < spec.columns.length; ++i)
+         sql.append(i == 0 ? "" : ", ").append(spec.columns[i]);
+      sql.append(") VALUES ");
+      for (int i = 0; i < count; ++i)
+         sql.append(i == 0 ? "" : ", ").append(tuple);
+      return sql.toString();
+   }//end insertSql
+
+   private static long readCheckpoint (ConnectionPool.PooledConnection conn, String file) throws SQLException {
+      ResultSet rs = conn.prepare("SELECT lines_loaded FROM LOAD_CHECKPOINT WHERE file_name = ?", file).executeQuery();
+      long done = rs.next() ? rs.getLong(1) : 0;
+      rs.close();
+      return done;
+   }//end readCheckpoint
+
+   private static void commit (ConnectionPool.PooledConnection conn, String file, long line) throws SQLException {
+      if (conn.prepare("UPDATE LOAD_CHECKPOINT SET lines_loaded = ? WHERE file_name = ?", line, file).executeUpdate() == 0)
+         conn.prepare("INSERT INTO LOAD_CHECKPOINT (file_name, lines_loaded) VALUES (?, ?)", file, line).executeUpdate();
+      conn.getConnection().commit();
+   }//end commit
+
+   /*
+    * Moves every serial sequence right past the largest loaded id.
+    **/
+   private void resetSequences () throws SQLException {
+      ConnectionPool.PooledConnection conn = this._pool.borrow();
+      try{
+         for (TableSpec spec : TABLES) {
+            if (spec.sequence == null)
+               continue;
+            ResultSet rs = conn.prepare("SELECT setval(?, coalesce((SELECT max(" + spec.idColumn + ") FROM "
+                                        + spec.table + "), 0) + 1, false)", spec.sequence).executeQuery();
+            rs.next();
+            System.out.println(spec.sequence + " restarts at " + rs.getLong(1));
+            rs.close();
+         }//end for
+      }finally{
+         this._pool.release(conn);
+      }//end try
+   }//end resetSequences
+}//end BulkLoader
@@ -0,0 +1,154 @@
+/*
+ * Chat archive benchmark
+ * ======================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * This class exports every chat of the database to a chat archive file
+ * and compares it with MESSAGE (its partitions and MESSAGE_ARCHIVE): the
+ * bytes the messages take, and how fast the messages of a chat in a time
+ * range are read. The ranges scanned are the middle half of the history
+ * of the chats with most messages, read ROUNDS times after a warm up
+ * round, from the database and from the memory-mapped file. The archive
+ * file is left in place.
+ *
+ */
+public class ChatArchiveBenchmark {
+
+   private static final int CHATS = 100;
+   private static final int ROUNDS = 5;
+   private static final String DEFAULT_FILE = "messages.mca";
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> [archive file]
+    */
+   public static void main (String[] args) {
+      if (args.length != 3 && args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            ChatArchiveBenchmark.class.getName () +
+            " <dbname> <port> <user> [archive file]");
+         return;
+      }//end if
+
+      Messenger esql = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Messenger (args[0], args[1], args[2], "");
+         File file = new File(args.length == 4 ? args[3] : DEFAULT_FILE);
+
+         long begin = System.nanoTime();
+         long messages = ChatArchiveWriter.export(esql, file, null);
+         double seconds = (System.nanoTime() - begin) / 1e9;
+         System.out.println(String.format("Exported %d messages in %.1f s (%.0f msgs/s)",
+                                          messages, seconds, messages / seconds));
+
+         List<List<String>> sizes = esql.executeQueryAndReturnResult(
+            "select coalesce(sum(pg_relation_size(c.oid)), 0), coalesce(sum(pg_total_relation_size(c.oid)), 0) " +
+            "from pg_class c where c.relkind = 'r' and " +
+            "(c.relname in ('message', 'message_archive') or c.relname like E'message\\\\_p%')");
+         long heap = Long.parseLong(sizes.get(0).get(0));
+         long total = Long.parseLong(sizes.get(0).get(1));
+         System.out.println(String.format("%-32s %12d KB", "MESSAGE tables", heap / 1024));
+         System.out.println(String.format("%-32s %12d KB", "MESSAGE tables with indexes", total / 1024));
+         System.out.println(String.format("%-32s %12d KB (%.1fx smaller than the tables, %.1fx with indexes)",
+                                          "archive file", file.length() / 1024,
+                                          (double) heap / Math.max(1, file.length()),
+                                          (double) total / Math.max(1, file.length())));
+
+         // the middle half of the history of the busiest chats
+         List<List<String>> chats = esql.executeQueryAndReturnResult(
+            "select chat_id, cast(lo + (hi - lo) / 4 as text), cast(lo + (hi - lo) * 3 / 4 as text) " +
+            "from (select chat_id, min(msg_timestamp) as lo, max(msg_timestamp) as hi, count(*) as n " +
+            "      from (select chat_id, msg_timestamp from message " +
+            "            union all select chat_id, msg_timestamp from message_archive) m " +
+            "      group by chat_id) c " +
+            "order by n desc limit ?", CHATS);
+
+         ChatArchiveReader reader = new ChatArchiveReader(file);
+         try{
+            System.out.println(String.format("%10s %12s %12s %10s %10s %10s", "source", "scans", "rows/s", "p50 us", "p95 us", "p99 us"));
+            scanDatabase(esql, chats, false);
+            scanDatabase(esql, chats, true);
+            scanArchive(reader, chats, false);
+            scanArchive(reader, chats, true);
+         }finally{
+            reader.close();
+         }//end try
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end main
+
+   private static void scanDatabase (Messenger esql, List<List<String>> chats, boolean measure) throws Exception {
+      String query =
+         "select m.msg_id, m.chat_id, u.login, m.msg_timestamp, m.msg_text from message m " +
+         "left join usr u on u.user_id = m.sender_id " +
+         "where m.chat_id = ? and m.msg_timestamp >= cast(? as timestamp) and m.msg_timestamp < cast(? as timestamp) " +
+         "union all " +
+         "select m.msg_id, m.chat_id, u.login, m.msg_timestamp, m.msg_text from message_archive m " +
+         "left join usr u on u.user_id = m.sender_id " +
+         "where m.chat_id = ? and m.msg_timestamp >= cast(? as timestamp) and m.msg_timestamp < cast(? as timestamp) " +
+         "order by 4, 1";
+      LatencyHistogram latency = new LatencyHistogram();
+      long rows = 0;
+      long begin = System.nanoTime();
+      for (int round = 0; round < (measure ? ROUNDS : 1); ++round) {
+         for (List<String> chat : chats) {
+            int chatId = Integer.parseInt(chat.get(0));
+            long start = System.nanoTime();
+            rows += esql.executeQueryAndReturnResult(query, chatId, chat.get(1), chat.get(2),
+                                                     chatId, chat.get(1), chat.get(2)).size();
+            latency.recordNanos(System.nanoTime() - start);
+         }//end for
+      }//end for
+      if (measure)
+         print("MESSAGE", latency, rows, System.nanoTime() - begin);
+   }//end scanDatabase
+
+   private static void scanArchive (ChatArchiveReader reader, List<List<String>> chats, boolean measure) throws Exception {
+      final long[] bytes = new long[1];
+      ChatArchiveReader.RowHandler handler = new ChatArchiveReader.RowHandler() {
+         public void row (int msgId, int chatId, String sender, Timestamp time, String text) {
+            bytes[0] += text.length();
+         }
+      };
+      LatencyHistogram latency = new LatencyHistogram();
+      long rows = 0;
+      long begin = System.nanoTime();
+      for (int round = 0; round < (measure ? ROUNDS : 1); ++round) {
+         for (List<String> chat : chats) {
+            long start = System.nanoTime();
+            rows += reader.scan(Integer.parseInt(chat.get(0)), Timestamp.valueOf(chat.get(1)),
+                                Timestamp.valueOf(chat.get(2)), handler);
+            latency.recordNanos(System.nanoTime() - start);
+         }//end for
+      }//end for
+      if (measure)
+         print("archive", latency, rows, System.nanoTime() - begin);
+   }//end scanArchive
+
+   private static void print (String source, LatencyHistogram latency, long rows, long nanos) {
+      System.out.println(String.format("%10s %12d %12.0f %10d %10d %10d", source, latency.getCount(),
+                                       rows / (nanos / 1e9),
+                                       latency.getPercentileMicros(50), latency.getPercentileMicros(95),
+                                       latency.getPercentileMicros(99)));
+   }//end print
+}//end ChatArchiveBenchmark
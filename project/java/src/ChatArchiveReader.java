@@ -0,0 +1,249 @@
+/*
+ * Chat archive reader
+ * ===================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Timestamp;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * This class scans the files written by ChatArchiveWriter. The file is
+ * memory-mapped, so blocks are paged in by the operating system as they
+ * are read and stay cached between scans, and only the dictionary and
+ * the block index are read into the heap when it is opened.
+ *
+ * A scan of a chat between two times binary searches the index for the
+ * first block of the chat that ends at or after the start, and reads
+ * blocks until one begins at or after the end. Within a block the id and
+ * time columns are decoded first; the texts are only inflated when some
+ * row falls in the range.
+ *
+ * A reader can be shared by threads. The mapping is released when the
+ * reader is garbage collected, not by close().
+ *
+ */
+public class ChatArchiveReader implements Closeable {
+
+   /**
+    * Called for every message of a scan, in time order.
+    */
+   public interface RowHandler {
+      void row (int msgId, int chatId, String sender, Timestamp time, String text);
+   }//end RowHandler
+
+   private final RandomAccessFile _file;
+   private final MappedByteBuffer _map;
+   private final String[] _dictionary;
+
+   // the block index, in columns, ordered by chat_id and time
+   private final int[] _chatIds;
+   private final long[] _first;
+   private final long[] _last;
+   private final int[] _offsets;
+
+   public ChatArchiveReader (File file) throws IOException {
+      this._file = new RandomAccessFile(file, "r");
+      boolean opened = false;
+      try{
+         long length = this._file.length();
+         if (length > ChatArchiveWriter.MAX_FILE_BYTES || length < 20)
+            throw new IOException(file + " is not a chat archive");
+         this._map = this._file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+         ByteBuffer buf = this._map.duplicate();
+         if (buf.getInt(0) != ChatArchiveWriter.MAGIC || buf.getInt((int) length - 4) != ChatArchiveWriter.MAGIC)
+            throw new IOException(file + " is not a chat archive");
+         if (buf.getInt(4) != ChatArchiveWriter.VERSION)
+            throw new IOException(file + " has archive version " + buf.getInt(4));
+
+         buf.position((int) buf.getLong((int) length - 12));
+         this._dictionary = new String[buf.getInt() + 1];
+         for (int i = 1; i < this._dictionary.length; ++i) {
+            byte[] bytes = new byte[(int) readVarint(buf)];
+            buf.get(bytes);
+            this._dictionary[i] = new String(bytes, ChatArchiveWriter.UTF8);
+         }//end for
+         int blocks = buf.getInt();
+         this._chatIds = new int[blocks];
+         this._first = new long[blocks];
+         this._last = new long[blocks];
+         this._offsets = new int[blocks];
+         for (int i = 0; i < blocks; ++i) {
+            this._chatIds[i] = buf.getInt();
+            this._first[i] = buf.getLong();
+            this._last[i] = buf.getLong();
+            this._offsets[i] = (int) buf.getLong();
+         }//end for
+         opened = true;
+      }finally{
+         if (!opened)
+            this._file.close();
+      }//end try
+   }//end ChatArchiveReader
+
+   /**
+    * Visits the messages of a chat sent in [from, to).
+    *
+    * @param from first time included, null for the oldest message
+    * @param to first time excluded, null for the newest message
+    * @return the number of messages visited
+    * @throws java.io.IOException when the file is corrupt
+    */
+   public int scan (int chatId, Timestamp from, Timestamp to, RowHandler handler) throws IOException {
+      long lo = from == null ? Long.MIN_VALUE : ChatArchiveWriter.micros(from);
+      long hi = to == null ? Long.MAX_VALUE : ChatArchiveWriter.micros(to);
+      ByteBuffer buf = this._map.duplicate();
+      Inflater inflater = new Inflater();
+      int rows = 0;
+      try{
+         for (int b = firstBlock(chatId, lo); b < this._chatIds.length && this._chatIds[b] == chatId; ++b) {
+            if (this._first[b] >= hi)
+               break;
+            rows += scanBlock(buf, this._offsets[b], this._first[b], lo, hi, handler, inflater);
+         }//end for
+      }finally{
+         inflater.end();
+      }//end try
+      return rows;
+   }//end scan
+
+   /*
+    * @return the first block of the chat that ends at or after lo
+    **/
+   private int firstBlock (int chatId, long lo) {
+      int low = 0;
+      int high = this._chatIds.length;
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (this._chatIds[mid] < chatId || (this._chatIds[mid] == chatId && this._last[mid] < lo))
+            low = mid + 1;
+         else
+            high = mid;
+      }//end while
+      return low;
+   }//end firstBlock
+
+   private int scanBlock (ByteBuffer buf, int offset, long first, long lo, long hi, RowHandler handler,
+                          Inflater inflater) throws IOException {
+      buf.position(offset);
+      int chatId = buf.getInt();
+      int rows = buf.getInt();
+      int idBytes = buf.getInt();
+      int timeBytes = buf.getInt();
+      int senderBytes = buf.getInt();
+      int textBytes = buf.getInt();
+      int inflatedBytes = buf.getInt();
+      int columns = buf.position();
+
+      // rows of the block in range, from the time column
+      long[] times = new long[rows];
+      int firstRow = -1;
+      int endRow = rows;
+      long time = first;
+      buf.position(columns + idBytes);
+      for (int i = 0; i < rows; ++i) {
+         time += readVarint(buf);
+         times[i] = time;
+         if (firstRow < 0 && time >= lo)
+            firstRow = i;
+         if (time >= hi) {
+            endRow = i;
+            break;
+         }//end if
+      }//end for
+      if (firstRow < 0 || firstRow >= endRow)
+         return 0;
+
+      int[] ids = new int[endRow];
+      buf.position(columns);
+      long id = 0;
+      for (int i = 0; i < endRow; ++i) {
+         id += ChatArchiveWriter.unzigzag(readVarint(buf));
+         ids[i] = (int) id;
+      }//end for
+
+      int[] senders = new int[endRow];
+      buf.position(columns + idBytes + timeBytes);
+      for (int i = 0; i < endRow; ++i)
+         senders[i] = (int) readVarint(buf);
+
+      buf.position(columns + idBytes + timeBytes + senderBytes);
+      int[] lengths = new int[rows];
+      for (int i = 0; i < rows; ++i)
+         lengths[i] = (int) readVarint(buf);
+      byte[] deflated = new byte[columns + idBytes + timeBytes + senderBytes + textBytes - buf.position()];
+      buf.get(deflated);
+      // the texts after the range are not inflated
+      int needed = 0;
+      for (int i = 0; i < endRow; ++i)
+         needed += lengths[i];
+      if (needed > inflatedBytes)
+         throw new IOException("Block of chat " + chatId + " at " + offset + " is corrupt");
+      byte[] texts = new byte[needed];
+      try{
+         inflater.reset();
+         inflater.setInput(deflated);
+         int n = 0;
+         while (n < needed) {
+            int inflated = inflater.inflate(texts, n, needed - n);
+            if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+               throw new IOException("Block of chat " + chatId + " at " + offset + " is truncated");
+            n += inflated;
+         }//end while
+      }catch (DataFormatException e){
+         throw new IOException("Block of chat " + chatId + " at " + offset + " is corrupt");
+      }//end try
+
+      int textOffset = 0;
+      for (int i = 0; i < firstRow; ++i)
+         textOffset += lengths[i];
+      for (int i = firstRow; i < endRow; ++i) {
+         handler.row(ids[i], chatId, this._dictionary[senders[i]], ChatArchiveWriter.timestamp(times[i]),
+                     new String(texts, textOffset, lengths[i], ChatArchiveWriter.UTF8));
+         textOffset += lengths[i];
+      }//end for
+      return endRow - firstRow;
+   }//end scanBlock
+
+   private static long readVarint (ByteBuffer buf) {
+      long v = 0;
+      int shift = 0;
+      while (true) {
+         byte b = buf.get();
+         v |= (long) (b & 0x7f) << shift;
+         if (b >= 0)
+            return v;
+         shift += 7;
+      }//end while
+   }//end readVarint
+
+   /**
+    * @return the number of blocks in the file
+    */
+   public int getBlocks () {
+      return this._chatIds.length;
+   }//end getBlocks
+
+   /**
+    * @return the number of distinct senders in the file
+    */
+   public int getSenders () {
+      return this._dictionary.length - 1;
+   }//end getSenders
+
+   public void close () throws IOException {
+      this._file.close();
+   }//end close
+}//end ChatArchiveReader
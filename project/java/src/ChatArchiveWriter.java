@@ -0,0 +1,347 @@
+/*
+ * Chat archive writer
+ * ===================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * This class writes chat history to a compressed columnar archive file,
+ * read back by ChatArchiveReader. The messages of a chat are cut into
+ * blocks of up to BLOCK_ROWS rows in time order, and every block stores
+ * its columns one after the other:
+ *
+ *    msg_id         zigzag varint deltas from the previous row
+ *    msg_timestamp  varint deltas in microseconds from the previous row,
+ *                   the first from the first time of the block in the index
+ *    sender_login   varint index into the dictionary of the file (0 null)
+ *    msg_text       varint byte lengths, then the UTF-8 texts deflated
+ *
+ * so a time-range scan decodes the small id and time columns of a block
+ * and only inflates its texts when some row is in range. Texts are
+ * stored without the blank padding of char(300).
+ *
+ * File layout, big endian:
+ *
+ *    header  MAGIC, VERSION
+ *    blocks  chat_id, rows, id bytes, time bytes, sender bytes,
+ *            text bytes, inflated text bytes, then the four columns
+ *    footer  dictionary (count, then varint length and UTF-8 per login),
+ *            index (count, then chat_id, first and last microsecond and
+ *            offset per block, ordered by chat_id and time)
+ *    trailer offset of the footer, MAGIC
+ *
+ * Rows are added chat after chat (or interleaved), but the rows of a chat
+ * in time order. A file holds at most MAX_FILE_BYTES, the most the reader
+ * maps at once.
+ *
+ */
+public class ChatArchiveWriter implements Closeable {
+
+   public static final int MAGIC = 0x4d434131;   // "MCA1"
+   public static final int VERSION = 1;
+   public static final int BLOCK_ROWS = 1024;
+   public static final long MAX_FILE_BYTES = Integer.MAX_VALUE;
+
+   static final Charset UTF8 = Charset.forName("UTF-8");
+
+   /*
+    * One entry of the block index.
+    **/
+   static class Block {
+      final int chatId;
+      final long first;
+      final long last;
+      final long offset;
+
+      Block (int chatId, long first, long last, long offset) {
+         this.chatId = chatId;
+         this.first = first;
+         this.last = last;
+         this.offset = offset;
+      }//end Block
+   }//end Block
+
+   static final Comparator<Block> ORDER = new Comparator<Block>() {
+      public int compare (Block a, Block b) {
+         if (a.chatId != b.chatId)
+            return a.chatId < b.chatId ? -1 : 1;
+         return a.first < b.first ? -1 : (a.first == b.first ? 0 : 1);
+      }
+   };
+
+   private final DataOutputStream _out;
+   private long _offset = 0;
+
+   private final Map<String, Integer> _senders = new HashMap<String, Integer>();
+   private final List<String> _dictionary = new ArrayList<String>();
+   private final List<Block> _index = new ArrayList<Block>();
+   // last time written of every chat, rows must not go back in time
+   private final Map<Integer, Long> _lastTime = new HashMap<Integer, Long>();
+
+   // the block being filled
+   private int _chatId = 0;
+   private int _rows = 0;
+   private long _first = 0;
+   private int _lastId = 0;
+   private long _lastMicros = 0;
+   private final ByteArrayOutputStream _ids = new ByteArrayOutputStream();
+   private final ByteArrayOutputStream _times = new ByteArrayOutputStream();
+   private final ByteArrayOutputStream _senderIds = new ByteArrayOutputStream();
+   private final ByteArrayOutputStream _lengths = new ByteArrayOutputStream();
+   private final ByteArrayOutputStream _texts = new ByteArrayOutputStream();
+   private final Deflater _deflater = new Deflater(Deflater.BEST_COMPRESSION);
+   private byte[] _buffer = new byte[64 * 1024];
+
+   private long _messages = 0;
+   private long _textBytes = 0;
+
+   public ChatArchiveWriter (File file) throws IOException {
+      this._out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+      this._out.writeInt(MAGIC);
+      this._out.writeInt(VERSION);
+      this._offset = 8;
+   }//end ChatArchiveWriter
+
+   /**
+    * Adds one message.
+    *
+    * @param sender login of the sender, null when unknown
+    * @throws java.lang.IllegalArgumentException when the message is older
+    *         than the last one added to its chat
+    */
+   public void add (int msgId, int chatId, String sender, Timestamp time, String text) throws IOException {
+      long micros = micros(time);
+      Long last = this._lastTime.get(chatId);
+      if (last != null && micros < last)
+         throw new IllegalArgumentException("Messages of chat " + chatId + " are not in time order");
+      if (this._rows > 0 && (chatId != this._chatId || this._rows == BLOCK_ROWS))
+         flush();
+      if (this._rows == 0) {
+         this._chatId = chatId;
+         this._first = micros;
+         this._lastId = 0;
+         this._lastMicros = micros;
+      }//end if
+      this._lastTime.put(chatId, micros);
+
+      writeVarint(this._ids, zigzag(msgId - this._lastId));
+      writeVarint(this._times, micros - this._lastMicros);
+      writeVarint(this._senderIds, sender(sender));
+      byte[] bytes = text == null ? new byte[0] : rtrim(text).getBytes(UTF8);
+      writeVarint(this._lengths, bytes.length);
+      this._texts.write(bytes);
+      this._lastId = msgId;
+      this._lastMicros = micros;
+      ++this._rows;
+      ++this._messages;
+      this._textBytes += bytes.length;
+   }//end add
+
+   private int sender (String login) {
+      if (login == null)
+         return 0;
+      Integer id = this._senders.get(login);
+      if (id == null) {
+         this._dictionary.add(login);
+         this._senders.put(login, id = this._dictionary.size());
+      }//end if
+      return id;
+   }//end sender
+
+   private void flush () throws IOException {
+      if (this._rows == 0)
+         return;
+      this._deflater.reset();
+      this._deflater.setInput(this._texts.toByteArray());
+      this._deflater.finish();
+      ByteArrayOutputStream deflated = new ByteArrayOutputStream(this._texts.size() / 3 + 16);
+      while (!this._deflater.finished()) {
+         int n = this._deflater.deflate(this._buffer);
+         deflated.write(this._buffer, 0, n);
+      }//end while
+      int textBytes = this._lengths.size() + deflated.size();
+
+      long size = 4L * 7 + this._ids.size() + this._times.size() + this._senderIds.size() + textBytes;
+      if (this._offset + size > MAX_FILE_BYTES)
+         throw new IOException("The archive is full, export the remaining chats to another file");
+      this._index.add(new Block(this._chatId, this._first, this._lastMicros, this._offset));
+      this._out.writeInt(this._chatId);
+      this._out.writeInt(this._rows);
+      this._out.writeInt(this._ids.size());
+      this._out.writeInt(this._times.size());
+      this._out.writeInt(this._senderIds.size());
+      this._out.writeInt(textBytes);
+      this._out.writeInt(this._texts.size());
+      this._ids.writeTo(this._out);
+      this._times.writeTo(this._out);
+      this._senderIds.writeTo(this._out);
+      this._lengths.writeTo(this._out);
+      deflated.writeTo(this._out);
+      this._offset += size;
+
+      this._rows = 0;
+      this._ids.reset();
+      this._times.reset();
+      this._senderIds.reset();
+      this._lengths.reset();
+      this._texts.reset();
+   }//end flush
+
+   /**
+    * Writes the last block and the footer.
+    */
+   public void close () throws IOException {
+      try{
+         flush();
+         long footer = this._offset;
+         ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+         for (String login : this._dictionary) {
+            byte[] bytes = login.getBytes(UTF8);
+            writeVarint(dictionary, bytes.length);
+            dictionary.write(bytes);
+         }//end for
+         this._out.writeInt(this._dictionary.size());
+         dictionary.writeTo(this._out);
+         Collections.sort(this._index, ORDER);
+         this._out.writeInt(this._index.size());
+         for (Block block : this._index) {
+            this._out.writeInt(block.chatId);
+            this._out.writeLong(block.first);
+            this._out.writeLong(block.last);
+            this._out.writeLong(block.offset);
+         }//end for
+         this._out.writeLong(footer);
+         this._out.writeInt(MAGIC);
+      }finally{
+         this._deflater.end();
+         this._out.close();
+      }//end try
+   }//end close
+
+   /**
+    * @return the number of messages added
+    */
+   public long getMessages () {
+      return this._messages;
+   }//end getMessages
+
+   /**
+    * @return the bytes of the texts added, before compression
+    */
+   public long getTextBytes () {
+      return this._textBytes;
+   }//end getTextBytes
+
+   /**
+    * Writes the messages of one chat, or of all chats when chatId is null,
+    * hot and archived, to an archive file. The rows are streamed, so the
+    * history does not have to fit in memory.
+    *
+    * @return the number of messages written
+    */
+   public static long export (Messenger esql, File file, Integer chatId) throws SQLException, IOException {
+      final ChatArchiveWriter writer = new ChatArchiveWriter(file);
+      final IOException[] failed = new IOException[1];
+      boolean done = false;
+      try{
+         String query =
+            "select m.msg_id, m.chat_id, u.login, m.msg_timestamp, m.msg_text " +
+            "from (select msg_id, chat_id, sender_id, msg_timestamp, msg_text from message " +
+            "      union all " +
+            "      select msg_id, chat_id, sender_id, msg_timestamp, msg_text from message_archive) m " +
+            "left join usr u on u.user_id = m.sender_id " +
+            (chatId == null ? "" : "where m.chat_id = ? ") +
+            "order by m.chat_id, m.msg_timestamp, m.msg_id";
+         StreamingQuery.RowHandler handler = new StreamingQuery.RowHandler() {
+            public void row (ResultSet rs) throws SQLException {
+               try{
+                  writer.add(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getTimestamp(4), rs.getString(5));
+               }catch (IOException e){
+                  failed[0] = e;
+                  throw new SQLException(e.getMessage());
+               }//end try
+            }
+         };
+         try{
+            if (chatId == null)
+               esql.streamQuery(query, handler);
+            else
+               esql.streamQuery(query, handler, chatId);
+         }catch (SQLException e){
+            if (failed[0] != null)
+               throw failed[0];
+            throw e;
+         }//end try
+         done = true;
+      }finally{
+         writer.close();
+         if (!done)
+            file.delete();
+      }//end try
+      return writer.getMessages();
+   }//end export
+
+   static long micros (Timestamp time) {
+      long seconds = time.getTime() / 1000;
+      if (time.getTime() % 1000 < 0)
+         --seconds;
+      return seconds * 1000000L + time.getNanos() / 1000;
+   }//end micros
+
+   static Timestamp timestamp (long micros) {
+      long seconds = micros / 1000000L;
+      if (micros % 1000000L < 0)
+         --seconds;
+      Timestamp time = new Timestamp(seconds * 1000);
+      time.setNanos((int) (micros - seconds * 1000000L) * 1000);
+      return time;
+   }//end timestamp
+
+   private static String rtrim (String s) {
+      int end = s.length();
+      while (end > 0 && s.charAt(end - 1) == ' ')
+         --end;
+      return end == s.length() ? s : s.substring(0, end);
+   }//end rtrim
+
+   private static long zigzag (long v) {
+      return (v << 1) ^ (v >> 63);
+   }//end zigzag
+
+   static long unzigzag (long v) {
+      return (v >>> 1) ^ -(v & 1);
+   }//end unzigzag
+
+   static void writeVarint (ByteArrayOutputStream out, long v) {
+      while ((v & ~0x7fL) != 0) {
+         out.write((int) ((v & 0x7f) | 0x80));
+         v >>>= 7;
+      }//end while
+      out.write((int) v);
+   }//end writeVarint
+}//end ChatArchiveWriter
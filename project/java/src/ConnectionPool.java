@@ -0,0 +1,353 @@
+/*
+ * Connection pool
+ * ===============
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps a bounded set of physical connections to the database.
+ * Callers borrow a connection for the duration of one operation and give it
+ * back when done. Waiting for a connection is fair (first come, first
+ * served) and bounded by a timeout, connections are validated before they
+ * are handed out and idle connections above the minimum size are closed.
+ *
+ */
+public class ConnectionPool {
+
+   // defaults used when no system property overrides them
+   public static final int DEFAULT_MIN_SIZE = 1;
+   public static final int DEFAULT_MAX_SIZE = 8;
+   public static final long DEFAULT_WAIT_TIMEOUT_MS = 5000;
+   public static final long DEFAULT_IDLE_TIMEOUT_MS = 60000;
+
+   // query used to check a connection before handing it out
+   private static final String VALIDATION_QUERY = "select 1";
+
+   /**
+    * A physical connection together with its prepared statement cache.
+    */
+   public class PooledConnection {
+      private final Connection _connection;
+      private final StatementCache _statements;
+      private long _lastUsed;
+
+      private PooledConnection (Connection connection) {
+         this._connection = connection;
+         this._statements = new StatementCache(connection, StatementCache.DEFAULT_CAPACITY,
+                                               ConnectionPool.this._statementTotals);
+         this._lastUsed = System.currentTimeMillis();
+      }//end PooledConnection
+
+      public Connection getConnection () { return this._connection; }
+      public StatementCache getStatementCache () { return this._statements; }
+
+      /**
+       * @see StatementCache#prepare
+       */
+      public PreparedStatement prepare (String sql, Object... params) throws SQLException {
+         return this._statements.prepare(sql, params);
+      }//end prepare
+
+      /**
+       * @see StatementCache#prepareCommand
+       */
+      public PreparedStatement prepareCommand (String sql, Object... params) throws SQLException {
+         return this._statements.prepareCommand(sql, params);
+      }//end prepareCommand
+
+      private boolean isValid () {
+         try{
+            if (this._connection.isClosed())
+               return false;
+            Statement stmt = this._connection.createStatement();
+            try{
+               ResultSet rs = stmt.executeQuery(VALIDATION_QUERY);
+               return rs.next();
+            }finally{
+               stmt.close();
+            }//end try
+         }catch (SQLException e){
+            return false;
+         }//end try
+      }//end isValid
+
+      private void close () {
+         this._statements.close();
+         try{
+            this._connection.close();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end close
+   }//end PooledConnection
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final int _minSize;
+   private final int _maxSize;
+   private final long _waitTimeoutMs;
+   private final long _idleTimeoutMs;
+
+   // one permit per connection that may be handed out, fair so waiters are
+   // served in arrival order
+   private final Semaphore _permits;
+
+   // idle connections, most recently returned first
+   private final LinkedList<PooledConnection> _idle = new LinkedList<PooledConnection>();
+
+   // connections currently open (idle + borrowed)
+   private final AtomicInteger _open = new AtomicInteger(0);
+
+   // metrics
+   private final AtomicInteger _active = new AtomicInteger(0);
+   private final AtomicLong _borrows = new AtomicLong(0);
+   private final AtomicLong _waitNanos = new AtomicLong(0);
+   private final AtomicLong _maxWaitNanos = new AtomicLong(0);
+   private final AtomicLong _timeouts = new AtomicLong(0);
+   private final AtomicLong _created = new AtomicLong(0);
+   private final AtomicLong _evicted = new AtomicLong(0);
+   private final AtomicLong _invalid = new AtomicLong(0);
+   // statement cache counters of all connections, see getStatementCacheStats
+   private final StatementCache.Counters _statementTotals = new StatementCache.Counters();
+
+   // closes idle connections in the background
+   private final Timer _evictor;
+
+   private volatile boolean _closed = false;
+
+   /**
+    * Creates a new pool and opens the minimum number of connections
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize the number of connections kept open while idle
+    * @param maxSize the maximum number of connections ever open
+    * @param waitTimeoutMs how long borrow waits for a free connection
+    * @param idleTimeoutMs how long a connection above minSize may stay idle
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public ConnectionPool (String url, String user, String passwd,
+                          int minSize, int maxSize,
+                          long waitTimeoutMs, long idleTimeoutMs) throws SQLException {
+      if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+         throw new IllegalArgumentException("invalid pool size " + minSize + ".." + maxSize);
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._minSize = minSize;
+      this._maxSize = maxSize;
+      this._waitTimeoutMs = waitTimeoutMs;
+      this._idleTimeoutMs = idleTimeoutMs;
+      this._permits = new Semaphore(maxSize, true);
+
+      for (int i = 0; i < minSize; ++i)
+         this._idle.addLast(open());
+
+      this._evictor = new Timer("pool-evictor", true);
+      long period = Math.max(1000, idleTimeoutMs / 2);
+      this._evictor.schedule(new TimerTask() {
+         public void run () { evictIdle(); }
+      }, period, period);
+   }//end ConnectionPool
+
+   /**
+    * Creates a pool sized from the messenger.pool.* system properties
+    */
+   public static ConnectionPool fromSystemProperties (String url, String user, String passwd) throws SQLException {
+      return new ConnectionPool(url, user, passwd,
+                                Integer.getInteger("messenger.pool.min", DEFAULT_MIN_SIZE),
+                                Integer.getInteger("messenger.pool.max", DEFAULT_MAX_SIZE),
+                                Long.getLong("messenger.pool.waitTimeout", DEFAULT_WAIT_TIMEOUT_MS),
+                                Long.getLong("messenger.pool.idleTimeout", DEFAULT_IDLE_TIMEOUT_MS));
+   }//end fromSystemProperties
+
+   /**
+    * Borrows a validated connection, waiting up to the configured timeout.
+    * Every borrowed connection must be given back with release.
+    *
+    * @return a connection reserved for the caller
+    * @throws java.sql.SQLException when no connection became free in time
+    */
+   public PooledConnection borrow () throws SQLException {
+      if (this._closed)
+         throw new SQLException("Connection pool is closed");
+
+      long start = System.nanoTime();
+      boolean acquired;
+      try{
+         acquired = this._permits.tryAcquire(this._waitTimeoutMs, TimeUnit.MILLISECONDS);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a connection");
+      }//end try
+      long waited = System.nanoTime() - start;
+      this._waitNanos.addAndGet(waited);
+      long max = this._maxWaitNanos.get();
+      while (waited > max && !this._maxWaitNanos.compareAndSet(max, waited))
+         max = this._maxWaitNanos.get();
+
+      if (!acquired) {
+         this._timeouts.incrementAndGet();
+         throw new SQLException("Timed out after " + this._waitTimeoutMs + " ms waiting for a connection");
+      }//end if
+
+      try{
+         PooledConnection conn;
+         while ((conn = pollIdle()) != null) {
+            if (conn.isValid())
+               break;
+            this._invalid.incrementAndGet();
+            discard(conn);
+         }//end while
+         if (conn == null)
+            conn = open();
+         this._active.incrementAndGet();
+         this._borrows.incrementAndGet();
+         return conn;
+      }catch (SQLException e){
+         this._permits.release();
+         throw e;
+      }//end try
+   }//end borrow
+
+   /**
+    * Gives a borrowed connection back to the pool
+    *
+    * @param conn the connection returned by borrow
+    */
+   public void release (PooledConnection conn) {
+      if (conn == null)
+         return;
+      this._active.decrementAndGet();
+      conn._lastUsed = System.currentTimeMillis();
+      if (this._closed) {
+         discard(conn);
+      }else{
+         synchronized (this._idle) {
+            this._idle.addFirst(conn);
+         }//end synchronized
+      }//end if
+      this._permits.release();
+   }//end release
+
+   /**
+    * Closes every idle connection, borrowed ones are closed on release.
+    */
+   public void close () {
+      this._closed = true;
+      this._evictor.cancel();
+      PooledConnection conn;
+      while ((conn = pollIdle()) != null)
+         discard(conn);
+   }//end close
+
+   public int getActive () { return this._active.get(); }
+   public int getOpen () { return this._open.get(); }
+   public long getBorrows () { return this._borrows.get(); }
+   public long getTimeouts () { return this._timeouts.get(); }
+   public long getTotalWaitMillis () { return TimeUnit.NANOSECONDS.toMillis(this._waitNanos.get()); }
+   public long getMaxWaitMillis () { return TimeUnit.NANOSECONDS.toMillis(this._maxWaitNanos.get()); }
+   public int getWaiting () { return this._permits.getQueueLength(); }
+
+   public int getIdle () {
+      synchronized (this._idle) {
+         return this._idle.size();
+      }//end synchronized
+   }//end getIdle
+
+   /**
+    * The statement cache counters of every connection the pool opened,
+    * borrowed or idle, open or already closed.
+    */
+   public String getStatementCacheStats () {
+      return this._statementTotals.toString();
+   }//end getStatementCacheStats
+
+   public String toString () {
+      long borrows = this._borrows.get();
+      return String.format("%d active, %d idle, %d open (min %d, max %d), %d waiting, "
+                           + "%d borrows, avg wait %.3f ms, max wait %d ms, %d timeouts, "
+                           + "%d created, %d evicted, %d failed validation",
+                           getActive(), getIdle(), getOpen(), this._minSize, this._maxSize,
+                           getWaiting(), borrows,
+                           borrows == 0 ? 0.0 : this._waitNanos.get() / 1e6 / borrows,
+                           getMaxWaitMillis(), getTimeouts(),
+                           this._created.get(), this._evicted.get(), this._invalid.get());
+   }//end toString
+
+   /**
+    * Opens a connection outside the pool, for a caller that keeps it for
+    * its whole life (e.g. the LISTEN connection of MessageNotifier). The
+    * caller closes it.
+    */
+   public Connection openDedicated () throws SQLException {
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }//end openDedicated
+
+   private PooledConnection open () throws SQLException {
+      Connection c = DriverManager.getConnection(this._url, this._user, this._passwd);
+      this._open.incrementAndGet();
+      this._created.incrementAndGet();
+      return new PooledConnection(c);
+   }//end open
+
+   private PooledConnection pollIdle () {
+      synchronized (this._idle) {
+         return this._idle.pollFirst();
+      }//end synchronized
+   }//end pollIdle
+
+   private void discard (PooledConnection conn) {
+      this._open.decrementAndGet();
+      conn.close();
+   }//end discard
+
+   /**
+    * Closes connections that stayed idle longer than the idle timeout while
+    * keeping at least minSize connections open.
+    */
+   private void evictIdle () {
+      long cutoff = System.currentTimeMillis() - this._idleTimeoutMs;
+      List<PooledConnection> stale = new ArrayList<PooledConnection>();
+      synchronized (this._idle) {
+         // the least recently used connections sit at the tail
+         Iterator<PooledConnection> it = this._idle.descendingIterator();
+         while (it.hasNext() && this._open.get() - stale.size() > this._minSize) {
+            PooledConnection conn = it.next();
+            if (conn._lastUsed > cutoff)
+               break;
+            it.remove();
+            stale.add(conn);
+         }//end while
+      }//end synchronized
+      for (PooledConnection conn : stale) {
+         this._evicted.incrementAndGet();
+         discard(conn);
+      }//end for
+   }//end evictIdle
+}//end ConnectionPool
@@ -0,0 +1,112 @@
+/*
+ * Id allocator
+ * ============
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ */
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out the keys of new MESSAGE, CHAT and USER_LIST rows
+ * from blocks of sequence values reserved ahead, so an insert does not
+ * need a round trip for its key and the database no nextval trigger.
+ * Reserving a block is one query returning blockSize values of the
+ * sequence; taking a value from it is one atomic increment, no lock is
+ * held unless the block ran out.
+ *
+ * Ordering: values are unique, and a single allocator hands them out in
+ * increasing order, but values from different JVMs (or from the serial
+ * default of a plain insert) interleave by block, so a key taken later
+ * can be smaller than one taken earlier elsewhere. Nothing orders by key
+ * alone: pages are ordered by msg_timestamp first and use msg_id only to
+ * break ties.
+ *
+ * Gaps: the values left in a block when the JVM stops or crashes are
+ * never used, as are the values of a failed insert. At most blockSize - 1
+ * values per sequence are lost per JVM.
+ *
+ */
+public class IdAllocator {
+
+   public static final int DEFAULT_BLOCK_SIZE = 64;
+
+   /**
+    * The values of one reserved block, taken in order.
+    */
+   private static class Block {
+      final int[] values;
+      final AtomicInteger next = new AtomicInteger(0);
+
+      Block (int[] values) {
+         this.values = values;
+      }//end Block
+
+      // the next value, or -1 once the block is used up
+      int take () {
+         int i = this.next.getAndIncrement();
+         return i < this.values.length ? this.values[i] : -1;
+      }//end take
+   }//end Block
+
+   private final Messenger _esql;
+   private final int _blockSize;
+   private final ConcurrentHashMap<String, Block> _blocks = new ConcurrentHashMap<String, Block>();
+   private final AtomicLong _allocated = new AtomicLong(0);
+   private final AtomicLong _reserved = new AtomicLong(0);
+
+   public IdAllocator (Messenger esql, int blockSize) {
+      this._esql = esql;
+      this._blockSize = Math.max(1, blockSize);
+   }//end IdAllocator
+
+   /**
+    * @param sequence name of the DB sequence
+    * @return a value of the sequence no one else got
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public int next (String sequence) throws SQLException {
+      while (true) {
+         Block block = this._blocks.get(sequence);
+         if (block != null) {
+            int value = block.take();
+            if (value >= 0) {
+               this._allocated.incrementAndGet();
+               return value;
+            }//end if
+         }//end if
+         refill(sequence, block);
+      }//end while
+   }//end next
+
+   /*
+    * Replaces the used up block of a sequence, unless another thread
+    * already did while this one waited.
+    **/
+   private synchronized void refill (String sequence, Block exhausted) throws SQLException {
+      Block current = this._blocks.get(sequence);
+      if (current != exhausted && current != null)
+         return;
+      List<List<String>> rows = this._esql.executeQueryAndReturnResult(
+         "select nextval(?) from generate_series(1, ?)", sequence, this._blockSize);
+      if (rows.isEmpty())
+         throw new SQLException("No values reserved from " + sequence);
+      int[] values = new int[rows.size()];
+      for (int i = 0; i < values.length; ++i)
+         values[i] = Integer.parseInt(rows.get(i).get(0));
+      this._blocks.put(sequence, new Block(values));
+      this._reserved.addAndGet(values.length);
+   }//end refill
+
+   public String toString () {
+      return String.format("blocks of %d, %d ids reserved, %d handed out",
+                           this._blockSize, this._reserved.get(), this._allocated.get());
+   }//end toString
+}//end IdAllocator
@@ -0,0 +1,122 @@
+/*
+ * Latency histogram
+ * =================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records latencies into log-linear buckets in the style of
+ * HdrHistogram: every power of two range is split into 16 sub buckets, so
+ * any recorded value is reported within about 6% of its real value.
+ * Recording is lock free (one atomic increment per counter) and the memory
+ * used is fixed no matter how many values are recorded.
+ *
+ * Values are kept in microseconds, from 1 us up to about 12 days.
+ *
+ */
+public class LatencyHistogram {
+
+   // 2^SUB_BITS sub buckets per power of two
+   private static final int SUB_BITS = 4;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+
+   // values below LINEAR_LIMIT get a bucket of their own
+   private static final int LINEAR_LIMIT = 2 * SUB_COUNT;
+
+   // largest magnitude tracked, larger values land in the last bucket
+   private static final int MAX_MAGNITUDE = 40;
+
+   private static final int BUCKETS = LINEAR_LIMIT + (MAX_MAGNITUDE - SUB_BITS) * SUB_COUNT;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _count = new AtomicLong(0);
+   private final AtomicLong _sum = new AtomicLong(0);
+   private final AtomicLong _max = new AtomicLong(0);
+
+   /**
+    * Records one latency
+    *
+    * @param nanos the measured time in nanoseconds
+    */
+   public void recordNanos (long nanos) {
+      long micros = Math.max(0, nanos / 1000);
+      this._counts.incrementAndGet(indexOf(micros));
+      this._count.incrementAndGet();
+      this._sum.addAndGet(micros);
+      long max = this._max.get();
+      while (micros > max && !this._max.compareAndSet(max, micros))
+         max = this._max.get();
+   }//end recordNanos
+
+   public long getCount () { return this._count.get(); }
+   public long getMaxMicros () { return this._max.get(); }
+
+   public double getMeanMicros () {
+      long count = this._count.get();
+      return count == 0 ? 0.0 : (double) this._sum.get() / count;
+   }//end getMeanMicros
+
+   /**
+    * @param percentile a value between 0 and 100
+    * @return the latency in microseconds below which the given percentage
+    *         of the recorded values fall
+    */
+   public long getPercentileMicros (double percentile) {
+      long count = this._count.get();
+      if (count == 0)
+         return 0;
+      long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += this._counts.get(i);
+         if (seen >= target)
+            return Math.min(upperBoundOf(i), this._max.get());
+      }//end for
+      return this._max.get();
+   }//end getPercentileMicros
+
+   /**
+    * Clears every counter, values recorded concurrently may be lost.
+    */
+   public void reset () {
+      for (int i = 0; i < BUCKETS; ++i)
+         this._counts.set(i, 0);
+      this._count.set(0);
+      this._sum.set(0);
+      this._max.set(0);
+   }//end reset
+
+   public String toString () {
+      return String.format("count=%d mean=%.3fms p50=%.3fms p95=%.3fms p99=%.3fms max=%.3fms",
+                           getCount(), getMeanMicros() / 1000.0,
+                           getPercentileMicros(50) / 1000.0, getPercentileMicros(95) / 1000.0,
+                           getPercentileMicros(99) / 1000.0, getMaxMicros() / 1000.0);
+   }//end toString
+
+   private static int indexOf (long micros) {
+      if (micros < LINEAR_LIMIT)
+         return (int) micros;
+      int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+      if (magnitude >= MAX_MAGNITUDE)
+         return BUCKETS - 1;
+      int shift = magnitude - SUB_BITS;
+      int sub = (int) (micros >>> shift) - SUB_COUNT;
+      return LINEAR_LIMIT + (magnitude - SUB_BITS - 1) * SUB_COUNT + sub;
+   }//end indexOf
+
+   private static long upperBoundOf (int index) {
+      if (index < LINEAR_LIMIT)
+         return index;
+      int magnitude = (index - LINEAR_LIMIT) / SUB_COUNT + SUB_BITS + 1;
+      int sub = (index - LINEAR_LIMIT) % SUB_COUNT + SUB_COUNT;
+      int shift = magnitude - SUB_BITS;
+      return ((long) (sub + 1) << shift) - 1;
+   }//end upperBoundOf
+}//end LatencyHistogram
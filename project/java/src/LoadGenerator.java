@@ -0,0 +1,460 @@
+/*
+ * Load generator
+ * ==============
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class simulates many users of one Messenger at once, as the
+ * network server would see them. Every virtual user is a thread playing a
+ * user of usr.csv in the chats chat_list.csv puts it in: it logs in, then
+ * picks operations from a weighted mix and waits an exponentially
+ * distributed think time after each. An operation calls the menu handler
+ * itself (LogIn, ViewChats, ViewMessages, AddToContact, CreateNewChat)
+ * inside a Session whose input is the lines a user would type and whose
+ * output is dropped, so it runs exactly what a client runs, without the
+ * time spent typing. The handlers report a failure on System.err, which
+ * the session keeps apart: an operation that wrote to it counts as an
+ * error, not in the latency. addMessage only tells a refused send on its
+ * output, so sends go through Messenger.sendMessage, the call it makes.
+ *
+ * Load is ramped in steps: every step adds virtual users and runs for a
+ * fixed time, then prints the throughput and p50/p95/p99 latency of each
+ * operation over that step. The ramp stops at the first step where an
+ * operation misses the p95 or p99 target, or when the users run out.
+ *
+ * Settings, as system properties: messenger.load.mix (operation:weight
+ * pairs, see DEFAULT_MIX), messenger.load.think (mean think time, 1000
+ * ms), messenger.load.start and messenger.load.step (users at the first
+ * step and added at every next one, 10 each), messenger.load.max (1000
+ * users), messenger.load.stepTime (30000 ms), messenger.load.p95 and
+ * messenger.load.p99 (latency targets, 200 and 500 ms). The connection
+ * pool is sized as for the server, with messenger.pool.max.
+ *
+ */
+public class LoadGenerator {
+
+   public static final String DEFAULT_MIX =
+      "login:5,ViewChats:30,ViewMessages:30,addMessage:20,AddToContact:10,CreateNewChat:5";
+   public static final long DEFAULT_THINK_MS = 1000;
+   public static final int DEFAULT_START_USERS = 10;
+   public static final int DEFAULT_STEP_USERS = 10;
+   public static final int DEFAULT_MAX_USERS = 1000;
+   public static final long DEFAULT_STEP_MS = 30000;
+   public static final long DEFAULT_P95_MS = 200;
+   public static final long DEFAULT_P99_MS = 500;
+
+   static final String[] OPERATIONS =
+      {"login", "ViewChats", "ViewMessages", "addMessage", "AddToContact", "CreateNewChat"};
+   private static final int LOGIN = 0;
+   private static final int VIEW_CHATS = 1;
+   private static final int VIEW_MESSAGES = 2;
+   private static final int ADD_MESSAGE = 3;
+   private static final int ADD_TO_CONTACT = 4;
+   private static final int CREATE_NEW_CHAT = 5;
+
+   // what the handlers print goes nowhere
+   private static final OutputStream SINK = new OutputStream() {
+      public void write (int b) { }
+      public void write (byte[] b, int off, int len) { }
+   };
+
+   /*
+    * Drops what a handler prints on System.err, remembering that it did.
+    **/
+   private static final class ErrorSink extends OutputStream {
+      boolean written = false;
+
+      public void write (int b) { this.written = true; }
+      public void write (byte[] b, int off, int len) { this.written |= len > 0; }
+   }//end ErrorSink
+
+   /**
+    * A user of the dataset, with the chats it is a member of and the
+    * other members of those chats.
+    */
+   static final class Account {
+      final String login;
+      final String password;
+      final List<Integer> chats = new ArrayList<Integer>();
+      final List<String> partners = new ArrayList<String>();
+
+      Account (String login, String password) {
+         this.login = login;
+         this.password = password;
+      }//end Account
+   }//end Account
+
+   /*
+    * The operations done during one step of the ramp.
+    **/
+   private static final class Step {
+      final LatencyHistogram[] latency = new LatencyHistogram[OPERATIONS.length];
+      final AtomicLongArray errors = new AtomicLongArray(OPERATIONS.length);
+      final long begin = System.nanoTime();
+
+      Step () {
+         for (int i = 0; i < OPERATIONS.length; ++i)
+            this.latency[i] = new LatencyHistogram();
+      }//end Step
+   }//end Step
+
+   private final Messenger _esql;
+   private final List<Account> _accounts;
+   private final int[] _weights;
+   private final int _totalWeight;
+   private final long _thinkMs;
+   private final AtomicLong _messages = new AtomicLong(0);
+   private volatile Step _step = new Step();
+   private volatile boolean _running = true;
+
+   public LoadGenerator (Messenger esql, List<Account> accounts, String mix, long thinkMs) {
+      this._esql = esql;
+      this._accounts = accounts;
+      this._weights = parseMix(mix);
+      int total = 0;
+      for (int w : this._weights)
+         total += w;
+      if (total <= 0)
+         throw new IllegalArgumentException("The operation mix has no weight: " + mix);
+      this._totalWeight = total;
+      this._thinkMs = Math.max(0, thinkMs);
+   }//end LoadGenerator
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> <data dir>
+    */
+   public static void main (String[] args) {
+      if (args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            LoadGenerator.class.getName () +
+            " <dbname> <port> <user> <data dir>");
+         return;
+      }//end if
+
+      Messenger esql = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         List<Account> accounts = readAccounts(new File(args[3]));
+         esql = new Messenger (args[0], args[1], args[2], "");
+         LoadGenerator load = new LoadGenerator(esql, accounts,
+                                                System.getProperty("messenger.load.mix", DEFAULT_MIX),
+                                                Long.getLong("messenger.load.think", DEFAULT_THINK_MS));
+         load.ramp(Integer.getInteger("messenger.load.start", DEFAULT_START_USERS),
+                   Integer.getInteger("messenger.load.step", DEFAULT_STEP_USERS),
+                   Integer.getInteger("messenger.load.max", DEFAULT_MAX_USERS),
+                   Long.getLong("messenger.load.stepTime", DEFAULT_STEP_MS),
+                   Long.getLong("messenger.load.p95", DEFAULT_P95_MS),
+                   Long.getLong("messenger.load.p99", DEFAULT_P99_MS));
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end main
+
+   /**
+    * Reads the users of usr.csv that are a member of some chat in
+    * chat_list.csv, in random order. Chats missing from chat.csv are left
+    * out.
+    */
+   static List<Account> readAccounts (File dataDir) throws IOException {
+      Set<Integer> chats = new HashSet<Integer>();
+      for (String[] row : readCsv(new File(dataDir, "chat.csv"), 3))
+         chats.add(Integer.parseInt(row[0].trim()));
+
+      Map<Integer, List<String>> members = new HashMap<Integer, List<String>>();
+      for (String[] row : readCsv(new File(dataDir, "chat_list.csv"), 2)) {
+         int chatId = Integer.parseInt(row[0].trim());
+         if (!chats.contains(chatId))
+            continue;
+         List<String> list = members.get(chatId);
+         if (list == null) {
+            list = new ArrayList<String>();
+            members.put(chatId, list);
+         }//end if
+         list.add(row[1].trim());
+      }//end for
+
+      Map<String, Account> accounts = new HashMap<String, Account>();
+      for (String[] row : readCsv(new File(dataDir, "usr.csv"), 3))
+         accounts.put(row[0].trim(), new Account(row[0].trim(), row[2].trim()));
+      for (Map.Entry<Integer, List<String>> chat : members.entrySet()) {
+         for (String login : chat.getValue()) {
+            Account account = accounts.get(login);
+            if (account == null)
+               continue;
+            account.chats.add(chat.getKey());
+            for (String other : chat.getValue())
+               if (!other.equals(login) && account.partners.size() < 100)
+                  account.partners.add(other);
+         }//end for
+      }//end for
+
+      List<Account> active = new ArrayList<Account>();
+      for (Account account : accounts.values())
+         if (!account.chats.isEmpty() && !account.partners.isEmpty())
+            active.add(account);
+      Collections.shuffle(active);
+      return active;
+   }//end readAccounts
+
+   private static List<String[]> readCsv (File file, int columns) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader in = new BufferedReader(new FileReader(file));
+      try{
+         String line;
+         while ((line = in.readLine()) != null) {
+            String[] row = line.split(";", -1);
+            if (row.length >= columns)
+               rows.add(row);
+         }//end while
+      }finally{
+         in.close();
+      }//end try
+      return rows;
+   }//end readCsv
+
+   private static int[] parseMix (String mix) {
+      int[] weights = new int[OPERATIONS.length];
+      for (String pair : mix.split(",")) {
+         String[] kv = pair.trim().split(":");
+         int op = -1;
+         for (int i = 0; i < OPERATIONS.length; ++i)
+            if (OPERATIONS[i].equalsIgnoreCase(kv[0].trim()))
+               op = i;
+         if (op < 0 || kv.length != 2)
+            throw new IllegalArgumentException("Unknown operation in the mix: " + pair);
+         weights[op] = Integer.parseInt(kv[1].trim());
+      }//end for
+      return weights;
+   }//end parseMix
+
+   /**
+    * Adds users step by step until a latency target is missed, printing
+    * every step.
+    *
+    * @return the most users that met the targets, 0 when the first step
+    *         missed them
+    */
+   public int ramp (int start, int step, int max, long stepMs, long p95Ms, long p99Ms) throws InterruptedException {
+      Session.install();
+      List<Thread> threads = new ArrayList<Thread>();
+      int passed = 0;
+      int target = Math.max(1, start);
+      max = Math.min(max, this._accounts.size());
+      System.out.println(String.format("%d users available, targets p95 %d ms and p99 %d ms",
+                                       this._accounts.size(), p95Ms, p99Ms));
+      System.out.println(String.format("%6s %-14s %10s %10s %10s %10s %8s",
+                                       "users", "operation", "ops/s", "p50 ms", "p95 ms", "p99 ms", "errors"));
+      try{
+         while (true) {
+            while (threads.size() < Math.min(target, max)) {
+               Thread t = new Thread(new VirtualUser(this._accounts.get(threads.size()), threads.size()),
+                                     "virtual-user-" + threads.size());
+               t.setDaemon(true);
+               t.start();
+               threads.add(t);
+            }//end while
+            this._step = new Step();
+            Thread.sleep(stepMs);
+            if (!report(threads.size(), this._step, p95Ms * 1000, p99Ms * 1000)) {
+               System.out.println(String.format("Targets missed at %d users, met at %d", threads.size(), passed));
+               break;
+            }//end if
+            passed = threads.size();
+            if (threads.size() >= max) {
+               System.out.println(String.format("Targets met at %d users, no more users to add", passed));
+               break;
+            }//end if
+            target += Math.max(1, step);
+         }//end while
+      }finally{
+         this._running = false;
+         for (Thread t : threads)
+            t.interrupt();
+         for (Thread t : threads)
+            t.join();
+         Session.console().println(this._messages.get() + " messages sent");
+      }//end try
+      return passed;
+   }//end ramp
+
+   /*
+    * Prints a step.
+    * @return false when an operation missed a target
+    **/
+   private boolean report (int users, Step step, long p95Micros, long p99Micros) {
+      double seconds = (System.nanoTime() - step.begin) / 1e9;
+      boolean met = true;
+      for (int i = 0; i < OPERATIONS.length; ++i) {
+         LatencyHistogram latency = step.latency[i];
+         if (latency.getCount() == 0 && step.errors.get(i) == 0)
+            continue;
+         long p95 = latency.getPercentileMicros(95);
+         long p99 = latency.getPercentileMicros(99);
+         boolean missed = p95 > p95Micros || p99 > p99Micros;
+         met &= !missed;
+         System.out.println(String.format("%6d %-14s %10.1f %10.1f %10.1f %10.1f %8d%s",
+                                          users, OPERATIONS[i], latency.getCount() / seconds,
+                                          latency.getPercentileMicros(50) / 1000.0, p95 / 1000.0, p99 / 1000.0,
+                                          step.errors.get(i), missed ? "  missed" : ""));
+      }//end for
+      return met;
+   }//end report
+
+   /*
+    * One simulated user, until the ramp ends.
+    **/
+   private final class VirtualUser implements Runnable {
+      private final Account _account;
+      private final Random _random;
+
+      VirtualUser (Account account, long seed) {
+         this._account = account;
+         this._random = new Random(seed);
+      }//end VirtualUser
+
+      public void run () {
+         try{
+            // users do not all arrive at once
+            Thread.sleep((long) (this._random.nextDouble() * LoadGenerator.this._thinkMs));
+            int op = LOGIN;
+            while (LoadGenerator.this._running) {
+               Step step = LoadGenerator.this._step;
+               long begin = System.nanoTime();
+               boolean ok = perform(op);
+               if (ok)
+                  step.latency[op].recordNanos(System.nanoTime() - begin);
+               else
+                  step.errors.incrementAndGet(op);
+               Thread.sleep(thinkTime());
+               op = pick();
+            }//end while
+         }catch (InterruptedException e){
+            // the ramp ended.
+         }//end try
+      }//end run
+
+      private int pick () {
+         int r = this._random.nextInt(LoadGenerator.this._totalWeight);
+         for (int i = 0; i < OPERATIONS.length; ++i) {
+            r -= LoadGenerator.this._weights[i];
+            if (r < 0)
+               return i;
+         }//end for
+         return LOGIN;
+      }//end pick
+
+      private long thinkTime () {
+         return (long) (-Math.log(1.0 - this._random.nextDouble()) * LoadGenerator.this._thinkMs);
+      }//end thinkTime
+
+      private <T> T any (List<T> list) {
+         return list.get(this._random.nextInt(list.size()));
+      }//end any
+
+      /*
+       * Runs one operation through its menu handler, given the lines the
+       * user would type.
+       * @return false when it failed or asked for more input
+       **/
+      private boolean perform (int op) {
+         Messenger esql = LoadGenerator.this._esql;
+         String login = this._account.login;
+         StringBuilder input = new StringBuilder();
+         int chatId = any(this._account.chats);
+         switch (op) {
+            case LOGIN: input.append(login).append('\n').append(this._account.password).append('\n'); break;
+            case VIEW_CHATS: input.append("9\n"); break;
+            case VIEW_MESSAGES: input.append("9\nNo\n"); break;
+            case ADD_TO_CONTACT: input.append(any(this._account.partners)).append('\n'); break;
+            case CREATE_NEW_CHAT: input.append(this._random.nextBoolean() ? "group" : "private").append('\n'); break;
+         }//end switch
+
+         ErrorSink errors = new ErrorSink();
+         Session session = new Session(Thread.currentThread().getName(),
+                                       new ByteArrayInputStream(input.toString().getBytes()), SINK, errors);
+         Session.attach(session);
+         try{
+            boolean ok;
+            switch (op) {
+               case LOGIN:
+                  ok = Messenger.LogIn(esql) != null;
+                  break;
+               case VIEW_CHATS:
+                  Messenger.ViewChats(esql, login);
+                  ok = true;
+                  break;
+               case VIEW_MESSAGES:
+                  Messenger.ViewMessages(esql, login, chatId);
+                  ok = true;
+                  break;
+               case ADD_MESSAGE:
+                  // false when a member blocked the user
+                  ok = esql.sendMessage(login, chatId, "load test message " + this._random.nextInt());
+                  if (ok)
+                     LoadGenerator.this._messages.incrementAndGet();
+                  break;
+               case ADD_TO_CONTACT:
+                  Messenger.AddToContact(esql, login);
+                  ok = true;
+                  break;
+               default:
+                  // two different partners, a member is only added once
+                  List<String> partners = this._account.partners;
+                  Vector<Messenger.contacts> members = new Vector<Messenger.contacts>();
+                  int first = this._random.nextInt(partners.size());
+                  members.add(esql.new contacts(0, partners.get(first), "Y"));
+                  if (partners.size() > 1) {
+                     int second = this._random.nextInt(partners.size() - 1);
+                     if (second >= first)
+                        ++second;
+                     members.add(esql.new contacts(1, partners.get(second), "Y"));
+                  }//end if
+                  Messenger.CreateNewChat(esql, login, members);
+                  ok = true;
+                  break;
+            }//end switch
+            return ok && !errors.written;
+         }catch (SQLException e){
+            return false;
+         }catch (Session.Closed e){
+            return false;
+         }finally{
+            Session.attach(null);
+            session.close();
+         }//end try
+      }//end perform
+   }//end VirtualUser
+}//end LoadGenerator
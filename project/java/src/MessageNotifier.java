@@ -0,0 +1,328 @@
+/*
+ * Message notifier
+ * ================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class tells the open views of a chat about its new messages as
+ * they are committed, by any process, instead of the views polling
+ * MESSAGE. The message_notify trigger (create_indexes.sql) runs
+ * NOTIFY chat_<chat_id> for every message inserted; one connection per
+ * JVM LISTENs to the channels of the chats somebody has subscribed to and
+ * hands each notification to their subscribers.
+ *
+ * The pg73 driver speaks the version 2 protocol, where notifications
+ * carry no payload and are only read when a query runs on the
+ * connection, so the listener thread runs "select 1" on its own
+ * connection every messenger.notify.interval milliseconds (250 by
+ * default). The rows newer than the last ones fetched for the chat are
+ * then read once, whatever the number of subscribers, and every
+ * subscriber gets its own copies. Several messages committed within one
+ * interval arrive as one notification. Subscribers run on a dispatch
+ * thread, one at a time.
+ *
+ * Nothing is opened until the first subscribe().
+ *
+ */
+public class MessageNotifier {
+
+   public static final long DEFAULT_INTERVAL_MS = 250;
+
+   private static final String CHANNEL = "chat_";
+
+   /**
+    * Called after new messages were committed to a subscribed chat.
+    */
+   public interface Subscriber {
+      /**
+       * @param rows the new messages, oldest first; a subscriber that
+       *        subscribed after some of them were shown skips those
+       */
+      void newMessages (int chatId, List<Messenger.message> rows);
+   }//end Subscriber
+
+   /*
+    * The (msg_timestamp, msg_id) of the newest message fetched for a chat.
+    **/
+   private static class Cursor {
+      String stamp;
+      int mId;
+
+      Cursor (String stamp, int mId) {
+         this.stamp = stamp;
+         this.mId = mId;
+      }//end Cursor
+   }//end Cursor
+
+   private final Messenger _esql;
+   private final ConnectionPool _pool;
+   private final long _intervalMs;
+
+   private final ConcurrentHashMap<Integer, Set<Subscriber>> _subscribers =
+      new ConcurrentHashMap<Integer, Set<Subscriber>>();
+   private final ConcurrentHashMap<Integer, Cursor> _cursors = new ConcurrentHashMap<Integer, Cursor>();
+   // LISTEN and UNLISTEN statements for the listener thread to run
+   private final ConcurrentLinkedQueue<String> _commands = new ConcurrentLinkedQueue<String>();
+   private final ExecutorService _dispatch;
+   private Thread _listener = null;
+   private volatile boolean _running = true;
+
+   private final AtomicLong _polls = new AtomicLong(0);
+   private final AtomicLong _notifications = new AtomicLong(0);
+   private final AtomicLong _fetches = new AtomicLong(0);
+   private final AtomicLong _deliveries = new AtomicLong(0);
+   private final AtomicLong _reconnects = new AtomicLong(0);
+
+   public MessageNotifier (Messenger esql, ConnectionPool pool, long intervalMs) {
+      this._esql = esql;
+      this._pool = pool;
+      this._intervalMs = Math.max(1, intervalMs);
+      this._dispatch = Executors.newSingleThreadExecutor(new ThreadFactory() {
+         public Thread newThread (Runnable r) {
+            Thread thread = new Thread(r, "messenger-notify-dispatch");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }//end MessageNotifier
+
+   public static MessageNotifier fromSystemProperties (Messenger esql, ConnectionPool pool) {
+      return new MessageNotifier(esql, pool, Long.getLong("messenger.notify.interval", DEFAULT_INTERVAL_MS));
+   }//end fromSystemProperties
+
+   /**
+    * Starts telling a subscriber about the new messages of a chat.
+    *
+    * @param stamp msg_timestamp (as text) of the newest message it shows
+    * @param mId msg_id of that message
+    */
+   public synchronized void subscribe (int chatId, String stamp, int mId, Subscriber subscriber) {
+      Set<Subscriber> set = this._subscribers.get(chatId);
+      if (set == null) {
+         this._subscribers.put(chatId, set = new CopyOnWriteArraySet<Subscriber>());
+         this._commands.add("LISTEN " + CHANNEL + chatId);
+      }//end if
+      // the chat is fetched from the oldest cursor of its subscribers
+      Cursor cursor = this._cursors.get(chatId);
+      if (cursor == null)
+         this._cursors.put(chatId, new Cursor(stamp, mId));
+      else synchronized (cursor) {
+         if (compare(stamp, mId, cursor.stamp, cursor.mId) < 0) {
+            cursor.stamp = stamp;
+            cursor.mId = mId;
+         }//end if
+      }//end synchronized
+      set.add(subscriber);
+      start();
+   }//end subscribe
+
+   public synchronized void unsubscribe (int chatId, Subscriber subscriber) {
+      Set<Subscriber> set = this._subscribers.get(chatId);
+      if (set == null)
+         return;
+      set.remove(subscriber);
+      if (set.isEmpty()) {
+         this._subscribers.remove(chatId);
+         this._cursors.remove(chatId);
+         this._commands.add("UNLISTEN " + CHANNEL + chatId);
+      }//end if
+   }//end unsubscribe
+
+   private void start () {
+      if (this._listener != null || !this._running)
+         return;
+      this._listener = new Thread(new Runnable() {
+         public void run () {
+            listenLoop();
+         }
+      }, "messenger-notify-listener");
+      this._listener.setDaemon(true);
+      this._listener.start();
+   }//end start
+
+   /**
+    * Stops listening and closes the listener connection.
+    */
+   public void close () {
+      Thread listener;
+      synchronized (this) {
+         this._running = false;
+         listener = this._listener;
+      }//end synchronized
+      if (listener != null) {
+         listener.interrupt();
+         try{
+            listener.join();
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }//end try
+      }//end if
+      this._dispatch.shutdown();
+   }//end close
+
+   private void listenLoop () {
+      Connection conn = null;
+      while (this._running) {
+         try{
+            if (conn == null) {
+               conn = this._pool.openDedicated();
+               // a new connection listens to nothing, the queued commands
+               // are replaced by the chats subscribed now
+               this._commands.clear();
+               for (Integer chatId : this._subscribers.keySet())
+                  this._commands.add("LISTEN " + CHANNEL + chatId);
+            }//end if
+            Statement stmt = conn.createStatement();
+            try{
+               String command;
+               while ((command = this._commands.poll()) != null)
+                  stmt.execute(command);
+               // reads the notifications that arrived since the last poll
+               stmt.executeQuery("select 1").close();
+            }finally{
+               stmt.close();
+            }//end try
+            this._polls.incrementAndGet();
+            PGNotification[] notifications = ((PGConnection) conn).getNotifications();
+            if (notifications != null) {
+               // a chat notified several times since the last poll is fetched once
+               Set<String> channels = new LinkedHashSet<String>();
+               for (PGNotification n : notifications) {
+                  this._notifications.incrementAndGet();
+                  channels.add(n.getName());
+               }//end for
+               for (String channel : channels)
+                  dispatch(channel);
+            }//end if
+            Thread.sleep(this._intervalMs);
+         }catch (InterruptedException e){
+            // closed, the loop condition ends it.
+         }catch (SQLException e){
+            System.err.println(e.getMessage());
+            close(conn);
+            conn = null;
+            this._reconnects.incrementAndGet();
+            try{
+               Thread.sleep(Math.max(1000, this._intervalMs));
+            }catch (InterruptedException ignored){
+               // closed, the loop condition ends it.
+            }//end try
+         }//end try
+      }//end while
+      close(conn);
+   }//end listenLoop
+
+   private static void close (Connection conn) {
+      if (conn == null)
+         return;
+      try{
+         conn.close();
+      }catch (SQLException e){
+         // the connection is gone either way.
+      }//end try
+   }//end close
+
+   private void dispatch (String channel) {
+      if (channel == null || !channel.startsWith(CHANNEL))
+         return;
+      final int chatId;
+      try{
+         chatId = Integer.parseInt(channel.substring(CHANNEL.length()));
+      }catch (NumberFormatException e){
+         return;
+      }//end try
+      if (!this._subscribers.containsKey(chatId))
+         return;
+      this._dispatch.execute(new Runnable() {
+         public void run () {
+            try{
+               deliver(chatId);
+            }catch (Exception e){
+               System.err.println(e.getMessage());
+            }//end try
+         }
+      });
+   }//end dispatch
+
+   /*
+    * Fetches the new messages of a chat once and hands them to each of
+    * its subscribers. Runs on the dispatch thread.
+    **/
+   private void deliver (int chatId) throws SQLException {
+      Cursor cursor = this._cursors.get(chatId);
+      Set<Subscriber> set = this._subscribers.get(chatId);
+      if (cursor == null || set == null)
+         return;
+      String stamp;
+      int mId;
+      synchronized (cursor) {
+         stamp = cursor.stamp;
+         mId = cursor.mId;
+      }//end synchronized
+      Vector<Messenger.message> rows = new Vector<Messenger.message>();
+      Messenger.loadNewMessages(this._esql, chatId, stamp, mId, rows);
+      this._fetches.incrementAndGet();
+      if (rows.isEmpty())
+         return;
+      Messenger.message last = rows.lastElement();
+      synchronized (cursor) {
+         if (compare(last.stamp, last.mId, cursor.stamp, cursor.mId) > 0) {
+            cursor.stamp = last.stamp;
+            cursor.mId = last.mId;
+         }//end if
+      }//end synchronized
+      for (Subscriber subscriber : set) {
+         // the rows are the subscriber's to keep and change
+         List<Messenger.message> copies = new Vector<Messenger.message>(rows.size());
+         for (Messenger.message m : rows)
+            copies.add(m.copy());
+         this._deliveries.incrementAndGet();
+         try{
+            subscriber.newMessages(chatId, copies);
+         }catch (Exception e){
+            System.err.println(e.getMessage());
+         }//end try
+      }//end for
+   }//end deliver
+
+   /**
+    * Orders two (msg_timestamp, msg_id) cursors. The timestamps are the
+    * text of a timestamp column, whose ISO format sorts as text.
+    */
+   public static int compare (String stamp, int mId, String otherStamp, int otherId) {
+      int c = stamp.compareTo(otherStamp);
+      if (c != 0)
+         return c;
+      return mId < otherId ? -1 : (mId == otherId ? 0 : 1);
+   }//end compare
+
+   public String toString () {
+      return String.format("%d chats listened to, %d polls, %d notifications, %d fetches, %d deliveries, %d reconnects",
+                           this._subscribers.size(), this._polls.get(), this._notifications.get(),
+                           this._fetches.get(), this._deliveries.get(), this._reconnects.get());
+   }//end toString
+}//end MessageNotifier
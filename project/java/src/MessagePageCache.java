@@ -0,0 +1,191 @@
+/*
+ * Message page cache
+ * ==================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class keeps the message pages of recently viewed chats in memory,
+ * keyed by chat_id and the (msg_timestamp, msg_id) cursor the page starts
+ * after, so switching back to a chat does not run the history query
+ * again. It is bounded by the estimated bytes of the cached rows and
+ * drops the least recently used pages first.
+ *
+ * Messenger invalidates every page of a chat right after it adds, edits
+ * or deletes a message of it or deletes it. A page loaded while the chat
+ * changed is not cached: the loader reads the version of the chat
+ * before its query and put() checks it did not change. Changes made by
+ * other processes are not seen until the page is evicted or older than
+ * messenger.pages.ttl milliseconds (60000 by default).
+ *
+ */
+public class MessagePageCache {
+
+   public static final long DEFAULT_CAPACITY_BYTES = 16L * 1024 * 1024;
+   public static final long DEFAULT_TTL_MS = 60000;
+
+   // estimated size of a cached row without its strings, and of a page entry
+   private static final int ROW_OVERHEAD = 96;
+   private static final int PAGE_OVERHEAD = 160;
+
+   private static final int VERSIONS = 1024;
+
+   /*
+    * One cached page.
+    **/
+   private static class Page {
+      final List<Messenger.message> rows;
+      final long bytes;
+      final long loaded = System.currentTimeMillis();
+
+      Page (List<Messenger.message> rows) {
+         this.rows = rows;
+         long bytes = PAGE_OVERHEAD;
+         for (Messenger.message row : rows)
+            bytes += ROW_OVERHEAD + 2L * (length(row.msg) + length(row.sender) + length(row.date) + length(row.stamp));
+         this.bytes = bytes;
+      }//end Page
+   }//end Page
+
+   private final long _capacityBytes;
+   private final long _ttlMs;
+   private long _bytes = 0;
+
+   private final LinkedHashMap<String, Page> _pages = new LinkedHashMap<String, Page>(64, 0.75f, true);
+   // the cached page keys of every chat, for invalidation
+   private final Map<Integer, Set<String>> _byChat = new HashMap<Integer, Set<String>>();
+   // bumped by every invalidation of a chat, chats share them by chat_id
+   // modulo VERSIONS so the table stays small
+   private final long[] _versions = new long[VERSIONS];
+
+   private long _hits = 0;
+   private long _misses = 0;
+   private long _evictions = 0;
+   private long _invalidations = 0;
+
+   public MessagePageCache (long capacityBytes, long ttlMs) {
+      this._capacityBytes = capacityBytes;
+      this._ttlMs = ttlMs;
+   }//end MessagePageCache
+
+   private static int length (String s) {
+      return s == null ? 0 : s.length();
+   }//end length
+
+   private static String key (int chatId, String stamp, int mId) {
+      return chatId + "|" + stamp + "|" + mId;
+   }//end key
+
+   /**
+    * @return the version of a chat, to be given to put() with its page
+    */
+   public synchronized long version (int chatId) {
+      return this._versions[(chatId & 0x7fffffff) % VERSIONS];
+   }//end version
+
+   /**
+    * Appends copies of the rows of a cached page to list, the viewers of a
+    * chat renumber their rows and must not share them.
+    *
+    * @return false when the page is not cached
+    */
+   public synchronized boolean get (int chatId, String stamp, int mId, List<Messenger.message> list) {
+      String key = key(chatId, stamp, mId);
+      Page page = this._pages.get(key);
+      if (page != null && System.currentTimeMillis() - page.loaded > this._ttlMs) {
+         drop(chatId, key);
+         page = null;
+      }//end if
+      if (page == null) {
+         ++this._misses;
+         return false;
+      }//end if
+      ++this._hits;
+      for (Messenger.message row : page.rows)
+         list.add(row.copy());
+      return true;
+   }//end get
+
+   /**
+    * Caches a page unless its chat changed since version was read.
+    */
+   public synchronized void put (int chatId, String stamp, int mId, long version, List<Messenger.message> rows) {
+      if (version != version(chatId))
+         return;
+      String key = key(chatId, stamp, mId);
+      drop(chatId, key);
+      List<Messenger.message> copies = new ArrayList<Messenger.message>(rows.size());
+      for (Messenger.message row : rows)
+         copies.add(row.copy());
+      Page page = new Page(copies);
+      if (page.bytes > this._capacityBytes)
+         return;
+      this._pages.put(key, page);
+      this._bytes += page.bytes;
+      Set<String> keys = this._byChat.get(chatId);
+      if (keys == null)
+         this._byChat.put(chatId, keys = new HashSet<String>());
+      keys.add(key);
+
+      Iterator<Map.Entry<String, Page>> eldest = this._pages.entrySet().iterator();
+      while (this._bytes > this._capacityBytes && eldest.hasNext()) {
+         Map.Entry<String, Page> e = eldest.next();
+         eldest.remove();
+         this._bytes -= e.getValue().bytes;
+         int chat = Integer.parseInt(e.getKey().substring(0, e.getKey().indexOf('|')));
+         Set<String> chatKeys = this._byChat.get(chat);
+         chatKeys.remove(e.getKey());
+         if (chatKeys.isEmpty())
+            this._byChat.remove(chat);
+         ++this._evictions;
+      }//end while
+   }//end put
+
+   /**
+    * Drops every cached page of a chat.
+    */
+   public synchronized void invalidate (int chatId) {
+      ++this._versions[(chatId & 0x7fffffff) % VERSIONS];
+      ++this._invalidations;
+      Set<String> keys = this._byChat.remove(chatId);
+      if (keys == null)
+         return;
+      for (String key : keys) {
+         Page page = this._pages.remove(key);
+         if (page != null)
+            this._bytes -= page.bytes;
+      }//end for
+   }//end invalidate
+
+   private void drop (int chatId, String key) {
+      Page page = this._pages.remove(key);
+      if (page == null)
+         return;
+      this._bytes -= page.bytes;
+      Set<String> keys = this._byChat.get(chatId);
+      keys.remove(key);
+      if (keys.isEmpty())
+         this._byChat.remove(chatId);
+   }//end drop
+
+   public synchronized String toString () {
+      long lookups = this._hits + this._misses;
+      return String.format("%d pages of %d chats, %d KB of %d KB, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations",
+                           this._pages.size(), this._byChat.size(), this._bytes / 1024, this._capacityBytes / 1024,
+                           this._hits, this._misses, lookups == 0 ? 0.0 : 100.0 * this._hits / lookups,
+                           this._evictions, this._invalidations);
+   }//end toString
+}//end MessagePageCache
@@ -24,6 +24,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -33,11 +34,16 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.io.IOException;
 import java.lang.Integer;
 import java.io.Console;
 import java.util.Vector;
 import java.io.DataInputStream;
+import java.io.PrintStream;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -46,13 +52,43 @@ import java.io.DataInputStream;
  */
 public class Messenger {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections, every operation borrows one.
+   private ConnectionPool _pool = null;
+
+   // sent messages waiting to be written in a batch, see SendQueue.
+   private SendQueue _sends = null;
+   // tells open chat views about messages committed by anyone
+   private MessageNotifier _notifier = null;
+   // removes the rows of deleted chats in the background
+   private PurgeWorker _purge = null;
+
+   // contact and block lists of recently active users, see SocialGraphCache.
+   private final SocialGraphCache _graph = new SocialGraphCache (
+      Integer.getInteger ("messenger.graph.capacity", SocialGraphCache.DEFAULT_CAPACITY));
+
+   // recently viewed message pages, see MessagePageCache.
+   private final MessagePageCache _pages = new MessagePageCache (
+      Long.getLong ("messenger.pages.capacity", MessagePageCache.DEFAULT_CAPACITY_BYTES),
+      Long.getLong ("messenger.pages.ttl", MessagePageCache.DEFAULT_TTL_MS));
+
+   // keys of new messages, chats and user lists, see IdAllocator.
+   private final IdAllocator _ids = new IdAllocator (this,
+      Integer.getInteger ("messenger.ids.blockSize", IdAllocator.DEFAULT_BLOCK_SIZE));
 
    // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   // This variable can be global for convenience, it reads from the
+   // Session bound to the calling thread (the console by default).
+   static BufferedReader in = Session.input();
+
+   // command names by menu choice, used for the per command latency stats
+   static final String[] LOGIN_COMMANDS = {null, "CreateUser", "LogIn", "ChangePassword"};
+   static final String[] USER_COMMANDS = {null, "AddToContact", "ListContacts", "RemoveContact",
+                                          "AddToBlock", "ListBlocks", "RemoveBlocked", null, "DeleteAccount"};
+   static final String[] MESSAGE_COMMANDS = {null, null, "UpdateStatus", "CreateChat", "ViewStatus", null};
+   static final String VIEW_CHATS_KEYS = "D";
+   static final String[] VIEW_CHATS_COMMANDS = {"DeleteChat"};
+   static final String VIEW_MESSAGES_KEYS = "EAMD";
+   static final String[] VIEW_MESSAGES_COMMANDS = {"EditMessage", "addMessage", "addMember", "DeleteMessage"};
     public class message{
         public int id = 0;
         public int mId = 0;
@@ -60,6 +96,10 @@ public class Messenger {
         public String msg = "";
         public String sender = "";
         public String date = "";
+        // exact msg_timestamp, used as the keyset pagination cursor
+        public String stamp = "";
+        // search rank, the keyset cursor of search results
+        public String rank = "";
 
         public message(int i, int cid, int mid, String m, String s, String d){
             id = i;
@@ -69,6 +109,13 @@ public class Messenger {
             sender = s;
             date = d;
         }
+
+        public message copy(){
+            message row = new message(id, cId, mId, msg, sender, date);
+            row.stamp = stamp;
+            row.rank = rank;
+            return row;
+        }
     }
     
     public class contacts{
@@ -121,8 +168,21 @@ public class Messenger {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // opens the pool of physical connections
+         this._pool = ConnectionPool.fromSystemProperties(url, user, passwd);
+         this._sends = SendQueue.fromSystemProperties(this._pool);
+         this._sends.setListener(new SendQueue.Listener() {
+            public void written (int chatId, int msgId) {
+               _pages.invalidate(chatId);
+            }
+         });
+         this._notifier = MessageNotifier.fromSystemProperties(this, this._pool);
+         this._purge = PurgeWorker.fromSystemProperties(this._pool);
+         this._purge.setListener(new PurgeWorker.Listener() {
+            public void purged (int chatId) {
+               _pages.invalidate(chatId);
+            }
+         });
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -135,18 +195,26 @@ public class Messenger {
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string, values given as '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      ConnectionPool.PooledConnection conn = this._pool.borrow ();
+      long begin = System.nanoTime ();
+      int rows = -1;
+      try{
+         // fetches the cached statement for this query shape
+         PreparedStatement stmt = conn.prepare (sql, params);
 
-      // close the instruction
-      stmt.close ();
+         // issues the update instruction
+         rows = stmt.executeUpdate ();
+         return rows;
+      }finally{
+         QueryStats.record (sql, begin, rows, params);
+         this._pool.release (conn);
+      }//end try
    }//end executeUpdate
 
 /*
@@ -162,16 +230,25 @@ public class Messenger {
       return returnValue;
    }//end*/
    
-   public String executeQueryString (String query) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement();
-
-		// issues the query instruction
-		ResultSet rs = stmt.executeQuery(query);
-		rs.next();
-		String retVal = rs.getString(1);
-		stmt.close();
-		return retVal;
+   public String executeQueryString (String query, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection conn = this._pool.borrow();
+		long begin = System.nanoTime ();
+		int rows = -1;
+		try{
+			// fetches the cached statement for this query shape
+			PreparedStatement stmt = conn.prepare(query, params);
+
+			// issues the query instruction
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			String retVal = rs.getString(1);
+			rs.close();
+			rows = 1;
+			return retVal;
+		}finally{
+			QueryStats.record (query, begin, rows, params);
+			this._pool.release(conn);
+		}
 	}
    
    /**
@@ -183,156 +260,143 @@ public class Messenger {
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query, boolean outputHeader) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+   public int executeQueryAndPrintResult (String query, boolean outputHeader, Object... params) throws SQLException {
+      ConnectionPool.PooledConnection conn = this._pool.borrow ();
+      long begin = System.nanoTime ();
+      int rows = -1;
+      try{
+         // fetches the cached statement for this query shape
+         PreparedStatement stmt = conn.prepare (query, params);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+
+         // iterates through the result set and output them to standard out.
+         while (rs.next()){
+   	 if(outputHeader){
+   	    for(int i = 1; i <= numCol; i++){
+   		System.out.print(rsmd.getColumnName(i) + "\t");
+   	    }
+   	    System.out.println();
+   	    outputHeader = false;
+   	 }
+            for (int i=1; i<=numCol; ++i)
+               System.out.print (rs.getString (i) + "\t");
+            System.out.println ();
+            ++rowCount;
+         }//end while
+         rs.close ();
+         rows = rowCount;
+         return rowCount;
+      }finally{
+         QueryStats.record (query, begin, rows, params);
+         this._pool.release (conn);
+      }//end try
    }//end executeQuery
    
    
    
-   public int get_chat (String query, Vector<chat> list) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = list.size();
-      int id = 0;
-      int cid = 0;
-      int mid = 0;
-      String msg;
-      String cType;
-      String s;
-      String d;
-      String init;
-
-      // iterates through the result set and output them to standard out.
-      while (rs.next()){
-         id = rowCount;
-         cType = rs.getString (1);
-         cid = Integer.parseInt(rs.getString (2));
-         mid = Integer.parseInt(rs.getString (3));
-         msg = rs.getString (4);
-         d = rs.getString (5);
-         s = rs.getString (6);
-         init = rs.getString (7);
-         
-		 chat c1 = new chat(id, cid, mid, msg, cType, s, d, init);	
-            list.addElement(c1);
-            //System.out.print (rs.getString (i) + "\t");
-         //System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+   public int get_chat (String query, final Vector<chat> list, Object... params) throws SQLException {
+      // a user may be in thousands of chats, the rows are streamed into list
+      streamQuery (query, new StreamingQuery.RowHandler () {
+         public void row (ResultSet rs) throws SQLException {
+            String cType = rs.getString (1);
+            int cid = Integer.parseInt(rs.getString (2));
+            int mid = Integer.parseInt(rs.getString (3));
+            String msg = rs.getString (4);
+            String d = rs.getString (5);
+            String s = rs.getString (6);
+            String init = rs.getString (7);
+
+            list.addElement(new chat(list.size(), cid, mid, msg, cType, s, d, init));
+         }
+      }, params);
+      return list.size();
    }//end executeQuery
 
-   public int get_contact(String query, Vector<contacts> list) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-      int id = 0;
-      String member ="";
-      String select = "N";
-
-      // iterates through the result set and output them to standard out.
-      while (rs.next()){
-         id = rowCount;
-         member = rs.getString (1);
-         
-		 contacts c1 = new contacts(id, member, select);	
-            list.addElement(c1);
-            //System.out.print (rs.getString (i) + "\t");
-         //System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+   public int get_contact(String query, final Vector<contacts> list, Object... params) throws SQLException {
+      // contact lists can be long, the rows are streamed into list
+      final int first = list.size();
+      return streamQuery (query, new StreamingQuery.RowHandler () {
+         public void row (ResultSet rs) throws SQLException {
+            list.addElement(new contacts(list.size() - first, rs.getString (1), "N"));
+         }
+      }, params);
    }//end executeQuery  
    
-   public int get_message(String query, Vector<message> list) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
+   /**
+    * Fills list with the contacts of a user, from the social graph cache.
+    *
+    * @return the number of contacts
+    */
+   public int get_contact_list(String user, Vector<contacts> list) throws SQLException {
       int rowCount = 0;
-      int id = 0;
-      int cid = 0;
-      int mid = 0;
-      String msg;
-      String sender;
-      String d;
-
-      // iterates through the result set and output them to standard out.
-      while (rs.next()){
-         id = rowCount;
-         cid = Integer.parseInt(rs.getString (1));
-         mid = Integer.parseInt(rs.getString (2));
-         msg = rs.getString (3);
-         d = rs.getString (4);
-         sender = rs.getString (5);
-         
-		 message c1 = new message(id, cid, mid, msg, sender, d);	
-            list.addElement(c1);
-            //System.out.print (rs.getString (i) + "\t");
-         //System.out.println ();
+      for (String member : listMembers (user, SocialGraphCache.CONTACT)){
+         list.addElement(new contacts(rowCount, member, "N"));
          ++rowCount;
-      }//end while
-      stmt.close ();
+      }//end for
       return rowCount;
+   }//end get_contact_list
+
+   public int get_message(String query, Vector<message> list, Object... params) throws SQLException {
+      ConnectionPool.PooledConnection conn = this._pool.borrow ();
+      long begin = System.nanoTime ();
+      int rows = -1;
+      try{
+         // fetches the cached statement for this query shape
+         PreparedStatement stmt = conn.prepare (query, params);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rowCount = 0;
+         int id = 0;
+         int cid = 0;
+         int mid = 0;
+         String msg;
+         String sender;
+         String d;
+
+         // iterates through the result set and output them to standard out.
+         while (rs.next()){
+            id = rowCount;
+            cid = Integer.parseInt(rs.getString (1));
+            mid = Integer.parseInt(rs.getString (2));
+            msg = rs.getString (3);
+            d = rs.getString (4);
+            sender = rs.getString (5);
+         
+   		 message c1 = new message(id, cid, mid, msg, sender, d);	
+   		 if (numCol >= 6)
+   			c1.stamp = rs.getString (6);
+   		 if (numCol >= 7)
+   			c1.rank = rs.getString (7);
+               list.addElement(c1);
+               //System.out.print (rs.getString (i) + "\t");
+            //System.out.println ();
+            ++rowCount;
+         }//end while
+         rs.close ();
+         rows = rowCount;
+         return rowCount;
+      }finally{
+         QueryStats.record (query, begin, rows, params);
+         this._pool.release (conn);
+      }//end try
    }//end executeQuery
 
    /**
@@ -344,34 +408,68 @@ public class Messenger {
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-      // creates a statement object 
-      Statement stmt = this._connection.createStatement (); 
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+      ConnectionPool.PooledConnection conn = this._pool.borrow ();
+      long begin = System.nanoTime ();
+      int rows = -1;
+      try{
+         // fetches the cached statement for this query shape 
+         PreparedStatement stmt = conn.prepare (query, params); 
  
-      // issues the query instruction 
-      ResultSet rs = stmt.executeQuery (query); 
+         // issues the query instruction 
+         ResultSet rs = stmt.executeQuery (); 
  
-      /* 
-       ** obtains the metadata object for the returned result set.  The metadata 
-       ** contains row and column info. 
-       */ 
-      ResultSetMetaData rsmd = rs.getMetaData (); 
-      int numCol = rsmd.getColumnCount (); 
-      int rowCount = 0; 
+         /* 
+          ** obtains the metadata object for the returned result set.  The metadata 
+          ** contains row and column info. 
+          */ 
+         ResultSetMetaData rsmd = rs.getMetaData (); 
+         int numCol = rsmd.getColumnCount (); 
+         int rowCount = 0; 
  
-      // iterates through the result set and saves the data returned by the query. 
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>(); 
-      while (rs.next()){
-          List<String> record = new ArrayList<String>(); 
-         for (int i=1; i<=numCol; ++i) 
-            record.add(rs.getString (i)); 
-         result.add(record); 
-      }//end while 
-      stmt.close (); 
-      return result; 
+         // iterates through the result set and saves the data returned by the query. 
+         boolean outputHeader = false;
+         List<List<String>> result  = new ArrayList<List<String>>(); 
+         while (rs.next()){
+             List<String> record = new ArrayList<String>(); 
+            for (int i=1; i<=numCol; ++i) 
+               record.add(rs.getString (i)); 
+            result.add(record); 
+         }//end while 
+         rs.close (); 
+         rows = result.size ();
+         return result; 
+      }finally{
+         QueryStats.record (query, begin, rows, params);
+         this._pool.release (conn);
+      }//end try
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to execute a query whose result may be large. The rows are
+    * read through a server side cursor, messenger.fetchSize at a time, and
+    * handed to handler one by one, so memory stays constant whatever the
+    * size of the result.
+    *
+    * @param query the input query string
+    * @param handler receives every row
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    * @see StreamingQuery
+    */
+   public int streamQuery (String query, StreamingQuery.RowHandler handler, Object... params) throws SQLException {
+      ConnectionPool.PooledConnection conn = this._pool.borrow ();
+      long begin = System.nanoTime ();
+      int rows = -1;
+      try{
+         rows = StreamingQuery.stream (conn, query, StreamingQuery.fetchSize (), handler, params);
+         return rows;
+      }finally{
+         QueryStats.record (query, begin, rows, params);
+         this._pool.release (conn);
+      }//end try
+   }//end streamQuery
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
@@ -380,52 +478,572 @@ public class Messenger {
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
-
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+   public int executeQuery (String query, Object... params) throws SQLException {
+       ConnectionPool.PooledConnection conn = this._pool.borrow ();
+       long begin = System.nanoTime ();
+       int rows = -1;
+       try{
+          // fetches the cached statement for this query shape
+          PreparedStatement stmt = conn.prepare (query, params);
+
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery ();
+
+          int rowCount = 0;
+
+          // iterates through the result set and count nuber of results.
+          if(rs.next()){
+             rowCount++;
+          }//end while
+          rs.close ();
+          rows = rowCount;
+          return rowCount;
+       }finally{
+          QueryStats.record (query, begin, rows, params);
+          this._pool.release (conn);
+       }//end try
    }
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current 
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys. currval is session
+    * local, so with the connection pool it is only meaningful when the
+    * same pooled connection ran nextval; prefer getNextSeqVal.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-	
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+	ConnectionPool.PooledConnection conn = this._pool.borrow ();
+	try{
+		PreparedStatement stmt = conn.prepare ("Select currval(?)", sequence);
+		
+		ResultSet rs = stmt.executeQuery ();
+		int retVal = -1;
+		if (rs.next())
+			retVal = rs.getInt(1);
+		rs.close ();
+		return retVal;
+	}finally{
+		this._pool.release (conn);
+	}
+   }
+
+   /**
+    * Method to reserve the next value of a sequence. Unlike currval this
+    * does not depend on which pooled connection issued the insert, so the
+    * key can be fetched first and then inserted explicitly. Values come
+    * from blocks reserved ahead by IdAllocator, most calls do not query.
+    *
+    * @param sequence name of the DB sequence
+    * @return next value of a sequence
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int getNextSeqVal(String sequence) throws SQLException {
+	return this._ids.next (sequence);
    }
 
+   // most logins looked up by one member insert, longer member lists are
+   // split into power of two chunks so only a handful of statement shapes get cached
+   private static final int MAX_ROWS_PER_INSERT = 128;
+
    /**
-    * Method to close the physical connection if it is open.
+    * Method to create users, each with an empty block and contact list, in
+    * one transaction: either every user is created or none is. The rows
+    * are inserted MAX_ROWS_PER_INSERT users per statement.
+    *
+    * @param users login, password and phone number of every user
+    * @throws java.sql.SQLException when any of the users could not be created
     */
-   public void cleanup(){
+   public void createUsers (List<String[]> users) throws SQLException {
+      // reserved before borrowing: a refill of the IdAllocator borrows a
+      // connection of its own and must not wait on the one held here.
+      int[] listIds = new int[users.size () * 2];
+      for (int i = 0; i < listIds.length; ++i)
+         listIds[i] = getNextSeqVal ("user_list_list_id_seq");
+
+      ConnectionPool.PooledConnection conn = this._pool.borrow ();
+      try{
+         conn.getConnection ().setAutoCommit (false);
+         int done = 0;
+         while (done < users.size ()) {
+            int rows = MAX_ROWS_PER_INSERT;
+            while (rows > users.size () - done)
+               rows /= 2;
+
+            StringBuilder lists = new StringBuilder ("insert into user_list(list_id, list_type) values ");
+            StringBuilder usrs = new StringBuilder ("insert into usr(login, password, phoneNum, block_list, contact_list) values ");
+            Object[] listParams = new Object[rows * 2];
+            Object[] usrParams = new Object[rows * 5];
+            for (int i = 0; i < rows; ++i) {
+               String[] user = users.get (done + i);
+               int blockId = listIds[(done + i) * 2];
+               int contactId = listIds[(done + i) * 2 + 1];
+               lists.append (i == 0 ? "(?, 'block'), (?, 'contact')" : ", (?, 'block'), (?, 'contact')");
+               usrs.append (i == 0 ? "(?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?)");
+               listParams[i * 2] = blockId;
+               listParams[i * 2 + 1] = contactId;
+               usrParams[i * 5] = user[0];
+               usrParams[i * 5 + 1] = user[1];
+               usrParams[i * 5 + 2] = user[2];
+               usrParams[i * 5 + 3] = blockId;
+               usrParams[i * 5 + 4] = contactId;
+            }//end for
+            update (conn, lists.toString (), listParams);
+            update (conn, usrs.toString (), usrParams);
+            done += rows;
+         }//end while
+         conn.getConnection ().commit ();
+      }catch (SQLException e){
+         rollback (conn);
+         throw e;
+      }finally{
+         endTransaction (conn);
+      }//end try
+   }//end createUsers
+
+   public void createUser (String login, String password, String phone) throws SQLException {
+      List<String[]> users = new ArrayList<String[]>(1);
+      users.add (new String[] {login, password, phone});
+      createUsers (users);
+   }//end createUser
+
+   /**
+    * @return true when the credentials are right and the account is not
+    *         deleted, which is refused while its rows are purged
+    */
+   public boolean checkLogin (String login, String password) throws SQLException {
+      return executeQuery ("SELECT * FROM Usr u WHERE login = ? AND password = ? " +
+                           "AND NOT EXISTS (SELECT 1 FROM Usr_Tombstone t WHERE t.user_id = u.user_id)",
+                           login, password) > 0;
+   }//end checkLogin
+
+   /**
+    * @return false when the old password was wrong
+    */
+   public boolean changePassword (String login, String oldPassword, String newPassword) throws SQLException {
+      return executeUpdate ("update usr set password = ? where login = ? and password = ? " +
+                            "and not exists (select 1 from usr_tombstone t where t.user_id = usr.user_id)",
+                            newPassword, login, oldPassword) > 0;
+   }//end changePassword
+
+   /**
+    * Deletes an account in two steps: the credentials are checked and a
+    * tombstone recorded in one statement, which revokes the login at once,
+    * then PurgeWorker removes the chats, messages and lists of the user in
+    * the background.
+    *
+    * @return false when the credentials were wrong
+    */
+   public boolean deleteAccount (String login, String password) throws SQLException {
+      int deleted = executeUpdate ("insert into usr_tombstone (user_id, login, requested) " +
+                                   "select u.user_id, u.login, current_timestamp from usr u where u.login = ? and u.password = ? " +
+                                   "and not exists (select 1 from usr_tombstone t where t.user_id = u.user_id)",
+                                   login, password);
+      if (deleted == 0)
+         return false;
+      forgetUser (login);
+      this._purge.wake ();
+      return true;
+   }//end deleteAccount
+
+   /**
+    * Method to create a chat and all of its members in one transaction,
+    * so a failure never leaves a half created chat behind. The creator
+    * is added as a member as well.
+    *
+    * @param initSender login of the user creating the chat
+    * @param chatType 'group' or 'private'
+    * @param members logins of the other members
+    * @return the chat_id of the new chat
+    * @throws java.sql.SQLException when the chat could not be created
+    */
+   public int createChat (String initSender, String chatType, List<String> members) throws SQLException {
+      // reserved before borrowing, see createUsers.
+      int chatId = getNextSeqVal ("chat_chat_id_seq");
+
+      ConnectionPool.PooledConnection conn = this._pool.borrow ();
+      try{
+         conn.getConnection ().setAutoCommit (false);
+
+         conn.prepare ("insert into chat(chat_id, init_sender_id, chat_type) " +
+                       "select ?, user_id, ? from usr where login = ?",
+                       chatId, chatType, initSender).executeUpdate ();
+
+         List<String> all = new ArrayList<String>(members.size () + 1);
+         all.add (initSender);
+         all.addAll (members);
+         insertMembers (conn, chatId, all);
+
+         conn.getConnection ().commit ();
+         return chatId;
+      }catch (SQLException e){
+         rollback (conn);
+         throw e;
+      }finally{
+         endTransaction (conn);
+      }//end try
+   }//end createChat
+
+   /**
+    * Method to add members to an existing chat in one transaction, either
+    * every member is added or none is.
+    *
+    * @param chatId the chat the members join
+    * @param members logins of the new members
+    * @return the number of members added
+    * @throws java.sql.SQLException when any of the members could not be added
+    */
+   public int addChatMembers (int chatId, List<String> members) throws SQLException {
+      ConnectionPool.PooledConnection conn = this._pool.borrow ();
       try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
+         conn.getConnection ().setAutoCommit (false);
+         int added = insertMembers (conn, chatId, members);
+         conn.getConnection ().commit ();
+         return added;
       }catch (SQLException e){
-         // ignored.
+         rollback (conn);
+         throw e;
+      }finally{
+         endTransaction (conn);
       }//end try
+   }//end addChatMembers
+
+   /*
+    * Inserts chat_list rows with insert ... select statements that look the
+    * user ids up by login, at most MAX_ROWS_PER_INSERT rows per round trip.
+    * Duplicate logins are skipped, unknown ones fail the insert.
+    */
+   private int insertMembers (ConnectionPool.PooledConnection conn, int chatId, List<String> members) throws SQLException {
+      LinkedHashSet<String> logins = new LinkedHashSet<String>();
+      for (String member : members)
+         logins.add (member.trim ());
+      List<String> unique = new ArrayList<String>(logins);
+      int inserted = 0;
+      int done = 0;
+      while (done < unique.size ()) {
+         int rows = MAX_ROWS_PER_INSERT;
+         while (rows > unique.size () - done)
+            rows /= 2;
+
+         StringBuilder sql = new StringBuilder ("insert into chat_list(chat_id, member_id) select ?, user_id from usr where login in (");
+         Object[] params = new Object[rows + 1];
+         params[0] = chatId;
+         for (int i = 0; i < rows; ++i) {
+            sql.append (i == 0 ? "?" : ", ?");
+            params[i + 1] = unique.get (done + i);
+         }//end for
+         sql.append (")");
+         long begin = System.nanoTime ();
+         int changed = -1;
+         try{
+            changed = conn.prepare (sql.toString (), params).executeUpdate ();
+         }finally{
+            QueryStats.record (sql.toString (), begin, changed, params);
+         }//end try
+         if (changed < rows)
+            throw new SQLException ("No such user among " + unique.subList (done, done + rows));
+         inserted += changed;
+         done += rows;
+      }//end while
+      return inserted;
+   }//end insertMembers
+
+   private static int update (ConnectionPool.PooledConnection conn, String sql, Object[] params) throws SQLException {
+      long begin = System.nanoTime ();
+      int rows = -1;
+      try{
+         rows = conn.prepare (sql, params).executeUpdate ();
+         return rows;
+      }finally{
+         QueryStats.record (sql, begin, rows, params);
+      }//end try
+   }//end update
+
+   private static void rollback (ConnectionPool.PooledConnection conn) {
+      try{
+         conn.getConnection ().rollback ();
+      }catch (SQLException e){
+         // ignored, the original error is reported.
+      }//end try
+   }//end rollback
+
+   /*
+    * Restores autocommit and gives the connection back to the pool.
+    */
+   private void endTransaction (ConnectionPool.PooledConnection conn) {
+      try{
+         conn.getConnection ().setAutoCommit (true);
+      }catch (SQLException e){
+         // ignored, the pool validates the connection on the next borrow.
+      }//end try
+      this._pool.release (conn);
+   }//end endTransaction
+
+   /**
+    * Loads the contact and block list of a user into the social graph
+    * cache, replacing what was cached before. Two queries: the list ids
+    * from USR, then the members of both lists with their status.
+    *
+    * @param login the user whose lists are loaded
+    * @return the loaded lists, null when the user does not exist
+    * @throws java.sql.SQLException when the lists could not be read
+    */
+   public SocialGraphCache.Lists loadSocialGraph (String login) throws SQLException {
+      List<List<String>> rows = executeQueryAndReturnResult (
+         "select contact_list, block_list, status from usr where login = ?", login);
+      if (rows.isEmpty ())
+         return null;
+      List<String> usr = rows.get (0);
+      SocialGraphCache.Lists lists = new SocialGraphCache.Lists (parseId (usr.get (0)), parseId (usr.get (1)));
+      this._graph.putUser (login, usr.get (2));
+
+      rows = executeQueryAndReturnResult (
+         "select c.list_id, u.login, u.status from user_list_contains c, usr u " +
+         "where c.member_id = u.user_id and c.list_id in (?, ?)",
+         lists.contactListId, lists.blockListId);
+      for (List<String> row : rows){
+         String listType = parseId (row.get (0)) == lists.blockListId ? SocialGraphCache.BLOCK : SocialGraphCache.CONTACT;
+         lists.load (listType, row.get (1));
+         this._graph.putUser (row.get (1), row.get (2));
+      }//end for
+      this._graph.put (login, lists);
+      return lists;
+   }//end loadSocialGraph
+
+   /*
+    * List id read as text, 0 when it is null.
+    **/
+   private static int parseId (String id) {
+      return id == null ? 0 : Integer.parseInt (id.trim ());
+   }//end parseId
+
+   /*
+    * Cached lists of a user, loaded on a miss. Null when the user does not exist.
+    */
+   private SocialGraphCache.Lists socialGraph (String login) throws SQLException {
+      SocialGraphCache.Lists lists = this._graph.get (login);
+      return lists != null ? lists : loadSocialGraph (login);
+   }//end socialGraph
+
+   /**
+    * @return true when a user with this login exists, from the cache when
+    *         the user is known
+    */
+   public boolean userExists (String login) throws SQLException {
+      return userStatus (login) != null;
+   }//end userExists
+
+   /**
+    * @return the status of a user ("" when it has none), null when the user
+    *         does not exist
+    */
+   public String userStatus (String login) throws SQLException {
+      String status = this._graph.status (login);
+      if (status != null)
+         return status;
+      List<List<String>> rows = executeQueryAndReturnResult ("select status from usr where login = ?", login);
+      if (rows.isEmpty ())
+         return null;
+      this._graph.putUser (login, rows.get (0).get (0));
+      return this._graph.status (login);
+   }//end userStatus
+
+   /**
+    * @param listType SocialGraphCache.CONTACT or SocialGraphCache.BLOCK
+    * @return true when member is on that list of login
+    */
+   public boolean isListed (String login, String listType, String member) throws SQLException {
+      SocialGraphCache.Lists lists = socialGraph (login);
+      return lists != null && this._graph.contains (lists, listType, member);
+   }//end isListed
+
+   /**
+    * @param listType SocialGraphCache.CONTACT or SocialGraphCache.BLOCK
+    * @return the members of that list of login, in the order they were added
+    */
+   public List<String> listMembers (String login, String listType) throws SQLException {
+      SocialGraphCache.Lists lists = socialGraph (login);
+      return lists == null ? new ArrayList<String>() : this._graph.members (lists, listType);
+   }//end listMembers
+
+   /**
+    * Adds member to a list of login, in the database and in the cache.
+    */
+   public void addToList (String login, String listType, String member) throws SQLException {
+      SocialGraphCache.Lists lists = socialGraph (login);
+      if (lists == null)
+         throw new SQLException ("No such user: " + login);
+      executeUpdate ("insert into user_list_contains (list_id, member_id) select ?, user_id from usr where login = ?",
+                     lists.listId (listType), member);
+      this._graph.add (login, listType, member);
+   }//end addToList
+
+   /**
+    * Removes member from a list of login, in the database and in the cache.
+    */
+   public void removeFromList (String login, String listType, String member) throws SQLException {
+      SocialGraphCache.Lists lists = socialGraph (login);
+      if (lists == null)
+         return;
+      executeUpdate ("delete from user_list_contains where list_id = ? and member_id = (select user_id from usr where login = ?)",
+                     lists.listId (listType), member);
+      this._graph.remove (login, listType, member);
+   }//end removeFromList
+
+   /**
+    * Sets the status of a user, in the database and in the cache.
+    */
+   public void updateStatus (String login, String status) throws SQLException {
+      executeUpdate ("update usr set status = ? where login = ?", status, login);
+      this._graph.putUser (login, status);
+   }//end updateStatus
+
+   /**
+    * Inserts a message unless the sender is blocked by another member of
+    * the chat, and waits until it is committed.
+    *
+    * @return false when the message was refused because of a block
+    * @throws java.sql.SQLException when the check or the insert failed
+    */
+   public boolean sendMessage (String sender, int chatId, String text) throws SQLException {
+      return sendMessageAsync (sender, chatId, text).get ();
+   }//end sendMessage
+
+   /**
+    * Queues a message unless the sender is blocked by another member of
+    * the chat. The block check is done right away, the insert is written
+    * later with other messages in one commit.
+    *
+    * @return the receipt of the message, completed with false when it was
+    *         refused because of a block
+    * @throws java.sql.SQLException when the check failed or the queue stayed full
+    */
+   public SendQueue.Receipt sendMessageAsync (String sender, int chatId, String text) throws SQLException {
+      if (isBlockedInChat (sender, chatId))
+         return SendQueue.Receipt.refused ();
+      return this._sends.send (getNextSeqVal ("message_msg_id_seq"), text, chatId, sender);
+   }//end sendMessageAsync
+
+   /**
+    * Checks whether any other member of a chat has blocked sender. The
+    * block filters of the members rule out most of them in memory, only
+    * members whose filter reports a possible hit are checked exactly. One
+    * query reads the members, one more loads the filters of members seen
+    * for the first time.
+    *
+    * @return true when sender is on the block list of a chat member
+    */
+   public boolean isBlockedInChat (String sender, int chatId) throws SQLException {
+      List<String> members = new ArrayList<String>();
+      for (List<String> row : executeQueryAndReturnResult (
+              "select u.login from chat_list cl join usr u on u.user_id = cl.member_id " +
+              "where cl.chat_id = ? and u.login <> ?", chatId, sender))
+         members.add (row.get (0));
+
+      List<String> missing = new ArrayList<String>();
+      List<String> hits = this._graph.mightBlock (members, sender, missing);
+      if (!missing.isEmpty ()){
+         loadBlockFilters (chatId, missing);
+         hits.addAll (this._graph.mightBlock (missing, sender, new ArrayList<String>()));
+      }//end if
+
+      for (String member : hits)
+         if (isBlockedBy (member, sender))
+            return true;
+      return false;
+   }//end isBlockedInChat
+
+   /*
+    * Builds the block filters of the given members of a chat from a single
+    * query over the block lists of all its members.
+    **/
+   private void loadBlockFilters (int chatId, List<String> members) throws SQLException {
+      Map<String, List<String>> blocks = new HashMap<String, List<String>>();
+      for (String member : members)
+         blocks.put (SocialGraphCache.key (member), new ArrayList<String>());
+      List<List<String>> rows = executeQueryAndReturnResult (
+         "select u.login, b.login from chat_list cl join usr u on u.user_id = cl.member_id " +
+         "join user_list_contains c on c.list_id = u.block_list join usr b on b.user_id = c.member_id " +
+         "where cl.chat_id = ?", chatId);
+      for (List<String> row : rows){
+         List<String> blocked = blocks.get (SocialGraphCache.key (row.get (0)));
+         if (blocked != null)
+            blocked.add (row.get (1));
+      }//end for
+      for (Map.Entry<String, List<String>> e : blocks.entrySet ())
+         this._graph.putBlockFilter (e.getKey (), BloomFilter.of (e.getValue (), e.getValue ().size ()));
+   }//end loadBlockFilters
+
+   /*
+    * Exact check of one block list, from the cache when the lists of
+    * member are loaded.
+    **/
+   private boolean isBlockedBy (String member, String sender) throws SQLException {
+      SocialGraphCache.Lists lists = this._graph.get (member);
+      if (lists != null)
+         return this._graph.contains (lists, SocialGraphCache.BLOCK, sender);
+      String count = executeQueryString (
+         "select count(1) from usr u, user_list_contains c, usr b " +
+         "where c.list_id = u.block_list and b.user_id = c.member_id and u.login = ? and b.login = ?",
+         member, sender);
+      return Integer.parseInt (count) > 0;
+   }//end isBlockedBy
+
+   /**
+    * Drops a deleted user from the cache, including from the lists of
+    * other users.
+    */
+   public void forgetUser (String login) {
+      this._graph.removeUser (login);
+   }//end forgetUser
+
+   /**
+    * Method to expose the connection pool, mostly for its metrics
+    * (active connections, wait time, timeouts).
+    *
+    * @return the connection pool used by this instance
+    */
+   public ConnectionPool getPool() {
+	return this._pool;
+   }
+
+   public SocialGraphCache getSocialGraph() {
+	return this._graph;
+   }
+
+   public MessagePageCache getPageCache() {
+	return this._pages;
+   }
+
+   public MessageNotifier getNotifier() {
+	return this._notifier;
+   }
+
+   public PurgeWorker getPurgeWorker() {
+	return this._purge;
+   }
+
+   /**
+    * Method to close the pooled physical connections if they are open.
+    */
+   public void cleanup(){
+      if (this._pool != null){
+         this._sends.close ();
+         this._notifier.close ();
+         this._purge.close ();
+         System.out.println("Send queue: " + this._sends);
+         System.out.println("Message notifier: " + this._notifier);
+         System.out.println("Purge worker: " + this._purge);
+         System.out.println("Connection pool: " + this._pool);
+         System.out.println("Statement cache: " + this._pool.getStatementCacheStats());
+         System.out.println("Social graph cache: " + this._graph);
+         System.out.println("Message page cache: " + this._pages);
+         System.out.println("Id allocator: " + this._ids);
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -455,6 +1073,29 @@ public class Messenger {
          String user = args[2];
          esql = new Messenger (dbname, dbport, user, "");
 
+         runSession(esql);
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         // make sure to cleanup the created table and close the connection.
+         try{
+            if(esql != null) {
+               System.out.print("Disconnecting from database...");
+               esql.cleanup ();
+               System.out.println("Done\n\nBye !");
+            }//end if
+         }catch (Exception e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
+
+   /*
+    * Runs the menus for one user, on the console or on a network session.
+    * Reads go through in and writes through System.out, so both follow the
+    * Session bound to the calling thread.
+    **/
+   public static void runSession(Messenger esql) throws Exception {
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -466,7 +1107,9 @@ public class Messenger {
 			//System.out.println("4. Delete Account");
             System.out.println("9. < EXIT");
             String authorisedUser = null;
-            switch (readChoice()){
+            int choice = readChoice();
+            long begin = Session.beginCommand();
+            switch (choice){
                case 1: CreateUser(esql); break;
                case 2: authorisedUser = LogIn(esql); break;
                case 3: ChangePassword(esql); break; 
@@ -474,6 +1117,7 @@ public class Messenger {
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
+            endCommand(LOGIN_COMMANDS, choice, begin);
             if (authorisedUser != null) {
               boolean usermenu = true;
               while(usermenu) {
@@ -489,7 +1133,9 @@ public class Messenger {
                 System.out.println("8. Delete Account");
                 System.out.println(".........................");
                 System.out.println("9. Log out");
-                switch (readChoice()){
+                int option = readChoice();
+                long started = Session.beginCommand();
+                switch (option){
                    case 1: AddToContact(esql, authorisedUser); break;
                    case 2: ListContacts(esql, authorisedUser); break;
                    case 3: RemoveContact(esql, authorisedUser); break;
@@ -502,24 +1148,19 @@ public class Messenger {
                    case 9: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
+                endCommand(USER_COMMANDS, option, started);
               }
             }
          }//end while
-      }catch(Exception e) {
-         System.err.println (e.getMessage ());
-      }finally{
-         // make sure to cleanup the created table and close the connection.
-         try{
-            if(esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup ();
-               System.out.println("Done\n\nBye !");
-            }//end if
-         }catch (Exception e) {
-            // ignored.
-         }//end try
-      }//end try
-   }//end main
+   }//end runSession
+
+   /*
+    * Records the latency of the command picked from a menu, see Session.
+    **/
+   static void endCommand(String[] commands, int choice, long begin){
+      if (choice >= 0 && choice < commands.length && commands[choice] != null)
+         Session.endCommand(commands[choice], begin);
+   }//end endCommand
   
    public static void Greeting(){
       System.out.println(
@@ -618,23 +1259,13 @@ public class Messenger {
          String login = in.readLine();
          System.out.print("\tEnter user password: ");
          //String password = in.readLine();
-         Console cnsl = null;
-         cnsl = System.console();
-         char[] passString = cnsl.readPassword();
-		 String password = new String(passString);
+		 String password = Session.readPassword();
 
          System.out.print("\tEnter user phone: ");
          String phone = in.readLine();
 
-	 //Creating empty contact\block lists for a user
-	 esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
-	 int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
-	 int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         
-	 String query = String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
-
-         esql.executeUpdate(query);
+	 //Creating the user with empty contact\block lists
+         esql.createUser(login, password, phone);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -651,14 +1282,10 @@ public class Messenger {
          String login = in.readLine();
          System.out.print("\tEnter user password: ");
          //String password = in.readLine();
-         Console cnsl = null;
-         cnsl = System.console();
-         char[] passString = cnsl.readPassword();
-		 String password = new String(passString);
+		 String password = Session.readPassword();
 		 
-         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0){
+	 if (esql.checkLogin(login, password)){
+		    esql.loadSocialGraph(login);
 		    return login;
      }
      else{
@@ -687,31 +1314,25 @@ BEGINNING OF IMPLEMENTATION
       	  System.out.println("\nEnter login:");
       	  String login = in.readLine();
       	  System.out.println("\nEnter old password:");
-      	  Console cnsl = null;
-          cnsl = System.console();
-          char[] passString = cnsl.readPassword();
-		  String oldpass = new String(passString);
+		  String oldpass = Session.readPassword();
       	  //String oldpass = in.readLine();
       	  System.out.println("\nEnter new password:");
       	 // String newpass = in.readLine();
-      	  Console cnsl1 = null;
-	      cnsl1 = System.console();
-          char[] passString1 = cnsl1.readPassword();
-		  String newpass = new String(passString1);
+		  String newpass = Session.readPassword();
 		  
 		  System.out.println(oldpass + " " + newpass + " " + login);
 		  
 		  
-      	  String query = String.format("update usr set password = '%s' where login = '%s' and password = '%s'", newpass, login, oldpass);
-      	  esql.executeUpdate(query);
-      	  System.out.println("Password changed successfully\n");
+      	  if(esql.changePassword(login, oldpass, newpass))
+      	  	  System.out.println("Password changed successfully\n");
+      	  else
+      	  	  System.out.println("Username or Password is incorrect");
       	}
       	catch(Exception e){
       		System.out.println(e.getMessage());
       		}
    }//end
 
-	//FIX ME
    public static void DeleteAccount(Messenger esql, String user){
       // Your code goes here.
       // ... CASE 4 in initial menu
@@ -722,47 +1343,21 @@ BEGINNING OF IMPLEMENTATION
       	  String login = in.readLine();
       	  System.out.println("\nEnter password:");
       	  //String password = in.readLine();
-      	  Console cnsl = null;
-          cnsl = System.console();
-          char[] passString = cnsl.readPassword();
-		  String password = new String(passString);
-
-      	  String query = String.format("select count(1) from usr where login = '%s' and password = '%s'", login, password);
-      	  String returnval = esql.executeQueryString(query);
-      	  System.out.println(returnval);
-
-      	  int i = Integer.parseInt(returnval);
-
-      	  if(i > 0){
-      	  	  System.out.println("ARE YOU SURE YOU WANT TO DELETE THIS ACCOUNT ('yes' or 'no')");
-      	  	  String action = in.readLine();
-      	  	  String yes = "yes";
-
-      	  	  String check1 = String.format("select count(1) from chat where init_sender = '%s'", login);
-      	  	  String check2 = String.format("select count(1) from chat_list where member = '%s'", login);
-
-      	  	  String check1return = esql.executeQueryString(check1);
-      	  	  String check2return = esql.executeQueryString(check2);
-
-      	  	  System.out.println("match?");
-      	  	  System.out.println(check1return);
-      	  	  System.out.println(check2return);
+		  String password = Session.readPassword();
 
-      	  	  int j = Integer.parseInt(check1return);
-      	  	  int k = Integer.parseInt(check2return);
+      	  System.out.println("ARE YOU SURE YOU WANT TO DELETE THIS ACCOUNT ('yes' or 'no')");
+      	  String action = in.readLine();
 
-      	  	  //if yes, account exists and isnt associated with anything 
-      	  	  if((action.equals("yes")) && (j==0 && k==0)){
-      	  	  	  System.out.println("DELETING ACCOUNT\n");
-      	  	  	  String delQuery = String.format("delete from usr where login = '%s'", login);
-      	  	  	  esql.executeUpdate(delQuery);
+      	  if(action.equals("yes")){
+      	  	  if(esql.deleteAccount(login, password)){
       	  	  	  String confirm = String.format("%s account was deleted", login);
       	  	  	  System.out.println(confirm);
       	  	  }
-      	  	  //else there was association
       	  	  else
-      	  	  	  System.out.println("Account was not deleted...Returning to main menu");
+      	  	  	  System.out.println("Username or Password is incorrect");
       	  }
+      	  else
+      	  	  System.out.println("Account was not deleted...Returning to main menu");
       	}
       	catch(Exception e){
       		System.out.println(e.getMessage());
@@ -781,24 +1376,9 @@ BEGINNING OF IMPLEMENTATION
       	  System.out.println("Enter Contacts Name\n");
       	  String personAdded = in.readLine();
       	  
-		  String check = String.format("select count(1) from usr where login = '%s'", personAdded);
-          String ret = esql.executeQueryString(check);
-		  System.out.println(ret + personAdded);
-		  
-		  int i = Integer.parseInt(ret);
-		  
-          if (i > 0){
-                 System.out.println(ret);
-      	        String query = String.format("select count(c.list_member) from usr a, user_list b, user_list_contains c where a.contact_list = b.list_id and b.list_id = c.list_id and c.list_member = '%s' and a.login = '%s';", personAdded, personAdding);
-      	        String val = esql.executeQueryString(query);
-		         System.out.println(val);
-		         int c = Integer.parseInt(val);
-				if (c < 1){
-					String blocked_id = String.format("select contact_list from usr where login = '%s'", personAdding);
-					String return_val =  esql.executeQueryString(blocked_id);
-					
-					String insert = String.format("insert into user_list_contains (list_id, list_member) values(%s, '%s')", return_val, personAdded);
-					esql.executeUpdate(insert);
+          if (esql.userExists(personAdded)){
+				if (!esql.isListed(personAdding, SocialGraphCache.CONTACT, personAdded)){
+					esql.addToList(personAdding, SocialGraphCache.CONTACT, personAdded);
 				}
 				else{
 					System.out.println("User Login Provided is already Added");
@@ -823,8 +1403,7 @@ BEGINNING OF IMPLEMENTATION
       	  String personBrowsing = user;
       	  System.out.println("Listing contacts...\n");
       	  
-      	  String query = String.format("select a.list_member as Contact, con.status from user_list_contains a, usr b, user_list c, usr con where b.contact_list = c.list_id and upper(c.list_type) = 'CONTACT' and  c.list_id = a.list_id and a.list_member = con.login and b.login = '%s'", personBrowsing);
-      	  int rowCount = esql.executeQueryAndPrintResult(query, false);
+      	  int rowCount = printList(esql, personBrowsing, SocialGraphCache.CONTACT);
 		  System.out.println("\n");
 		  System.out.println("\n");
       	  if(rowCount == 0){
@@ -848,14 +1427,8 @@ BEGINNING OF IMPLEMENTATION
       	  System.out.println("Enter Contact Name\n");
       	  String personRemoved = in.readLine();
       	  
-      	  String check = String.format("select count(a.list_member) from user_list_contains a, usr b where b.contact_list = a.list_id and b.login = '%s' and a.list_member = '%s'", personRemoving, personRemoved);
-      	  String val = esql.executeQueryString(check);
-      	  
-      	  int i = Integer.parseInt(val);
-      	  
-      	  if (i > 0) {
-				String query = String.format("delete from user_list_contains where list_id = (select contact_list from usr where login = '%s') and list_member = '%s'", personRemoving, personRemoved);
-				esql.executeUpdate(query);
+      	  if (esql.isListed(personRemoving, SocialGraphCache.CONTACT, personRemoved)) {
+				esql.removeFromList(personRemoving, SocialGraphCache.CONTACT, personRemoved);
 				String out = String.format(" %s Was Removed", personRemoved);
 				System.out.println(out);
       	  }
@@ -880,24 +1453,9 @@ BEGINNING OF IMPLEMENTATION
       	  System.out.println("Enter User you wish to block\n");
       	  String personBlocked = in.readLine();
       	  
-      	  String check = String.format("select count(1) from usr where login = '%s'", personBlocked);
-          String ret = esql.executeQueryString(check);
-		  System.out.println(ret + personBlocked);
-		  
-		  int i = Integer.parseInt(ret);
-		  
-          if (i > 0){
-                 System.out.println(ret);
-      	        String query = String.format("select count(c.list_member) from usr a, user_list b, user_list_contains c where a.block_list = b.list_id and b.list_id = c.list_id and c.list_member = '%s' and a.login = '%s';", personBlocked, personBlocking);
-      	        String val = esql.executeQueryString(query);
-		         System.out.println(val);
-		         int c = Integer.parseInt(val);
-				if (c < 1){
-					String blocked_id = String.format("select block_list from usr where login = '%s'", personBlocking);
-					String return_val =  esql.executeQueryString(blocked_id);
-					
-					String insert = String.format("insert into user_list_contains (list_id, list_member) values(%s, '%s')", return_val, personBlocked);
-					esql.executeUpdate(insert);
+          if (esql.userExists(personBlocked)){
+				if (!esql.isListed(personBlocking, SocialGraphCache.BLOCK, personBlocked)){
+					esql.addToList(personBlocking, SocialGraphCache.BLOCK, personBlocked);
 				}
 				else{
 					System.out.println("User Login Provided is already blocked");
@@ -922,8 +1480,7 @@ BEGINNING OF IMPLEMENTATION
       	  String personBrowsing = user;
       	  System.out.println("Listing blocked contacts...\n");
       	  
-      	  String query = String.format("select a.list_member, bl.status from user_list_contains a, usr b, user_list c, usr bl where b.block_list = c.list_id and upper(c.list_type) = 'BLOCK' and  c.list_id = a.list_id and bl.login = a.list_member and b.login = '%s'", personBrowsing);
-      	  int rowCount = esql.executeQueryAndPrintResult(query, false);
+      	  int rowCount = printList(esql, personBrowsing, SocialGraphCache.BLOCK);
 		  System.out.println("\n");
 		  System.out.println("\n");
       	  if(rowCount == 0){
@@ -947,12 +1504,8 @@ BEGINNING OF IMPLEMENTATION
       	  System.out.println("Enter Contacts Name\n");
       	  String personUnblocked = in.readLine();
       	  
-      	  String check = String.format("select count(a.list_member) from user_list_contains a, usr b where b.block_list = a.list_id and b.login = '%s' and a.list_member = '%s'", personUnblocking, personUnblocked);
-      	  String val = esql.executeQueryString(check);
-      	  int i = Integer.parseInt(val);
-      	  if (i > 0) {
-				String query = String.format("delete from user_list_contains where list_id = (select block_list from usr where login = '%s') and list_member = '%s'", personUnblocking, personUnblocked);
-				esql.executeUpdate(query);
+      	  if (esql.isListed(personUnblocking, SocialGraphCache.BLOCK, personUnblocked)) {
+				esql.removeFromList(personUnblocking, SocialGraphCache.BLOCK, personUnblocked);
 				String out = String.format(" %s Was Unblocked", personUnblocked);
 				System.out.println(out);
       	  }
@@ -967,6 +1520,19 @@ BEGINNING OF IMPLEMENTATION
 	  }
    }//end
 
+   /*
+    * Prints one list of a user with the status of every member, from the
+    * social graph cache.
+    * @return the number of members printed
+    **/
+   public static int printList(Messenger esql, String user, String listType) throws SQLException{
+      List<String> members = esql.listMembers(user, listType);
+      for (String member : members){
+         System.out.println(member + "\t" + esql.userStatus(member) + "\t");
+      }
+      return members.size();
+   }//end
+
    public static void MessageMenu(Messenger esql, String user){
       // Your code goes here.
       // ... CASE 7 in login menu
@@ -984,16 +1550,21 @@ BEGINNING OF IMPLEMENTATION
               System.out.println("2. Update Status");
       	  	  System.out.println("3. Create Chat");
               System.out.println("4. View Current Class");
+              System.out.println("5. Search Messages");
       	  	  System.out.println("9. Back to main menu");
       	  	  
-      	  	  switch(readChoice()){
+      	  	  int choice = readChoice();
+      	  	  long begin = Session.beginCommand();
+      	  	  switch(choice){
       	  	  	  case 1: ViewChats(esql, user); break;
       	  	  	  case 3: CreateChat(esql, user); break;
                   case 2: UpdateStatus(esql, user); break;
                   case 4: ViewStatus(esql, user); break;
+                  case 5: SearchMessages(esql, user); break;
       	  	  	  case 9: stillView = false; break;
       	  	  	  default : System.out.println("Unrecognized choice!"); break;
       	  	  	  }
+      	  	  endCommand(MESSAGE_COMMANDS, choice, begin);
       	 }
    	  }
 	  catch(Exception e){
@@ -1004,8 +1575,8 @@ BEGINNING OF IMPLEMENTATION
 
    public static void ViewStatus(Messenger esql, String user){
        try{
-           String query = String.format("select status from usr where login = '%s';", user);
-           int rowCount = esql.executeQueryAndPrintResult(query, false);
+           String query = "select status from usr where login = ?";
+           int rowCount = esql.executeQueryAndPrintResult(query, false, user);
         }
        catch(Exception e){
 
@@ -1017,50 +1588,48 @@ BEGINNING OF IMPLEMENTATION
            System.out.print("Please Enter Your New Status: ");
            String stat = in.readLine();
 
-           String query = String.format("update usr set status = '%s' where login = '%s';", stat, user);
-           esql.executeUpdate(query);
+           esql.updateStatus(user, stat);
         }
        catch(Exception e){
            
         }
     }
 
+   // the table layouts, compiled from the printf formats the tables were
+   // drawn with, so TableRenderer draws the same characters
+   private static final String STARS = "************************************************************************************************************************************************************************";
+   static final String CONTACT_HEADER = String.format("%-30.30s%n%-1.1s %-3.3s %-1.1s %-15.15s %3.3s%n%-30.30s%n",
+      STARS, "*", " #", "*"," Contact Name","*", STARS);
+   static final TableRenderer.Layout CONTACT_ROW = TableRenderer.Layout.compile("%-1.1s %-5.5s %-1.1s %-10.10s %-1.1s%n");
+   static final String CHAT_HEADER = String.format("%-106.106s%n%-1.1s %-3.3s %-1.1s %-10.10s %-1.1s %-20.20s %-1.1s %-40.40s %-1.1s %-15.15s %3.3s%n%-106.106s%n",
+      STARS, "*", " #", "*"," Chat Type","*", "    Last Sender","*","             Last Message","*","      Date","*", STARS);
+   static final TableRenderer.Layout CHAT_ROW = TableRenderer.Layout.compile(
+      "%-1.1s %-5.5s %-1.1s %-10.10s %-1.1s %-20.20s %-1.1s %-40.40s %-1.1s %-15.15s %-1.1s%n");
+   static final String MESSAGE_HEADER = String.format("%-106.106s%n%-1.1s %-3.3s %-1.1s %-20.20s %-1.1s %-15.15s %-1.1s %-40.40s %16.16s%n%-106.106s%n",
+      STARS, "*", " #", "*","    Sender","*", "    Date","*","                  Message","*", STARS);
+   // the first line of a message, then its wrapped lines
+   static final TableRenderer.Layout MESSAGE_ROW = TableRenderer.Layout.compile(
+      "%-1.1s %-3.3s %-1.1s %-20.20s %-1.1s %-15.15s %1.1s%46s%n");
+   static final TableRenderer.Layout MESSAGE_LINE = TableRenderer.Layout.compile("%94s%n");
+   static final int MESSAGE_WIDTH = 40;
+
    public static void printContacts(Vector<contacts> list, int Start, boolean included){
-	   String display;
-	   String header;
 	   int end;
 	   if((Start + 10) > list.size()) 
 			end = list.size();
 	   else
 			end = (Start + 10);
-			
+
+	   TableRenderer page = TableRenderer.get();
+	   String shown = included ? "Y" : "N";
 	   for(int i=Start; i < end; i++){
-			if (i ==0){
-				System.out.printf("%-30.30s%n", "************************************************************************************************************************************************************************");
-				System.out.printf("%-1.1s %-3.3s %-1.1s %-15.15s %3.3s%n", "*", " #", "*"," Contact Name","*");
-				System.out.printf("%-30.30s%n", "************************************************************************************************************************************************************************");
-				//System.out.println(header);
-			}
-            if (included){
-			    contacts objs = list.get(i);
-			       if(objs.selected.equals("Y")){ 
-                    //display = String.format("  " + objs.id + "\t" + objs.chat_type + "\t" + objs.sender + "\t" + objs.msg + "\t" + objs.date + "\n");
-			        //System.out.print();
-			        //System.out.println();
-			        System.out.printf("%-1.1s %-5.5s %-1.1s %-10.10s %-1.1s%n", " ", objs.id, " ", objs.login, " ");
-                }
-            }
-            else 
-            {
-                   contacts objs = list.get(i);
-			       if(objs.selected.equals("N")){ 
-                    //display = String.format("  " + objs.id + "\t" + objs.chat_type + "\t" + objs.sender + "\t" + objs.msg + "\t" + objs.date + "\n");
-			        //System.out.print(display);
-			        //System.out.println();
-			        System.out.printf("%-1.1s %-5.5s %-1.1s %-10.10s %-1.1s%n", " ", objs.id, " ", objs.login, " ");
-                }
-            }
+			if (i ==0)
+				page.text(CONTACT_HEADER);
+			contacts objs = list.get(i);
+			if(objs.selected.equals(shown))
+				page.row(CONTACT_ROW).cell(" ").cell(objs.id).cell(" ").cell(objs.login).cell(" ").end();
 	  }
+	   page.print(System.out);
    }
 
 
@@ -1069,8 +1638,7 @@ BEGINNING OF IMPLEMENTATION
        try{
            Vector<contacts> list = new Vector<contacts>();
 
-           String query = String.format("select list_member from user_list_contains ul, usr u where u.contact_list = ul.list_id and login = '%s'", user);
-           int rows = esql.get_contact(query, list);
+           int rows = esql.get_contact_list(user, list);
            int Start = 0;
 
            if(rows > 0){
@@ -1112,24 +1680,16 @@ BEGINNING OF IMPLEMENTATION
             System.out.print("What type of Chat do you want this to be 'group' or 'private': ");
             String type = in.readLine();
             contacts val;
-            String cid = esql.executeQueryString("select nextval('chat_chat_id_seq');");
-            int id = Integer.parseInt(cid);
-
-            String query = String.format("insert into chat(chat_id, init_sender, chat_type) values(%s, '%s', '%s')", id, user, type);
-            
-            esql.executeUpdate(query);
-
-            String query2 = String.format("insert into chat_list(chat_id, member) values(%s, '%s')", id, user);
-
-            esql.executeUpdate(query2);
+            List<String> members = new ArrayList<String>();
 
             for(int i = 0; i < list.size(); i++){
                 val = list.get(i);
                 if(val.selected.equals("Y")){
-                    String update = String.format("insert into chat_list(chat_id, member) values(%s, '%s')", id, val.login);
-                    esql.executeUpdate(update);
+                    members.add(val.login);
                 }
             }
+
+            esql.createChat(user, type, members);
             
             System.out.print("Your Chat has been Created Successfully");
        }
@@ -1155,15 +1715,11 @@ BEGINNING OF IMPLEMENTATION
            
    public static void DeleteChat(Messenger esql, int chat_id, String user){
 	  try{
-		  String chatviewer = user;
-		  //String display;
-		  int Start = 0;
-          String delete_mess = String.format("delete from message where chat_id = %s;", chat_id);
-          esql.executeUpdate(delete_mess);
-		  String query = String.format("delete from chat_list where chat_id = %s ", chat_id);
-		  esql.executeUpdate(query);
-		  query = String.format("delete from chat where chat_id = %s ", chat_id);
-		  esql.executeUpdate(query);
+		  // hidden from now on, PurgeWorker deletes its rows in the background
+		  String query = "update chat set deleted_at = current_timestamp where chat_id = ? and deleted_at is null";
+		  esql.executeUpdate(query, chat_id);
+		  esql._pages.invalidate(chat_id);
+		  esql._purge.wake();
 		  System.out.println("Chat has been Deleted");
 	   }
 		catch(Exception e){
@@ -1195,30 +1751,38 @@ BEGINNING OF IMPLEMENTATION
   
    
    public static void printChats(Vector<chat> list, int Start){
-	   String display;
-	   String header;
 	   int end;
 	   if((Start + 10) > list.size()) 
 			end = list.size();
 	   else
 			end = (Start + 10);
-			
+
+	   TableRenderer page = TableRenderer.get();
 	   for(int i=Start; i < end; i++){
-			if (i ==0){
-				System.out.printf("%-106.106s%n", "************************************************************************************************************************************************************************");
-				System.out.printf("%-1.1s %-3.3s %-1.1s %-10.10s %-1.1s %-20.20s %-1.1s %-40.40s %-1.1s %-15.15s %3.3s%n", "*", " #", "*"," Chat Type","*", "    Last Sender","*","             Last Message","*","      Date","*");
-				System.out.printf("%-106.106s%n", "************************************************************************************************************************************************************************");
-				//System.out.println(header);
-			}
+			if (i ==0)
+				page.text(CHAT_HEADER);
 			chat objs = list.get(i);
-			//display = String.format("  " + objs.id + "\t" + objs.chat_type + "\t" + objs.sender + "\t" + objs.msg + "\t" + objs.date + "\n");
-			//System.out.print(display);
-			//System.out.println();
-			System.out.printf("%-1.1s %-5.5s %-1.1s %-10.10s %-1.1s %-20.20s %-1.1s %-40.40s %-1.1s %-15.15s %-1.1s%n", " ", objs.id, " ", objs.chat_type, " ", objs.sender, " ", objs.msg + "...", " ", objs.date, " ");
+			page.row(CHAT_ROW).cell(" ").cell(objs.id).cell(" ").cell(objs.chat_type).cell(" ").cell(objs.sender)
+				.cell(" ").cell(objs.msg, "...").cell(" ").cell(objs.date).cell(" ").end();
 	  }
+	   page.print(System.out);
    }
    
    
+   // indexed reads only: chat_list by member_id, then chat, chat_summary and usr by key
+   static final String VIEW_CHATS_QUERY =
+      "select c.chat_type as type, c.chat_id, coalesce(s.last_msg_id, -99) as id, "+
+      " coalesce(s.preview, '.........') as msg, coalesce(to_char(s.last_timestamp, "+
+      " 'MM/DD/YY HH12:MI'), '0000000'), coalesce(ls.login, 'None') as s, "+
+      " i.login as sender "+
+      "  from usr me join chat_list cl on cl.member_id = me.user_id "+
+      "  join chat c on c.chat_id = cl.chat_id and c.deleted_at is null "+
+      "  left join chat_summary s on s.chat_id = c.chat_id "+
+      "  left join usr ls on ls.user_id = s.last_sender_id "+
+      "  left join usr i on i.user_id = c.init_sender_id "+
+      "  where me.login = ? "+
+      "  order by s.last_timestamp is null, s.last_timestamp, c.chat_id";
+
    public static void ViewChats(Messenger esql, String user){
       // Your code goes here.
       // ... CASE 4 in message menu
@@ -1229,24 +1793,10 @@ BEGINNING OF IMPLEMENTATION
       	  Vector<chat> list = new Vector<chat>();
       	  String display;
       	  int Start = 0;
-      	  String query = String.format("select trim(both ' ' from c.chat_type) as type, c.chat_id, (m.msg_id) as id, "+
-      	                                " trim(both ' ' from substring(m.msg_text, 1, 30)) as msg, max(trim(both ' ' from to_char(m.msg_timestamp, "+
-      	                                " 'MM/DD/YY HH12:MI'))), trim(both ' ' from m.sender_login) as s, trim(both ' ' from c.init_sender) as sender from message m, chat c, chat_list cl "+
-      	                                "  where c.chat_id = m.chat_id and c.chat_id = cl.chat_id and cl.member = '%s' "+
-      	                                "  and m.msg_timestamp = (select max(msg_timestamp) from message "+
-      	                                "  where chat_id = c.chat_id) group by trim(both ' ' from c.chat_type),c.chat_id, "+
-      	                                "  trim(both ' ' from substring(m.msg_text, 1, 30)), m.msg_id, "+
-      	                                "  trim(both ' ' from m.sender_login), trim(both ' ' from c.init_sender), m.msg_timestamp order by m.msg_timestamp;", user);
-        String query2 = String.format(  " select trim(both ' ' from c.chat_type) as type, c.chat_id, -99  as id, "+
-      	                                " trim(both ' ' from substring('.........', 1, 30)) as msg, '0000000' "+
-      	                                " , 'None' as s, trim(both ' ' from c.init_sender) as sender from chat c, chat_list cl "+
-      	                                "  where  c.chat_id = cl.chat_id and cl.member = '%s' and c.chat_id not in (select distinct chat_id from message) order by chat_id;", user);
-  
-          int rowCount = esql.get_chat(query, list);
-
-          int rows = esql.get_chat(query2, list);
-      	  String header;
-      	  if (rowCount > 0 || rows > 0){
+          long loading = Session.beginCommand();
+          int rowCount = esql.get_chat(VIEW_CHATS_QUERY, list, user);
+          Session.endCommand("ViewChats", loading);
+      	  if (rowCount > 0){
 			  
 			  boolean stillView = true;
       	   //String personViewing = user;
@@ -1265,7 +1815,9 @@ BEGINNING OF IMPLEMENTATION
       	  	  System.out.println("D. Delete Chat");
       	  	  System.out.println("9. Back to Message Menu");
       	  	  //System.out.println(readChoice());
-      	  	  switch(readchar()){
+      	  	  char choice = readchar();
+      	  	  long begin = Session.beginCommand();
+      	  	  switch(choice){
       	  	  	  case 'N': Start = Start + 10; break;
       	  	  	  case 'P': Start = Start - 10; break;
       	  	  	  //case 'M': break;
@@ -1276,6 +1828,7 @@ BEGINNING OF IMPLEMENTATION
       	  	  	  case '9': stillView = false; break;
       	  	  	  default : System.out.println("Unrecognized choice!"); break;
       	  	  	  }
+      	  	  endCommand(VIEW_CHATS_COMMANDS, VIEW_CHATS_KEYS.indexOf(choice), begin);
 			}
 		  }
 		  else{
@@ -1289,56 +1842,26 @@ BEGINNING OF IMPLEMENTATION
    }//end 
    
    
-  public static String[] splitStringEvery(String s, int interval) {
-    int arrayLength = (int) Math.ceil(((s.length() / (double)interval)));
-    String[] result = new String[arrayLength];
-
-    int j = 0;
-    int lastIndex = result.length - 1;
-    for (int i = 0; i < lastIndex; i++) {
-        result[i] = s.substring(j, j + interval);
-        j += interval;
-    } //Add the last bit
-    result[lastIndex] = s.substring(j);
-
-    return result;
-}
-   
-   
    public static void printMessages(Vector<message> list, int Start){
-	   String display;
-	   String header;
 	   int end;
-	   
-	   String[] msg;
-	   
 	   if((Start + 10) > list.size()) 
 			end = list.size();
 	   else
 			end = (Start + 10);
-			
+
+	   TableRenderer page = TableRenderer.get();
 	   for(int i=Start; i < end; i++){
-			if (i == Start){
-				System.out.printf("%-106.106s%n", "************************************************************************************************************************************************************************");
-				System.out.printf("%-1.1s %-3.3s %-1.1s %-20.20s %-1.1s %-15.15s %-1.1s %-40.40s %16.16s%n", "*", " #", "*","    Sender","*", "    Date","*","                  Message","*");
-				System.out.printf("%-106.106s%n", "************************************************************************************************************************************************************************");
-			}
+			if (i == Start)
+				page.text(MESSAGE_HEADER);
 			message objs = list.get(i);
-			
-			int arrayLength = (int) Math.ceil(((objs.msg.length() / (double)40)));
-			msg = new String[arrayLength];
-			
-			msg = splitStringEvery(objs.msg, 40);
-			
-			System.out.printf("%-1.1s %-3.3s %-1.1s %-20.20s %-1.1s %-15.15s %1.1s"," ", objs.id, " ", objs.sender, " ", objs.date, " ");
-			System.out.printf("%46s%n",msg[0]);
-			for(int j = 1; j < msg.length; j++){
-				System.out.printf("%94s%n",msg[j]);
-			}
-			
-			//System.out.print(display);
-			//System.out.println();
+			// wrapped every MESSAGE_WIDTH characters
+			int length = objs.msg.length();
+			page.row(MESSAGE_ROW).cell(" ").cell(objs.id).cell(" ").cell(objs.sender).cell(" ").cell(objs.date)
+				.cell(" ").cell(objs.msg, 0, Math.min(MESSAGE_WIDTH, length)).end();
+			for(int j = MESSAGE_WIDTH; j < length; j += MESSAGE_WIDTH)
+				page.row(MESSAGE_LINE).cell(objs.msg, j, Math.min(j + MESSAGE_WIDTH, length)).end();
 	  }
+	   page.print(System.out);
    }
    
    public static void getMessage(Vector<chat> list, Messenger esql, String user){
@@ -1351,36 +1874,250 @@ BEGINNING OF IMPLEMENTATION
 		 System.err.println(e.getMessage());
 	} 
    }
+   // number of messages shown (and fetched) per page
+   public static final int PAGE_SIZE = 10;
+
+   /*
+    * Loads one page of a chat, newest first, starting right after the
+    * (msg_timestamp, msg_id) cursor. One extra row is fetched so the caller
+    * knows whether a next page exists. Archived messages are all older
+    * than the ones in MESSAGE, so MESSAGE_ARCHIVE is only read for the
+    * rows the hot months could not fill. Pages are served from the page
+    * cache when they are in it.
+    * @return the number of rows fetched, at most PAGE_SIZE + 1
+    **/
+   public static int loadMessagePage(Messenger esql, int chatID, String stamp, int mId, Vector<message> list) throws SQLException{
+       long begin = Session.beginCommand();
+       int first = list.size();
+       if (esql._pages.get(chatID, stamp, mId, list)){
+           Session.endCommand("ViewMessages", begin);
+           return list.size() - first;
+       }
+       long version = esql._pages.version(chatID);
+       String cursorStamp = stamp;
+       int cursorId = mId;
+       int rows = esql.get_message(messagePageQuery("message", PAGE_SIZE + 1), list, chatID, stamp, mId);
+       if (rows <= PAGE_SIZE){
+           if (rows > 0){
+               message last = list.lastElement();
+               stamp = last.stamp;
+               mId = last.mId;
+           }
+           rows += esql.get_message(messagePageQuery("message_archive", PAGE_SIZE + 1 - rows), list, chatID, stamp, mId);
+       }
+       esql._pages.put(chatID, cursorStamp, cursorId, version, list.subList(first, list.size()));
+       Session.endCommand("ViewMessages", begin);
+       return rows;
+   }
+
+   /*
+    * Loads all the messages of a chat newer than the (msg_timestamp,
+    * msg_id) cursor, oldest first, PAGE_SIZE per query until a short
+    * batch comes back. New messages always go to MESSAGE.
+    **/
+   public static int loadNewMessages(Messenger esql, int chatID, String stamp, int mId, Vector<message> list) throws SQLException{
+       int first = list.size();
+       int rows;
+       do{
+           rows = esql.get_message(
+              "select m.chat_id, m.msg_id as id, "+
+              "  m.msg_text as msg, to_char(m.msg_timestamp, 'MM/DD/YY HH12:MI'), "+
+              "  u.login as sender, cast(m.msg_timestamp as text) from message m left join usr u on u.user_id = m.sender_id "+
+              "  where m.chat_id = ? and (m.msg_timestamp, m.msg_id) > (cast(? as timestamp), ?)"+
+              "  order by m.msg_timestamp, m.msg_id limit " + PAGE_SIZE, list, chatID, stamp, mId);
+           if (rows > 0){
+               message last = list.lastElement();
+               stamp = last.stamp;
+               mId = last.mId;
+           }
+       }while (rows == PAGE_SIZE);
+       return list.size() - first;
+   }
+
+   private static String messagePageQuery(String table, int limit){
+       return "select m.chat_id, m.msg_id as id, "+
+              "  m.msg_text as msg, to_char(m.msg_timestamp, 'MM/DD/YY HH12:MI'), "+
+              "  u.login as sender, cast(m.msg_timestamp as text) from " + table + " m left join usr u on u.user_id = m.sender_id "+
+              "  where m.chat_id = ? and (m.msg_timestamp, m.msg_id) < (cast(? as timestamp), ?)"+
+              "  order by m.msg_timestamp desc, m.msg_id desc limit " + limit;
+   }
+
+   // newest matching messages ranked per search, bounds the work on common words
+   public static final int SEARCH_CANDIDATES = 1000;
+
+   /*
+    * Loads one page of search results, best ranked first, starting after
+    * the (rank, msg_id) cursor. Only the chats the user is a member of are
+    * searched. The to_tsvector expression must stay the same as the one of
+    * the msg_text_search index in create_indexes.sql or the index is not
+    * used. One extra row is fetched so the caller knows whether a next page
+    * exists.
+    * @return the number of rows fetched, at most PAGE_SIZE + 1
+    **/
+   public static int loadSearchPage(Messenger esql, String user, String terms, String rank, int mId, Vector<message> list) throws SQLException{
+       String query = "select c.chat_id, c.msg_id as id, c.msg_text as msg, to_char(c.msg_timestamp, 'MM/DD/YY HH12:MI'), "+
+                      "  u.login as sender, cast(c.msg_timestamp as text), cast(c.rank as float8) from "+
+                      "  (select m.chat_id, m.msg_id, m.msg_text, m.msg_timestamp, m.sender_id, "+
+                      "          ts_rank(to_tsvector('english', m.msg_text), q) as rank "+
+                      "     from plainto_tsquery('english', ?) q, usr me "+
+                      "     join chat_list cl on cl.member_id = me.user_id "+
+                      "     join chat ch on ch.chat_id = cl.chat_id and ch.deleted_at is null "+
+                      "     join message m on m.chat_id = cl.chat_id "+
+                      "    where me.login = ? and to_tsvector('english', m.msg_text) @@ q "+
+                      "    order by m.msg_id desc limit " + SEARCH_CANDIDATES + ") c "+
+                      "  left join usr u on u.user_id = c.sender_id "+
+                      "  where (c.rank, c.msg_id) < (cast(? as real), ?)"+
+                      "  order by c.rank desc, c.msg_id desc limit " + (PAGE_SIZE + 1);
+       long begin = Session.beginCommand();
+       int rows = esql.get_message(query, list, terms, user, rank, mId);
+       Session.endCommand("SearchMessages", begin);
+       return rows;
+   }
+
+   public static void SearchMessages(Messenger esql, String user){
+      try{
+      	  System.out.print("Enter words to search for: ");
+      	  String terms = in.readLine();
+      	  if(terms == null || terms.trim().length() == 0)
+      	  	  return;
+      	  Vector<message> list = new Vector<message>();
+      	  // cursors where each page up to the current one starts
+      	  Vector<String> ranks = new Vector<String>();
+      	  Vector<Integer> ids = new Vector<Integer>();
+      	  ranks.addElement("infinity");
+      	  ids.addElement(Integer.MAX_VALUE);
+      	  if(loadSearchPage(esql, user, terms, ranks.lastElement(), ids.lastElement(), list) == 0){
+      	  	  System.out.println("No messages found");
+      	  	  return;
+      	  }
+      	  boolean stillView = true;
+      	  while(stillView){
+      	  	  boolean hasNext = list.size() > PAGE_SIZE;
+      	  	  if(hasNext)
+      	  	  	  list.setSize(PAGE_SIZE);
+      	  	  printMessages(list, 0);
+      	  	  System.out.println("Please Select a Choice\n");
+      	  	  System.out.println("_________________\n");
+      	  	  if(hasNext)
+      	  	  	  System.out.println("N. Next Page");
+      	  	  if(ranks.size() > 1)
+      	  	  	  System.out.println("P. Previous Page");
+      	  	  System.out.println("V. View Chat of a Message");
+      	  	  System.out.println("9. Back to Message Menu");
+
+      	  	  boolean reload = false;
+      	  	  switch(readchar()){
+      	  	  	  case 'N':
+      	  	  	  	  if(hasNext){
+      	  	  	  	  	  message last = list.lastElement();
+      	  	  	  	  	  ranks.addElement(last.rank);
+      	  	  	  	  	  ids.addElement(last.mId);
+      	  	  	  	  	  reload = true;
+      	  	  	  	  }
+      	  	  	  	  break;
+      	  	  	  case 'P':
+      	  	  	  	  if(ranks.size() > 1){
+      	  	  	  	  	  ranks.removeElementAt(ranks.size() - 1);
+      	  	  	  	  	  ids.removeElementAt(ids.size() - 1);
+      	  	  	  	  	  reload = true;
+      	  	  	  	  }
+      	  	  	  	  break;
+      	  	  	  case 'V':
+      	  	  	  	  int id = readMsgNum();
+      	  	  	  	  if(id < 0 || id >= list.size()){
+      	  	  	  	  	  System.out.println("Message # must be one of the messages on this page");
+      	  	  	  	  	  break;
+      	  	  	  	  }
+      	  	  	  	  ViewMessages(esql, user, list.get(id).cId);
+      	  	  	  	  reload = true;
+      	  	  	  	  break;
+      	  	  	  case '9': stillView = false; break;
+      	  	  	  default : System.out.println("Unrecognized choice!"); break;
+      	  	  }
+      	  	  if(reload){
+      	  	  	  list.clear();
+      	  	  	  loadSearchPage(esql, user, terms, ranks.lastElement(), ids.lastElement(), list);
+      	  	  	  if(list.isEmpty()){
+      	  	  	  	  System.out.println("No messages found");
+      	  	  	  	  stillView = false;
+      	  	  	  }
+      	  	  }
+      	  }
+      }
+	  catch(Exception e){
+	  	  System.err.println(e.getMessage());
+	  }
+   }//end
+
    public static void ViewMessages(Messenger esql, String user, int chatID){
       // Your code goes here.
       // ... CASE 4 in message menu
       // ...
       try{
-      	  //printing last 10 messages from each chat
+      	  //printing 10 messages of the chat at a time, newest first
       	  String chatviewer = user;
       	  Vector<message> list = new Vector<message>();
-      	  String display;
-      	  int Start = 0;
-      	  String query = String.format("select c.chat_id, m.msg_id as id, "+
-      	                                "  trim(both ' ' from m.msg_text) as msg, trim(both ' ' from to_char(m.msg_timestamp, "+
-      	                                " 'MM/DD/YY HH12:MI')), trim(both ' ' from m.sender_login) as sender from message m, chat c "+
-      	                                "  where c.chat_id = m.chat_id and c.chat_id = %s"+
-      	                                "  order by msg_timestamp desc", chatID);
-      	  int rowCount = esql.get_message(query, list);
-      	  String header;
+      	  // cursors where each page up to the current one starts
+      	  Vector<String> stamps = new Vector<String>();
+      	  Vector<Integer> ids = new Vector<Integer>();
+      	  stamps.addElement("infinity");
+      	  ids.addElement(Integer.MAX_VALUE);
+      	  int rowCount = loadMessagePage(esql, chatID, stamps.lastElement(), ids.lastElement(), list);
       	  if (rowCount > 0){
 			  
 			  boolean stillView = true;
+			  // messages committed while the view is open, shown as they
+			  // arrive and merged into the first page on the next redraw
+			  final Vector<message> arrived = new Vector<message>();
+			  final PrintStream out = Session.current() == null ? Session.console() : Session.current().getOut();
+			  final Messenger db = esql;
+			  final message newest = list.firstElement();
+			  MessageNotifier.Subscriber subscriber = new MessageNotifier.Subscriber() {
+			  	  private String stamp = newest.stamp;
+			  	  private int mId = newest.mId;
+			  	  public void newMessages(int chatId, List<message> rows){
+			  	  	  try{
+			  	  	  	  db._pages.invalidate(chatId);
+			  	  	  	  for(message m : rows){
+			  	  	  	  	  // shown already, e.g. on the page this view opened with
+			  	  	  	  	  if(MessageNotifier.compare(m.stamp, m.mId, stamp, mId) <= 0)
+			  	  	  	  	  	  continue;
+			  	  	  	  	  out.println("New message from " + m.sender + " (" + m.date + "): " + m.msg);
+			  	  	  	  	  arrived.addElement(m);
+			  	  	  	  	  stamp = m.stamp;
+			  	  	  	  	  mId = m.mId;
+			  	  	  	  }
+			  	  	  	  out.flush();
+			  	  	  }
+			  	  	  catch(Exception e){
+			  	  	  	  System.err.println(e.getMessage());
+			  	  	  }
+			  	  }
+			  };
+			  esql._notifier.subscribe(chatID, newest.stamp, newest.mId, subscriber);
+			  try{
       	   //String personViewing = user; 
       	  while(stillView){
+			  if(stamps.size() == 1 && !arrived.isEmpty()){
+			  	  synchronized(arrived){
+			  	  	  for(message m : arrived)
+			  	  	  	  list.insertElementAt(m, 0);
+			  	  	  arrived.clear();
+			  	  }
+			  	  for(int i = 0; i < list.size(); i++)
+			  	  	  list.get(i).id = i;
+			  }
+			  boolean hasNext = list.size() > PAGE_SIZE;
+			  if (hasNext)
+				list.setSize(PAGE_SIZE);
 			  System.out.print("\033[H\033[2J");
 		      System.out.flush();  
-			  printMessages(list, Start);
+			  printMessages(list, 0);
 			  System.out.println("Please Select a Choice\n");
       	  	  System.out.println("_________________\n");
-      	  	  if(rowCount > 10 && (list.size() - (Start+10) >= 1))
+      	  	  if(hasNext)
 				System.out.println("N. Next Page");
-			  if(Start >= 10)	
+			  if(stamps.size() > 1)	
 				System.out.println("P. Previous Page");
       	  	  System.out.println("E. Edit Message");
       	  	  System.out.println("A. Add Message");
@@ -1388,17 +2125,54 @@ BEGINNING OF IMPLEMENTATION
       	  	  System.out.println("D. Delete Message");
       	  	  System.out.println("9. Back to Message Menu");
       	  	  
-      	  	  switch(readchar()){
-      	  	  	  case 'N': Start = Start + 10; break;
-      	  	  	  case 'P': Start = Start - 10; break;
+      	  	  boolean reload = false;
+      	  	  char choice = readchar();
+      	  	  long begin = Session.beginCommand();
+      	  	  switch(choice){
+      	  	  	  case 'N': 
+      	  	  	  	  if(hasNext){
+      	  	  	  	  	  message last = list.lastElement();
+      	  	  	  	  	  stamps.addElement(last.stamp);
+      	  	  	  	  	  ids.addElement(last.mId);
+      	  	  	  	  	  reload = true;
+      	  	  	  	  }
+      	  	  	  	  break;
+      	  	  	  case 'P': 
+      	  	  	  	  if(stamps.size() > 1){
+      	  	  	  	  	  stamps.removeElementAt(stamps.size() - 1);
+      	  	  	  	  	  ids.removeElementAt(ids.size() - 1);
+      	  	  	  	  	  reload = true;
+      	  	  	  	  }
+      	  	  	  	  break;
       	  	  	  case 'E': editMess(esql, list, user); stillView = false; break;
       	  	  	  case 'A': addMessage(list, esql, chatviewer, chatID); stillView = false; break;
       	  	  	  case 'M': addMember(esql, chatID); break;
-                  case 'D': deleteMessage(list, esql, chatviewer); break;
+                  case 'D': deleteMessage(list, esql, chatviewer); reload = true; break;
       	  	  	  case '9': stillView = false; break;
       	  	  	  default : System.out.println("Unrecognized choice!"); break;
       	  	  	  }
+      	  	  endCommand(VIEW_MESSAGES_COMMANDS, VIEW_MESSAGES_KEYS.indexOf(choice), begin);
+      	  	  if(reload){
+      	  	  	  list.clear();
+      	  	  	  loadMessagePage(esql, chatID, stamps.lastElement(), ids.lastElement(), list);
+      	  	  	  // the page emptied out (e.g. its last message was deleted), step back
+      	  	  	  while(list.isEmpty() && stamps.size() > 1){
+      	  	  	  	  stamps.removeElementAt(stamps.size() - 1);
+      	  	  	  	  ids.removeElementAt(ids.size() - 1);
+      	  	  	  	  loadMessagePage(esql, chatID, stamps.lastElement(), ids.lastElement(), list);
+      	  	  	  }
+      	  	  	  if(list.isEmpty()){
+      	  	  	  	  System.out.print("This Chat Has Currently No Messages\n");
+      	  	  	  	  stillView = false;
+      	  	  	  }
+      	  	  	  // the reloaded page already has what arrived so far
+      	  	  	  arrived.clear();
+      	  	  }
 			}
+			  }
+			  finally{
+			  	  esql._notifier.unsubscribe(chatID, subscriber);
+			  }
 		  }
 		  else{
 
@@ -1453,9 +2227,10 @@ FIXME  not chronological order displayed
 		  System.out.println("Enter message");
 		  String text = in.readLine();
 		  int Start = 0;
-		  String query = String.format("insert into message( msg_text, msg_timestamp, sender_login, chat_id) values('%s', current_timestamp, '%s', %s)", text,  user, cid); 
-		  esql.executeUpdate(query);
-		  System.out.println("Message has been Added");
+		  if (esql.sendMessage(user, cid, text))
+			  System.out.println("Message has been Added");
+		  else
+			  System.out.println("A member of this chat has blocked you, the message was not sent");
 	   }
 		catch(Exception e){
 			 System.err.println(e.getMessage());
@@ -1463,13 +2238,18 @@ FIXME  not chronological order displayed
    }
  
 
-   public static void DeleteMessage(Messenger esql, int mId, String user){
+   public static void DeleteMessage(Messenger esql, int cId, int mId, String user){
 	  try{
 		  String chatviewer = user;
 		  //String display;
 		  int Start = 0;
-		  String query = String.format("delete from message where msg_id = %s ", mId);
-		  esql.executeUpdate(query);
+		  String query = "delete from message where msg_id = ?";
+		  if (esql.executeUpdate(query, mId) == 0){
+			  // an archived message
+			  query = "delete from message_archive where msg_id = ?";
+			  esql.executeUpdate(query, mId);
+		  }
+		  esql._pages.invalidate(cId);
 		  System.out.println("Message has been Deleted");
 	   }
 		catch(Exception e){
@@ -1480,12 +2260,16 @@ FIXME  not chronological order displayed
    public static void deleteMessage(Vector<message> list, Messenger esql, String user){
 	   try{
 	   int id = readMsgNum();
+	   if(id < 0 || id >= list.size()){
+	       System.out.println("Message # must be one of the messages on this page");
+	       return;
+	   }
 	   message val = list.get(id);
 	   System.out.print("Are you sure you want to delete message " + id + ": ");
 	   String confirmation = in.readLine();
 	   if(confirmation.equals("Yes") || confirmation.equals("yes")){
 		   if(user.equals(val.sender)){
-				DeleteMessage(esql, val.mId, val.sender);
+				DeleteMessage(esql, val.cId, val.mId, val.sender);
 		   }
 		   else{
 			   System.out.println("You cannot delete this message because you are not the owner");
@@ -1502,11 +2286,15 @@ FIXME  not chronological order displayed
    public static void editMess(Messenger esql, Vector<message> list, String user){
        try{
            int id = readMsgNum();
+           if(id < 0 || id >= list.size()){
+               System.out.println("Message # must be one of the messages on this page");
+               return;
+           }
            message val = list.get(id);
            if(val.sender.equals(user)){
                System.out.println("Enter Updated Message:");
                String msg = in.readLine();
-               EditMessage(esql, user, val.mId, msg);
+               EditMessage(esql, user, val.cId, val.mId, msg);
            }
            else{
                System.out.println("You are not the owner of this message so you cannot edit");
@@ -1516,10 +2304,12 @@ FIXME  not chronological order displayed
              System.err.println(e.getMessage());
         }
    }
-   public static void EditMessage(Messenger esql, String user, int mid, String msg){
+   public static void EditMessage(Messenger esql, String user, int cid, int mid, String msg){
         try{
-                String update = String.format("update message set msg_text = '%s', msg_timestamp = current_timestamp where msg_id = %s;", msg, mid);
-                esql.executeUpdate(update);
+                // moves the message to the current month's partition, see create_partitions.sql
+                String update = "select edit_message(?, ?)";
+                esql.executeQueryString(update, mid, msg);
+                esql._pages.invalidate(cid);
 
                 System.out.println("Message Successfully Updated");
         }
@@ -1533,9 +2323,7 @@ FIXME  not chronological order displayed
           System.out.print("Please Enter the Username to be added: ");
           String login = in.readLine();
 
-          String query = String.format("insert into chat_list(chat_id, member) values(%s, '%s');", cid, login);
-
-          esql.executeUpdate(query);
+          esql.addChatMembers(cid, Arrays.asList(login));
           
           System.out.print("Successfully Added");
     }
@@ -0,0 +1,328 @@
+/*
+ * Messenger benchmarks
+ * ====================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * This class benchmarks the data and rendering paths of Messenger against
+ * a database created with create_db.sh: the row loaders behind ViewChats,
+ * ViewMessages and the contact lists, the message insert, and the table
+ * renderers. Every case runs for a warm up period, then for a measured
+ * period during which the latency of every call is recorded.
+ *
+ * Results are labelled with the size of the dataset (users, chats and
+ * messages) and appended to a CSV file. A case that got slower than the
+ * last run on the same dataset by more than the tolerance is reported as
+ * a regression, and the exit status is then 2.
+ *
+ * Tuned with system properties: messenger.bench.warmup and
+ * messenger.bench.time (milliseconds per case), messenger.bench.filter
+ * (run only cases whose name contains it) and messenger.bench.tolerance
+ * (allowed slowdown in percent).
+ *
+ */
+public class MessengerBenchmark {
+
+   public static final long DEFAULT_WARMUP_MS = 2000;
+   public static final long DEFAULT_MEASURE_MS = 5000;
+   public static final int DEFAULT_TOLERANCE = 10;
+   public static final String DEFAULT_RESULTS = "benchmark.csv";
+
+   // rows sampled from the dataset to drive the cases
+   private static final int SAMPLES = 200;
+
+   /**
+    * One benchmarked operation.
+    */
+   abstract static class Case {
+      final String name;
+
+      Case (String name) { this.name = name; }
+
+      /**
+       * Runs the operation once
+       *
+       * @param i the iteration, used to pick a sample
+       */
+      abstract void run (int i) throws Exception;
+
+      void tearDown () throws Exception { }
+   }//end Case
+
+   private final Messenger _esql;
+   private final List<String> _users = new ArrayList<String>();
+   private final List<String> _contactOwners = new ArrayList<String>();
+   private final List<Integer> _chats = new ArrayList<Integer>();
+   private String _dataset;
+
+   public MessengerBenchmark (Messenger esql) {
+      this._esql = esql;
+   }//end MessengerBenchmark
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> [results file]
+    */
+   public static void main (String[] args) {
+      if (args.length < 3 || args.length > 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            MessengerBenchmark.class.getName () +
+            " <dbname> <port> <user> [results file]");
+         return;
+      }//end if
+
+      Messenger esql = null;
+      int regressions = 0;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Messenger (args[0], args[1], args[2], "");
+         MessengerBenchmark bench = new MessengerBenchmark(esql);
+         bench.sample();
+         regressions = bench.runAll(new File(args.length > 3 ? args[3] : DEFAULT_RESULTS));
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+      if (regressions > 0)
+         System.exit(2);
+   }//end main
+
+   /**
+    * Reads the size of the dataset and picks the users and chats the cases
+    * run against.
+    */
+   public void sample () throws Exception {
+      String users = this._esql.executeQueryString("select count(1) from usr");
+      String chats = this._esql.executeQueryString("select count(1) from chat");
+      String messages = this._esql.executeQueryString("select count(1) from message");
+      this._dataset = "users=" + users + " chats=" + chats + " messages=" + messages;
+
+      for (List<String> row : this._esql.executeQueryAndReturnResult(
+              "select u.login from chat_list cl join usr u on u.user_id = cl.member_id " +
+              "group by u.login order by count(1) desc limit " + SAMPLES))
+         this._users.add(row.get(0));
+      for (List<String> row : this._esql.executeQueryAndReturnResult(
+              "select u.login from usr u join user_list_contains c on c.list_id = u.contact_list " +
+              "group by u.login order by count(1) desc limit " + SAMPLES))
+         this._contactOwners.add(row.get(0));
+      for (List<String> row : this._esql.executeQueryAndReturnResult(
+              "select chat_id from chat_summary order by last_msg_id desc limit " + SAMPLES))
+         this._chats.add(Integer.valueOf(row.get(0)));
+      if (this._users.isEmpty() || this._chats.isEmpty())
+         throw new Exception("The database has no chats, load it with create_db.sh first");
+   }//end sample
+
+   /**
+    * @return the cases to run, in order
+    */
+   public List<Case> cases () throws Exception {
+      final Messenger esql = this._esql;
+      List<Case> cases = new ArrayList<Case>();
+
+      cases.add(new Case("get_chat ViewChats") {
+         void run (int i) throws Exception {
+            esql.get_chat(Messenger.VIEW_CHATS_QUERY, new Vector<Messenger.chat>(), user(i));
+         }
+      });
+      cases.add(new Case("get_message ViewMessages") {
+         void run (int i) throws Exception {
+            Messenger.loadMessagePage(esql, chat(i), "infinity", Integer.MAX_VALUE, new Vector<Messenger.message>());
+         }
+      });
+      cases.add(new Case("get_message ViewMessages page 2") {
+         void run (int i) throws Exception {
+            Vector<Messenger.message> page = new Vector<Messenger.message>();
+            Messenger.loadMessagePage(esql, chat(i), "infinity", Integer.MAX_VALUE, page);
+            if (page.size() > Messenger.PAGE_SIZE) {
+               Messenger.message last = page.get(Messenger.PAGE_SIZE - 1);
+               Messenger.loadMessagePage(esql, chat(i), last.stamp, last.mId, new Vector<Messenger.message>());
+            }//end if
+         }
+      });
+      if (!this._contactOwners.isEmpty()) {
+         cases.add(new Case("get_contact") {
+            void run (int i) throws Exception {
+               esql.get_contact("select m.login from usr u join user_list_contains ul on ul.list_id = u.contact_list " +
+                                "join usr m on m.user_id = ul.member_id where u.login = ?",
+                                new Vector<Messenger.contacts>(), contactOwner(i));
+            }
+         });
+         cases.add(new Case("get_contact_list cached") {
+            void run (int i) throws Exception {
+               esql.get_contact_list(contactOwner(i), new Vector<Messenger.contacts>());
+            }
+         });
+      }//end if
+
+      // messages are sent to one chat by one of its members and deleted afterwards
+      final int sendChat = this._chats.get(0);
+      final String sender = this._esql.executeQueryString(
+         "select u.login from chat_list cl join usr u on u.user_id = cl.member_id where cl.chat_id = ? limit 1", sendChat);
+      final String lastMsg = this._esql.executeQueryString(
+         "select coalesce(max(msg_id), 0) from message");
+      cases.add(new Case("addMessage") {
+         void run (int i) throws Exception {
+            esql.sendMessage(sender, sendChat, "benchmark message " + i);
+         }
+         void tearDown () throws Exception {
+            esql.executeUpdate("delete from message where chat_id = ? and msg_id > ?",
+                               sendChat, Integer.parseInt(lastMsg));
+         }
+      });
+
+      // renderers draw real rows, into a stream that drops them
+      final Vector<Messenger.chat> inbox = new Vector<Messenger.chat>();
+      esql.get_chat(Messenger.VIEW_CHATS_QUERY, inbox, this._users.get(0));
+      final Vector<Messenger.message> page = new Vector<Messenger.message>();
+      Messenger.loadMessagePage(esql, sendChat, "infinity", Integer.MAX_VALUE, page);
+      cases.add(new Case("printChats") {
+         void run (int i) throws Exception {
+            Messenger.printChats(inbox, 0);
+         }
+      });
+      cases.add(new Case("printMessages") {
+         void run (int i) throws Exception {
+            Messenger.printMessages(page, 0);
+         }
+      });
+      return cases;
+   }//end cases
+
+   private String user (int i) { return this._users.get(i % this._users.size()); }
+   private String contactOwner (int i) { return this._contactOwners.get(i % this._contactOwners.size()); }
+   private int chat (int i) { return this._chats.get(i % this._chats.size()); }
+
+   /**
+    * Runs every case, prints the results and appends them to a CSV file
+    *
+    * @return the number of cases that regressed against the last run
+    */
+   public int runAll (File results) throws Exception {
+      long warmup = Long.getLong("messenger.bench.warmup", DEFAULT_WARMUP_MS);
+      long measure = Long.getLong("messenger.bench.time", DEFAULT_MEASURE_MS);
+      String filter = System.getProperty("messenger.bench.filter", "");
+      int tolerance = Integer.getInteger("messenger.bench.tolerance", DEFAULT_TOLERANCE);
+
+      Map<String, Double> previous = readPrevious(results, this._dataset);
+      boolean header = !results.exists();
+      PrintWriter csv = new PrintWriter(new FileWriter(results, true));
+      if (header)
+         csv.println("time,dataset,benchmark,ops_per_sec,mean_ms,p50_ms,p99_ms,max_ms");
+      String now = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+
+      PrintStream out = System.out;
+      out.println("Dataset: " + this._dataset);
+      out.println(String.format("%-34s %12s %10s %10s %10s %9s", "benchmark", "ops/s", "mean ms", "p50 ms", "p99 ms", "change"));
+      int regressions = 0;
+      try{
+         for (Case c : cases()) {
+            if (!c.name.contains(filter))
+               continue;
+            LatencyHistogram hist = new LatencyHistogram();
+            long elapsed;
+            // renderers write to System.out, which is muted while they run
+            System.setOut(new PrintStream(new OutputStream() {
+               public void write (int b) { }
+               public void write (byte[] b, int off, int len) { }
+            }));
+            try{
+               runFor(c, warmup, null);
+               elapsed = runFor(c, measure, hist);
+            }finally{
+               System.setOut(out);
+               c.tearDown();
+            }//end try
+
+            double opsPerSec = hist.getCount() * 1e9 / elapsed;
+            Double before = previous.get(c.name);
+            String change = "";
+            if (before != null) {
+               double percent = (opsPerSec - before) / before * 100.0;
+               change = String.format("%+.1f%%", percent);
+               if (percent < -tolerance) {
+                  change += " REGRESSION";
+                  ++regressions;
+               }//end if
+            }//end if
+            out.println(String.format("%-34s %12.1f %10.3f %10.3f %10.3f %9s", c.name, opsPerSec,
+                                      hist.getMeanMicros() / 1000.0, hist.getPercentileMicros(50) / 1000.0,
+                                      hist.getPercentileMicros(99) / 1000.0, change));
+            csv.println(String.format("%s,%s,%s,%.1f,%.3f,%.3f,%.3f,%.3f", now, this._dataset, c.name, opsPerSec,
+                                      hist.getMeanMicros() / 1000.0, hist.getPercentileMicros(50) / 1000.0,
+                                      hist.getPercentileMicros(99) / 1000.0, hist.getMaxMicros() / 1000.0));
+         }//end for
+      }finally{
+         csv.close();
+      }//end try
+      return regressions;
+   }//end runAll
+
+   /*
+    * Runs a case until the given time is up, recording every call when
+    * hist is given. Returns the time spent in the case.
+    **/
+   private static long runFor (Case c, long millis, LatencyHistogram hist) throws Exception {
+      long end = System.nanoTime() + millis * 1000000L;
+      long total = 0;
+      for (int i = 0; ; ++i) {
+         long begin = System.nanoTime();
+         if (begin >= end)
+            break;
+         c.run(i);
+         long nanos = System.nanoTime() - begin;
+         total += nanos;
+         if (hist != null)
+            hist.recordNanos(nanos);
+      }//end for
+      return total;
+   }//end runFor
+
+   /*
+    * Throughput of the last run of every case on the same dataset.
+    **/
+   private static Map<String, Double> readPrevious (File results, String dataset) throws IOException {
+      Map<String, Double> previous = new HashMap<String, Double>();
+      if (!results.exists())
+         return previous;
+      BufferedReader reader = new BufferedReader(new FileReader(results));
+      try{
+         String line;
+         while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(",");
+            if (fields.length >= 4 && fields[1].equals(dataset))
+               previous.put(fields[2], Double.valueOf(fields[3]));
+         }//end while
+      }finally{
+         reader.close();
+      }//end try
+      return previous;
+   }//end readPrevious
+}//end MessengerBenchmark
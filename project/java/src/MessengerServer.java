@@ -0,0 +1,197 @@
+/*
+ * Messenger network server
+ * ========================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class serves the Messenger menus to many users from one JVM. Every
+ * TCP client (e.g. telnet or nc) gets its own Session running the same
+ * handlers as the console, and all sessions share the Messenger instance
+ * and therefore its connection pool.
+ *
+ */
+public class MessengerServer {
+
+   public static final int DEFAULT_MAX_SESSIONS = 10000;
+   public static final long DEFAULT_STATS_INTERVAL_MS = 60000;
+
+   private final Messenger _esql;
+   private final int _listenPort;
+   private final Semaphore _slots;
+   private final ExecutorService _sessions;
+
+   private final AtomicInteger _active = new AtomicInteger(0);
+   private final AtomicInteger _peak = new AtomicInteger(0);
+   private final AtomicLong _total = new AtomicLong(0);
+   private final AtomicLong _rejected = new AtomicLong(0);
+
+   public MessengerServer (Messenger esql, int listenPort, int maxSessions) {
+      this._esql = esql;
+      this._listenPort = listenPort;
+      this._slots = new Semaphore(maxSessions);
+      this._sessions = newSessionExecutor();
+   }//end MessengerServer
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> <listen port>
+    */
+   public static void main (String[] args) {
+      if (args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            MessengerServer.class.getName () +
+            " <dbname> <port> <user> <listen port>");
+         return;
+      }//end if
+
+      Messenger esql = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Messenger (args[0], args[1], args[2], "");
+         final MessengerServer server = new MessengerServer(esql,
+            Integer.parseInt(args[3]),
+            Integer.getInteger("messenger.server.maxSessions", DEFAULT_MAX_SESSIONS));
+
+         long interval = Long.getLong("messenger.server.statsInterval", DEFAULT_STATS_INTERVAL_MS);
+         Timer stats = new Timer("server-stats", true);
+         stats.schedule(new TimerTask() {
+            public void run () { server.printStats(Session.console()); }
+         }, interval, interval);
+
+         server.serve();
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end main
+
+   /*
+    * One thread per session. The sessions spend nearly all their time
+    * blocked on client input, so on a JDK with virtual threads this is the
+    * place to use Executors.newVirtualThreadPerTaskExecutor() instead.
+    **/
+   private static ExecutorService newSessionExecutor () {
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+         private final AtomicInteger _count = new AtomicInteger(0);
+         public Thread newThread (Runnable r) {
+            Thread t = new Thread(null, r, "session-" + this._count.incrementAndGet(), 256 * 1024);
+            t.setDaemon(true);
+            return t;
+         }
+      });
+   }//end newSessionExecutor
+
+   /**
+    * Accepts clients until the process is stopped.
+    */
+   public void serve () throws IOException {
+      Session.install();
+      ServerSocketChannel server = ServerSocketChannel.open();
+      try{
+         server.socket().setReuseAddress(true);
+         server.socket().bind(new InetSocketAddress(this._listenPort), 1024);
+         Session.console().println("Listening on port " + this._listenPort);
+         while (true) {
+            final SocketChannel client = server.accept();
+            if (!this._slots.tryAcquire()) {
+               this._rejected.incrementAndGet();
+               client.write(ByteBuffer.wrap("Server is full, try again later\n".getBytes()));
+               client.close();
+               continue;
+            }//end if
+            client.socket().setTcpNoDelay(true);
+            this._sessions.execute(new Runnable() {
+               public void run () { runSession(client); }
+            });
+         }//end while
+      }finally{
+         server.close();
+         this._sessions.shutdownNow();
+      }//end try
+   }//end serve
+
+   private void runSession (SocketChannel client) {
+      int active = this._active.incrementAndGet();
+      int peak = this._peak.get();
+      while (active > peak && !this._peak.compareAndSet(peak, active))
+         peak = this._peak.get();
+      this._total.incrementAndGet();
+
+      Session session = new Session(String.valueOf(client.socket().getRemoteSocketAddress()),
+                                    Channels.newInputStream(client),
+                                    Channels.newOutputStream(client));
+      Session.attach(session);
+      try{
+         Messenger.Greeting();
+         Messenger.runSession(this._esql);
+         System.out.println("Bye !");
+      }catch (Session.Closed e){
+         // client went away.
+      }catch (Exception e){
+         Session.console().println(session.getName() + ": " + e.getMessage());
+      }finally{
+         Session.attach(null);
+         session.close();
+         try{
+            client.close();
+         }catch (IOException e){
+            // ignored.
+         }//end try
+         this._active.decrementAndGet();
+         this._slots.release();
+      }//end try
+   }//end runSession
+
+   /**
+    * Prints session counts, pool metrics, the latency of every command and
+    * the statements that took the most time.
+    */
+   public void printStats (PrintStream out) {
+      int cores = Runtime.getRuntime().availableProcessors();
+      int active = this._active.get();
+      out.println(String.format("Sessions: %d active (%.1f per core, %d cores), %d peak, %d total, %d rejected",
+                                active, (double) active / cores, cores,
+                                this._peak.get(), this._total.get(), this._rejected.get()));
+      out.println("Connection pool: " + this._esql.getPool());
+      out.println("Social graph cache: " + this._esql.getSocialGraph());
+      out.println("Message page cache: " + this._esql.getPageCache());
+      out.println("Message notifier: " + this._esql.getNotifier());
+      out.println("Purge worker: " + this._esql.getPurgeWorker());
+      for (Map.Entry<String, LatencyHistogram> e : Session.commandStats().entrySet())
+         out.println(String.format("  %-16s %s", e.getKey(), e.getValue()));
+      List<QueryStats.Shape> queries = QueryStats.shapes();
+      out.println("Slowest queries in total:");
+      for (int i = 0; i < Math.min(5, queries.size()); ++i)
+         out.println("  " + queries.get(i));
+   }//end printStats
+}//end MessengerServer
@@ -0,0 +1,503 @@
+/*
+ * Purge worker
+ * ============
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class removes deleted chats and accounts in the background.
+ * DeleteChat only sets chat.deleted_at, which hides the chat at once; the
+ * worker then deletes its messages, oldest first, batchSize rows per
+ * statement and transaction with a pause after every batch, so no
+ * statement holds many row locks or writes much WAL at once and the
+ * sessions keep the database. Once no message is left the chat_summary,
+ * chat_list and chat rows go in one transaction.
+ *
+ * DeleteAccount only records a row in USR_TOMBSTONE, which refuses the
+ * login at once. The chats the user started pass to another member, or
+ * are deleted as above when no other member is left; then the messages
+ * of the user, its chat_list rows and its place in the lists of other
+ * users go in batches the same way. The archived partitions keep no
+ * sender index, so each is read once by a single delete. The usr row, its
+ * own contact and block lists and the tombstone go last, in one
+ * transaction.
+ *
+ * The marked chats and the tombstones are the queue: every batch commits
+ * on its own and the worker starts over from what is still marked, so a
+ * crash or restart loses no work, and two messengers purging the same
+ * chat only repeat deletes that find nothing. Deleting oldest first keeps
+ * the chat_summary trigger from recomputing the summary for every row.
+ * The backlog, what is marked and how long the oldest mark waits, is
+ * counted before every round.
+ *
+ * Settings, as system properties: messenger.purge.batchSize (1000 rows),
+ * messenger.purge.pause (50 ms between batches) and messenger.purge.poll
+ * (60000 ms between looks for work nobody woke it for).
+ *
+ */
+public class PurgeWorker {
+
+   public static final int DEFAULT_BATCH_SIZE = 1000;
+   public static final long DEFAULT_PAUSE_MS = 50;
+   public static final long DEFAULT_POLL_MS = 60000;
+
+   private static final String PENDING_CHATS =
+      "select chat_id from chat where deleted_at is not null order by deleted_at, chat_id limit 16";
+   private static final String PENDING_ACCOUNTS =
+      "select user_id from usr_tombstone order by requested, user_id limit 16";
+   private static final String BACKLOG =
+      "select (select count(1) from chat where deleted_at is not null), (select count(1) from usr_tombstone), " +
+      "cast(extract(epoch from current_timestamp - least((select min(deleted_at) from chat where deleted_at is not null), " +
+      "(select min(requested) from usr_tombstone))) as integer)";
+   // the members a chat can pass to
+   private static final String LIVE_MEMBER =
+      "not exists (select 1 from usr_tombstone t where t.user_id = cl.member_id)";
+
+   /**
+    * Told about every chat whose messages a purge deleted, so cached
+    * pages of it can be dropped.
+    */
+   public interface Listener {
+      void purged (int chatId);
+   }//end Listener
+
+   private final ConnectionPool _pool;
+   private final int _batchSize;
+   private final long _pauseMs;
+   private final long _pollMs;
+   private final Thread _worker;
+   private volatile boolean _running = true;
+   private boolean _woken = false;
+   private volatile Listener _listener = null;
+
+   private final AtomicLong _chats = new AtomicLong(0);
+   private final AtomicLong _accounts = new AtomicLong(0);
+   private final AtomicLong _messages = new AtomicLong(0);
+   private final AtomicLong _batches = new AtomicLong(0);
+   private final AtomicLong _errors = new AtomicLong(0);
+   // what is being purged, null when idle, and the rows it changed so far
+   private volatile String _purging = null;
+   private volatile long _progress = 0;
+   // the backlog when the round started
+   private volatile int _pendingChats = 0;
+   private volatile int _pendingAccounts = 0;
+   private volatile int _oldestPending = 0;
+
+   public PurgeWorker (ConnectionPool pool, int batchSize, long pauseMs, long pollMs) {
+      this._pool = pool;
+      this._batchSize = Math.max(1, batchSize);
+      this._pauseMs = Math.max(0, pauseMs);
+      this._pollMs = Math.max(1, pollMs);
+      this._worker = new Thread(new Runnable() {
+         public void run () {
+            workLoop();
+         }
+      }, "messenger-purge");
+      this._worker.setDaemon(true);
+      this._worker.start();
+   }//end PurgeWorker
+
+   public static PurgeWorker fromSystemProperties (ConnectionPool pool) {
+      return new PurgeWorker(pool,
+                             Integer.getInteger("messenger.purge.batchSize", DEFAULT_BATCH_SIZE),
+                             Long.getLong("messenger.purge.pause", DEFAULT_PAUSE_MS),
+                             Long.getLong("messenger.purge.poll", DEFAULT_POLL_MS));
+   }//end fromSystemProperties
+
+   public void setListener (Listener listener) {
+      this._listener = listener;
+   }//end setListener
+
+   /**
+    * Tells the worker there is something to purge.
+    */
+   public void wake () {
+      synchronized (this) {
+         this._woken = true;
+         notifyAll();
+      }//end synchronized
+   }//end wake
+
+   /**
+    * Stops the worker after its current batch. What is left is purged
+    * the next time a messenger starts.
+    */
+   public void close () {
+      this._running = false;
+      this._worker.interrupt();
+      try{
+         this._worker.join();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end close
+
+   private void workLoop () {
+      while (this._running) {
+         boolean worked = false;
+         try{
+            countBacklog();
+            worked = purgeChats();
+            worked = purgeAccounts() || worked;
+         }catch (SQLException e){
+            this._errors.incrementAndGet();
+            System.err.println(e.getMessage());
+         }//end try
+         if (!worked && !await(this._pollMs))
+            break;
+      }//end while
+   }//end workLoop
+
+   /*
+    * Waits until woken, closed or the timeout passed.
+    * @return false when closed
+    **/
+   private boolean await (long ms) {
+      synchronized (this) {
+         try{
+            long deadline = System.currentTimeMillis() + ms;
+            long left = ms;
+            while (!this._woken && this._running && left > 0) {
+               wait(left);
+               left = deadline - System.currentTimeMillis();
+            }//end while
+         }catch (InterruptedException e){
+            // closed, checked below.
+         }//end try
+         this._woken = false;
+      }//end synchronized
+      return this._running;
+   }//end await
+
+   private boolean pause () {
+      if (this._pauseMs == 0)
+         return this._running;
+      try{
+         Thread.sleep(this._pauseMs);
+      }catch (InterruptedException e){
+         // closed, checked below.
+      }//end try
+      return this._running;
+   }//end pause
+
+   private void countBacklog () throws SQLException {
+      ConnectionPool.PooledConnection conn = this._pool.borrow();
+      long begin = System.nanoTime();
+      int rows = -1;
+      try{
+         ResultSet rs = conn.prepare(BACKLOG).executeQuery();
+         try{
+            rs.next();
+            this._pendingChats = rs.getInt(1);
+            this._pendingAccounts = rs.getInt(2);
+            this._oldestPending = rs.getInt(3);
+         }finally{
+            rs.close();
+         }//end try
+         rows = 1;
+      }finally{
+         QueryStats.record(BACKLOG, begin, rows, new Object[0]);
+         this._pool.release(conn);
+      }//end try
+   }//end countBacklog
+
+   /*
+    * Purges the marked chats, oldest mark first.
+    * @return false when none was marked
+    **/
+   private boolean purgeChats () throws SQLException {
+      List<Integer> chats = ids(PENDING_CHATS);
+      for (int chatId : chats) {
+         if (!this._running)
+            break;
+         purgeChat(chatId);
+      }//end for
+      return !chats.isEmpty();
+   }//end purgeChats
+
+   private void purgeChat (int chatId) throws SQLException {
+      this._purging = "chat " + chatId;
+      this._progress = 0;
+      try{
+         this._messages.addAndGet(batches(
+            "delete from message where msg_id in (select msg_id from message where chat_id = ? " +
+            "order by msg_timestamp, msg_id limit " + this._batchSize + ")", chatId));
+         if (!this._running)
+            return;
+         this._messages.addAndGet(batches(
+            "delete from message_archive where msg_id in (select msg_id from message_archive where chat_id = ? " +
+            "order by msg_timestamp, msg_id limit " + this._batchSize + ")", chatId));
+         if (!this._running)
+            return;
+
+         // a message sent meanwhile fails the chat delete, the next
+         // round deletes it and tries again
+         ConnectionPool.PooledConnection conn = this._pool.borrow();
+         try{
+            conn.getConnection().setAutoCommit(false);
+            update(conn, "delete from chat_summary where chat_id = ?", chatId);
+            update(conn, "delete from chat_list where chat_id = ?", chatId);
+            if (update(conn, "delete from chat where chat_id = ? and deleted_at is not null", chatId) > 0)
+               this._chats.incrementAndGet();
+            conn.getConnection().commit();
+         }catch (SQLException e){
+            try{
+               conn.getConnection().rollback();
+            }catch (SQLException ignored){
+               // the original error is reported.
+            }//end try
+            throw e;
+         }finally{
+            try{
+               conn.getConnection().setAutoCommit(true);
+            }catch (SQLException e){
+               // ignored, the pool validates the connection on the next borrow.
+            }//end try
+            this._pool.release(conn);
+         }//end try
+      }finally{
+         this._purging = null;
+         purged(chatId);
+      }//end try
+   }//end purgeChat
+
+   /*
+    * Purges the deleted accounts, oldest request first.
+    * @return false when none was deleted
+    **/
+   private boolean purgeAccounts () throws SQLException {
+      List<Integer> users = ids(PENDING_ACCOUNTS);
+      for (int userId : users) {
+         if (!this._running)
+            break;
+         purgeAccount(userId);
+      }//end for
+      return !users.isEmpty();
+   }//end purgeAccounts
+
+   private void purgeAccount (int userId) throws SQLException {
+      this._purging = "account " + userId;
+      this._progress = 0;
+      // the chats the messages of the user are deleted from
+      List<Integer> chats = ids("select chat_id from chat_list where member_id = ?", userId);
+      try{
+         // the chats of the user without another member are deleted, the
+         // others pass to the remaining member with the lowest user_id (chat_list
+         // records no join order)
+         batches("update chat set deleted_at = current_timestamp where chat_id in (select c.chat_id from chat c " +
+                 "where c.init_sender_id = ? and c.deleted_at is null and not exists (select 1 from chat_list cl " +
+                 "where cl.chat_id = c.chat_id and cl.member_id <> c.init_sender_id and " + LIVE_MEMBER + ") " +
+                 "limit " + this._batchSize + ")", userId);
+         if (!this._running)
+            return;
+         batches("update chat set init_sender_id = (select min(cl.member_id) from chat_list cl " +
+                 "where cl.chat_id = chat.chat_id and cl.member_id <> ? and " + LIVE_MEMBER + ") " +
+                 "where chat_id in (select chat_id from chat where init_sender_id = ? and deleted_at is null " +
+                 "limit " + this._batchSize + ")", userId, userId);
+         for (int chatId : ids("select chat_id from chat where init_sender_id = ? and deleted_at is not null", userId)) {
+            if (!this._running)
+               return;
+            purgeChat(chatId);
+            this._purging = "account " + userId;
+         }//end for
+
+         this._messages.addAndGet(batches(
+            "delete from message where msg_id in (select msg_id from message where sender_id = ? " +
+            "limit " + this._batchSize + ")", userId));
+         for (String partition : names("select c.relname from pg_inherits h join pg_class c on c.oid = h.inhrelid " +
+                                       "where h.inhparent = 'message_archive'::regclass order by c.relname")) {
+            if (!pause())
+               return;
+            int deleted = update("delete from " + partition + " where sender_id = ?", userId);
+            this._batches.incrementAndGet();
+            this._messages.addAndGet(deleted);
+            this._progress += deleted;
+         }//end for
+         if (!this._running)
+            return;
+         batches("delete from chat_list where member_id = ? and chat_id in " +
+                 "(select chat_id from chat_list where member_id = ? limit " + this._batchSize + ")", userId, userId);
+         if (!this._running)
+            return;
+         batches("delete from user_list_contains where member_id = ? and list_id in " +
+                 "(select list_id from user_list_contains where member_id = ? limit " + this._batchSize + ")",
+                 userId, userId);
+         if (!this._running)
+            return;
+
+         // a chat or message added meanwhile fails the usr delete, the
+         // next round removes it and tries again
+         ConnectionPool.PooledConnection conn = this._pool.borrow();
+         try{
+            conn.getConnection().setAutoCommit(false);
+            List<Integer> lists = ids(conn, "select block_list from usr where user_id = ? " +
+                                            "union all select contact_list from usr where user_id = ?", userId, userId);
+            update(conn, "delete from chat_list where member_id = ?", userId);
+            update(conn, "delete from usr where user_id = ?", userId);
+            for (int listId : lists)
+               update(conn, "delete from user_list where list_id = ?", listId);
+            if (update(conn, "delete from usr_tombstone where user_id = ?", userId) > 0)
+               this._accounts.incrementAndGet();
+            conn.getConnection().commit();
+         }catch (SQLException e){
+            try{
+               conn.getConnection().rollback();
+            }catch (SQLException ignored){
+               // the original error is reported.
+            }//end try
+            throw e;
+         }finally{
+            try{
+               conn.getConnection().setAutoCommit(true);
+            }catch (SQLException e){
+               // ignored, the pool validates the connection on the next borrow.
+            }//end try
+            this._pool.release(conn);
+         }//end try
+      }finally{
+         this._purging = null;
+         for (int chatId : chats)
+            purged(chatId);
+      }//end try
+   }//end purgeAccount
+
+   private void purged (int chatId) {
+      Listener listener = this._listener;
+      try{
+         if (listener != null)
+            listener.purged(chatId);
+      }catch (RuntimeException e){
+         System.err.println(e.getMessage());
+      }//end try
+   }//end purged
+
+   /*
+    * Runs a batch until it changes no row, pausing after every run.
+    * @return the rows changed, stops early when closed
+    **/
+   private long batches (String batch, Object... params) throws SQLException {
+      long total = 0;
+      int changed;
+      do{
+         changed = update(batch, params);
+         this._batches.incrementAndGet();
+         total += changed;
+         this._progress += changed;
+         if (!pause())
+            break;
+      }while (changed > 0);
+      return total;
+   }//end batches
+
+   private List<Integer> ids (String query, Object... params) throws SQLException {
+      ConnectionPool.PooledConnection conn = this._pool.borrow();
+      try{
+         return ids(conn, query, params);
+      }finally{
+         this._pool.release(conn);
+      }//end try
+   }//end ids
+
+   private static List<Integer> ids (ConnectionPool.PooledConnection conn, String query, Object... params) throws SQLException {
+      List<Integer> ids = new ArrayList<Integer>();
+      long begin = System.nanoTime();
+      int rows = -1;
+      try{
+         ResultSet rs = conn.prepare(query, params).executeQuery();
+         try{
+            while (rs.next())
+               ids.add(rs.getInt(1));
+         }finally{
+            rs.close();
+         }//end try
+         rows = ids.size();
+      }finally{
+         QueryStats.record(query, begin, rows, params);
+      }//end try
+      return ids;
+   }//end ids
+
+   private List<String> names (String query) throws SQLException {
+      List<String> names = new ArrayList<String>();
+      ConnectionPool.PooledConnection conn = this._pool.borrow();
+      long begin = System.nanoTime();
+      int rows = -1;
+      try{
+         ResultSet rs = conn.prepare(query).executeQuery();
+         try{
+            while (rs.next())
+               names.add(rs.getString(1));
+         }finally{
+            rs.close();
+         }//end try
+         rows = names.size();
+      }finally{
+         QueryStats.record(query, begin, rows, new Object[0]);
+         this._pool.release(conn);
+      }//end try
+      return names;
+   }//end names
+
+   private int update (String sql, Object... params) throws SQLException {
+      ConnectionPool.PooledConnection conn = this._pool.borrow();
+      try{
+         return update(conn, sql, params);
+      }finally{
+         this._pool.release(conn);
+      }//end try
+   }//end update
+
+   private static int update (ConnectionPool.PooledConnection conn, String sql, Object... params) throws SQLException {
+      long begin = System.nanoTime();
+      int rows = -1;
+      try{
+         rows = conn.prepare(sql, params).executeUpdate();
+         return rows;
+      }finally{
+         QueryStats.record(sql, begin, rows, params);
+      }//end try
+   }//end update
+
+   /**
+    * @return the deleted chats not purged yet, when the last round started
+    */
+   public int getPendingChats () {
+      return this._pendingChats;
+   }//end getPendingChats
+
+   /**
+    * @return the deleted accounts not purged yet, when the last round started
+    */
+   public int getPendingAccounts () {
+      return this._pendingAccounts;
+   }//end getPendingAccounts
+
+   /**
+    * @return the seconds the oldest of them had waited, 0 when none
+    */
+   public int getOldestPendingSeconds () {
+      return this._oldestPending;
+   }//end getOldestPendingSeconds
+
+   public String toString () {
+      String purging = this._purging;
+      return String.format("%d chats and %d accounts purged, %d messages deleted in %d batches, %d errors, " +
+                           "backlog %d chats and %d accounts (oldest %d s), %s",
+                           this._chats.get(), this._accounts.get(), this._messages.get(), this._batches.get(),
+                           this._errors.get(), this._pendingChats, this._pendingAccounts, this._oldestPending,
+                           purging == null ? "idle"
+                                           : String.format("purging %s (%d rows so far)", purging, this._progress));
+   }//end toString
+}//end PurgeWorker
@@ -0,0 +1,280 @@
+/*
+ * Query statistics
+ * ================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ */
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * This class keeps statistics for every shape of SQL statement Messenger
+ * runs: a LatencyHistogram of its execution time, the rows it returned or
+ * changed and the number of times it failed. A shape is the statement
+ * text with its literals replaced by '?' and its white space collapsed, so
+ * statements that only differ by an inlined value are counted together.
+ *
+ * Every shape is published as a JMX MBean named messenger:type=Query,id=N
+ * and the totals as messenger:type=QueryStats, for jconsole or any other
+ * JMX client. Statements slower than messenger.slowlog.threshold
+ * milliseconds (500 by default, negative turns it off) are appended to
+ * the file named by messenger.slowlog.file (slow_queries.log).
+ *
+ */
+public class QueryStats {
+
+   public static final long DEFAULT_SLOW_THRESHOLD_MS = 500;
+   public static final String DEFAULT_SLOW_LOG = "slow_queries.log";
+
+   // statement texts remembered with their shape, more are normalized on every call
+   private static final int MAX_CACHED_TEXTS = 4096;
+
+   /**
+    * Attributes and operations of one statement shape over JMX.
+    */
+   public interface ShapeMBean {
+      String getQuery ();
+      long getCount ();
+      long getErrors ();
+      long getRows ();
+      double getTotalMillis ();
+      double getMeanMillis ();
+      double getP50Millis ();
+      double getP95Millis ();
+      double getP99Millis ();
+      double getMaxMillis ();
+      void reset ();
+   }//end ShapeMBean
+
+   /**
+    * Totals and settings over JMX.
+    */
+   public interface SummaryMBean {
+      int getShapeCount ();
+      long getStatements ();
+      long getErrors ();
+      long getSlowQueries ();
+      long getSlowQueryThresholdMillis ();
+      void setSlowQueryThresholdMillis (long millis);
+      String getSlowQueryLog ();
+      String[] getTopQueries ();
+      void resetAll ();
+   }//end SummaryMBean
+
+   /**
+    * Statistics of one statement shape.
+    */
+   public static class Shape implements ShapeMBean {
+      private final String _query;
+      private final LatencyHistogram _latency = new LatencyHistogram();
+      private final AtomicLong _rows = new AtomicLong(0);
+      private final AtomicLong _errors = new AtomicLong(0);
+
+      Shape (String query) {
+         this._query = query;
+      }//end Shape
+
+      public String getQuery () { return this._query; }
+      public long getCount () { return this._latency.getCount(); }
+      public long getErrors () { return this._errors.get(); }
+      public long getRows () { return this._rows.get(); }
+      public double getTotalMillis () { return this._latency.getMeanMicros() * this._latency.getCount() / 1000.0; }
+      public double getMeanMillis () { return this._latency.getMeanMicros() / 1000.0; }
+      public double getP50Millis () { return this._latency.getPercentileMicros(50) / 1000.0; }
+      public double getP95Millis () { return this._latency.getPercentileMicros(95) / 1000.0; }
+      public double getP99Millis () { return this._latency.getPercentileMicros(99) / 1000.0; }
+      public double getMaxMillis () { return this._latency.getMaxMicros() / 1000.0; }
+
+      public void reset () {
+         this._latency.reset();
+         this._rows.set(0);
+         this._errors.set(0);
+      }//end reset
+
+      public String toString () {
+         return String.format("%s rows=%d errors=%d total=%.1fms %s", this._latency, getRows(), getErrors(),
+                              getTotalMillis(), this._query);
+      }//end toString
+   }//end Shape
+
+   // shapes by normalized text, and the shape of every statement text seen
+   private static final ConcurrentHashMap<String, Shape> SHAPES = new ConcurrentHashMap<String, Shape>();
+   private static final ConcurrentHashMap<String, Shape> TEXTS = new ConcurrentHashMap<String, Shape>();
+   private static final AtomicInteger NEXT_ID = new AtomicInteger(0);
+
+   private static final AtomicLong SLOW = new AtomicLong(0);
+   private static volatile long slowThresholdNanos =
+      Long.getLong("messenger.slowlog.threshold", DEFAULT_SLOW_THRESHOLD_MS) * 1000000L;
+   private static final String SLOW_LOG = System.getProperty("messenger.slowlog.file", DEFAULT_SLOW_LOG);
+   private static PrintWriter slowLog = null;
+
+   private static final Pattern STRING = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern NUMBER = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+   private static final Pattern SPACE = Pattern.compile("\\s+");
+   private static final Pattern ROWS = Pattern.compile("(\\(\\?(?:, ?\\?)*\\))(?:, ?\\(\\?(?:, ?\\?)*\\))+");
+
+   static {
+      try{
+         ManagementFactory.getPlatformMBeanServer().registerMBean(
+            new StandardMBean(new Summary(), SummaryMBean.class),
+            new ObjectName("messenger:type=QueryStats"));
+      }catch (Exception e){
+         System.err.println("Query statistics are not published over JMX: " + e.getMessage());
+      }//end try
+   }//end static
+
+   /**
+    * Records one statement. Called from a finally block right after the
+    * statement ran.
+    *
+    * @param sql the statement text as it was prepared
+    * @param begin System.nanoTime() taken before the statement ran
+    * @param rows the rows returned or changed, negative when it failed
+    * @param params the values bound to the statement, for the slow log
+    */
+   public static void record (String sql, long begin, int rows, Object[] params) {
+      long nanos = System.nanoTime() - begin;
+      Shape shape = shapeOf(sql);
+      shape._latency.recordNanos(nanos);
+      if (rows < 0)
+         shape._errors.incrementAndGet();
+      else
+         shape._rows.addAndGet(rows);
+      long threshold = slowThresholdNanos;
+      if (threshold >= 0 && nanos >= threshold)
+         logSlow(sql, nanos, rows, params);
+   }//end record
+
+   /**
+    * @return every shape seen so far, slowest in total first
+    */
+   public static List<Shape> shapes () {
+      List<Shape> shapes = new ArrayList<Shape>(SHAPES.values());
+      Collections.sort(shapes, new Comparator<Shape>() {
+         public int compare (Shape a, Shape b) {
+            return Double.compare(b.getTotalMillis(), a.getTotalMillis());
+         }
+      });
+      return shapes;
+   }//end shapes
+
+   /**
+    * Normalizes a statement: literals become '?', white space is collapsed
+    * and the rows of a multi-row VALUES list are folded into one.
+    */
+   public static String normalize (String sql) {
+      String shape = STRING.matcher(sql).replaceAll("?");
+      shape = NUMBER.matcher(shape).replaceAll("?");
+      shape = SPACE.matcher(shape).replaceAll(" ").trim().toLowerCase();
+      return ROWS.matcher(shape).replaceAll("$1, ...");
+   }//end normalize
+
+   private static Shape shapeOf (String sql) {
+      Shape shape = TEXTS.get(sql);
+      if (shape != null)
+         return shape;
+      String text = normalize(sql);
+      shape = SHAPES.get(text);
+      if (shape == null) {
+         Shape created = new Shape(text);
+         shape = SHAPES.putIfAbsent(text, created);
+         if (shape == null) {
+            shape = created;
+            register(created);
+         }//end if
+      }//end if
+      if (TEXTS.size() < MAX_CACHED_TEXTS)
+         TEXTS.put(sql, shape);
+      return shape;
+   }//end shapeOf
+
+   private static void register (Shape shape) {
+      try{
+         ManagementFactory.getPlatformMBeanServer().registerMBean(
+            new StandardMBean(shape, ShapeMBean.class),
+            new ObjectName("messenger:type=Query,id=" + NEXT_ID.incrementAndGet()));
+      }catch (Exception e){
+         // the statistics are still kept and printed.
+      }//end try
+   }//end register
+
+   /*
+    * Appends one line to the slow query log. Values bound to statements
+    * that touch passwords are left out.
+    **/
+   private static synchronized void logSlow (String sql, long nanos, int rows, Object[] params) {
+      SLOW.incrementAndGet();
+      try{
+         if (slowLog == null)
+            slowLog = new PrintWriter(new FileWriter(SLOW_LOG, true), true);
+         Session session = Session.current();
+         slowLog.println(String.format("%s %.3fms %s session=%s %s %s",
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date()),
+            nanos / 1e6, rows < 0 ? "failed" : "rows=" + rows,
+            session == null ? "console" : session.getName(),
+            SPACE.matcher(sql).replaceAll(" ").trim(),
+            sql.toLowerCase().contains("password") ? "[hidden]" : Arrays.deepToString(params)));
+      }catch (IOException e){
+         System.err.println("Cannot write the slow query log: " + e.getMessage());
+         slowThresholdNanos = -1;
+      }//end try
+   }//end logSlow
+
+   /**
+    * The messenger:type=QueryStats MBean.
+    */
+   private static class Summary implements SummaryMBean {
+      public int getShapeCount () { return SHAPES.size(); }
+      public long getSlowQueries () { return SLOW.get(); }
+      public String getSlowQueryLog () { return SLOW_LOG; }
+      public long getSlowQueryThresholdMillis () { return slowThresholdNanos / 1000000L; }
+      public void setSlowQueryThresholdMillis (long millis) { slowThresholdNanos = millis * 1000000L; }
+
+      public long getStatements () {
+         long count = 0;
+         for (Shape shape : SHAPES.values())
+            count += shape.getCount();
+         return count;
+      }//end getStatements
+
+      public long getErrors () {
+         long count = 0;
+         for (Shape shape : SHAPES.values())
+            count += shape.getErrors();
+         return count;
+      }//end getErrors
+
+      public String[] getTopQueries () {
+         List<Shape> shapes = shapes();
+         String[] top = new String[Math.min(10, shapes.size())];
+         for (int i = 0; i < top.length; ++i)
+            top[i] = shapes.get(i).toString();
+         return top;
+      }//end getTopQueries
+
+      public void resetAll () {
+         for (Shape shape : SHAPES.values())
+            shape.reset();
+         SLOW.set(0);
+      }//end resetAll
+   }//end Summary
+}//end QueryStats
@@ -0,0 +1,248 @@
+/*
+ * Renderer benchmark
+ * ==================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * This class compares the table renderers of Messenger, drawn through
+ * TableRenderer, with the printf renderers they replaced (kept below as
+ * they were). Both draw the same pages of real rows: the chat list of
+ * the user in most chats, the newest messages of the busiest chat and a
+ * contact list. It first checks that both print the same bytes, then
+ * reports for each the bytes allocated and the time per page, drawn into
+ * a stream that drops them.
+ *
+ * Allocations are read from the HotSpot thread allocation counter and are
+ * reported as n/a on JVMs without it.
+ *
+ */
+public class RendererBenchmark {
+
+   private static final int WARMUP_PAGES = 20000;
+   private static final int PAGES = 50000;
+
+   /*
+    * Draws one page.
+    **/
+   private interface Page {
+      void draw ();
+   }//end Page
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            RendererBenchmark.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      Messenger esql = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Messenger (args[0], args[1], args[2], "");
+
+         final Vector<Messenger.chat> inbox = new Vector<Messenger.chat>();
+         List<List<String>> user = esql.executeQueryAndReturnResult(
+            "select u.login from chat_list cl join usr u on u.user_id = cl.member_id " +
+            "group by u.login order by count(1) desc limit 1");
+         if (!user.isEmpty())
+            esql.get_chat(Messenger.VIEW_CHATS_QUERY, inbox, user.get(0).get(0));
+         final Vector<Messenger.message> messages = new Vector<Messenger.message>();
+         List<List<String>> chat = esql.executeQueryAndReturnResult(
+            "select chat_id from chat_summary order by last_msg_id desc limit 1");
+         if (!chat.isEmpty())
+            Messenger.loadMessagePage(esql, Integer.parseInt(chat.get(0).get(0)), "infinity", Integer.MAX_VALUE, messages);
+         final Vector<Messenger.contacts> contacts = new Vector<Messenger.contacts>();
+         List<List<String>> owner = esql.executeQueryAndReturnResult(
+            "select u.login from usr u join user_list_contains c on c.list_id = u.contact_list " +
+            "group by u.login order by count(1) desc limit 1");
+         if (!owner.isEmpty())
+            esql.get_contact_list(owner.get(0).get(0), contacts);
+
+         System.out.println(String.format("%-16s %6s %10s %14s %12s", "table", "rows", "renderer", "bytes/page", "us/page"));
+         compare("printChats", Math.min(10, inbox.size()), new Page() {
+            public void draw () { legacyPrintChats(inbox, 0); }
+         }, new Page() {
+            public void draw () { Messenger.printChats(inbox, 0); }
+         });
+         compare("printMessages", Math.min(10, messages.size()), new Page() {
+            public void draw () { legacyPrintMessages(messages, 0); }
+         }, new Page() {
+            public void draw () { Messenger.printMessages(messages, 0); }
+         });
+         compare("printContacts", Math.min(10, contacts.size()), new Page() {
+            public void draw () { legacyPrintContacts(contacts, 0, false); }
+         }, new Page() {
+            public void draw () { Messenger.printContacts(contacts, 0, false); }
+         });
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end main
+
+   private static void compare (String table, int rows, Page before, Page after) {
+      byte[] expected = capture(before);
+      byte[] actual = capture(after);
+      if (!Arrays.equals(expected, actual))
+         System.out.println(table + ": the output differs from the printf renderer");
+      measure(table, rows, "printf", before);
+      measure(table, rows, "buffered", after);
+   }//end compare
+
+   private static byte[] capture (Page page) {
+      PrintStream out = System.out;
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      System.setOut(new PrintStream(bytes, true));
+      try{
+         page.draw();
+      }finally{
+         System.setOut(out);
+      }//end try
+      return bytes.toByteArray();
+   }//end capture
+
+   private static void measure (String table, int rows, String renderer, Page page) {
+      PrintStream out = System.out;
+      System.setOut(new PrintStream(new OutputStream() {
+         public void write (int b) { }
+         public void write (byte[] b, int off, int len) { }
+      }));
+      long allocated;
+      long nanos;
+      try{
+         for (int i = 0; i < WARMUP_PAGES; ++i)
+            page.draw();
+         long bytes = allocatedBytes();
+         long begin = System.nanoTime();
+         for (int i = 0; i < PAGES; ++i)
+            page.draw();
+         nanos = System.nanoTime() - begin;
+         allocated = bytes < 0 ? -1 : allocatedBytes() - bytes;
+      }finally{
+         System.setOut(out);
+      }//end try
+      System.out.println(String.format("%-16s %6d %10s %14s %12.2f", table, rows, renderer,
+                                       allocated < 0 ? "n/a" : String.valueOf(allocated / PAGES),
+                                       nanos / 1e3 / PAGES));
+   }//end measure
+
+   /*
+    * @return the bytes allocated by this thread so far, -1 when unknown
+    **/
+   private static long allocatedBytes () {
+      java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      if (!(threads instanceof com.sun.management.ThreadMXBean))
+         return -1;
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+   }//end allocatedBytes
+
+   /*
+    * The renderers as they were before TableRenderer.
+    **/
+   static void legacyPrintContacts (Vector<Messenger.contacts> list, int Start, boolean included) {
+      int end;
+      if ((Start + 10) > list.size())
+         end = list.size();
+      else
+         end = (Start + 10);
+
+      for (int i = Start; i < end; i++) {
+         if (i == 0) {
+            System.out.printf("%-30.30s%n", "************************************************************************************************************************************************************************");
+            System.out.printf("%-1.1s %-3.3s %-1.1s %-15.15s %3.3s%n", "*", " #", "*", " Contact Name", "*");
+            System.out.printf("%-30.30s%n", "************************************************************************************************************************************************************************");
+         }//end if
+         Messenger.contacts objs = list.get(i);
+         if (objs.selected.equals(included ? "Y" : "N"))
+            System.out.printf("%-1.1s %-5.5s %-1.1s %-10.10s %-1.1s%n", " ", objs.id, " ", objs.login, " ");
+      }//end for
+   }//end legacyPrintContacts
+
+   static void legacyPrintChats (Vector<Messenger.chat> list, int Start) {
+      int end;
+      if ((Start + 10) > list.size())
+         end = list.size();
+      else
+         end = (Start + 10);
+
+      for (int i = Start; i < end; i++) {
+         if (i == 0) {
+            System.out.printf("%-106.106s%n", "************************************************************************************************************************************************************************");
+            System.out.printf("%-1.1s %-3.3s %-1.1s %-10.10s %-1.1s %-20.20s %-1.1s %-40.40s %-1.1s %-15.15s %3.3s%n", "*", " #", "*", " Chat Type", "*", "    Last Sender", "*", "             Last Message", "*", "      Date", "*");
+            System.out.printf("%-106.106s%n", "************************************************************************************************************************************************************************");
+         }//end if
+         Messenger.chat objs = list.get(i);
+         System.out.printf("%-1.1s %-5.5s %-1.1s %-10.10s %-1.1s %-20.20s %-1.1s %-40.40s %-1.1s %-15.15s %-1.1s%n", " ", objs.id, " ", objs.chat_type, " ", objs.sender, " ", objs.msg + "...", " ", objs.date, " ");
+      }//end for
+   }//end legacyPrintChats
+
+   static void legacyPrintMessages (Vector<Messenger.message> list, int Start) {
+      int end;
+      String[] msg;
+      if ((Start + 10) > list.size())
+         end = list.size();
+      else
+         end = (Start + 10);
+
+      for (int i = Start; i < end; i++) {
+         if (i == Start) {
+            System.out.printf("%-106.106s%n", "************************************************************************************************************************************************************************");
+            System.out.printf("%-1.1s %-3.3s %-1.1s %-20.20s %-1.1s %-15.15s %-1.1s %-40.40s %16.16s%n", "*", " #", "*", "    Sender", "*", "    Date", "*", "                  Message", "*");
+            System.out.printf("%-106.106s%n", "************************************************************************************************************************************************************************");
+         }//end if
+         Messenger.message objs = list.get(i);
+
+         int arrayLength = (int) Math.ceil(((objs.msg.length() / (double) 40)));
+         msg = new String[arrayLength];
+
+         msg = splitStringEvery(objs.msg, 40);
+
+         System.out.printf("%-1.1s %-3.3s %-1.1s %-20.20s %-1.1s %-15.15s %1.1s", " ", objs.id, " ", objs.sender, " ", objs.date, " ");
+         System.out.printf("%46s%n", msg[0]);
+         for (int j = 1; j < msg.length; j++)
+            System.out.printf("%94s%n", msg[j]);
+      }//end for
+   }//end legacyPrintMessages
+
+   // the wrapping legacyPrintMessages did, kept here since Messenger
+   // renders through TableRenderer
+   static String[] splitStringEvery (String s, int interval) {
+      int arrayLength = (int) Math.ceil(((s.length() / (double) interval)));
+      String[] result = new String[arrayLength];
+
+      int j = 0;
+      int lastIndex = result.length - 1;
+      for (int i = 0; i < lastIndex; i++) {
+         result[i] = s.substring(j, j + interval);
+         j += interval;
+      }//end for
+      result[lastIndex] = s.substring(j);
+
+      return result;
+   }//end splitStringEvery
+}//end RendererBenchmark
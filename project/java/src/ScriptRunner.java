@@ -0,0 +1,543 @@
+/*
+ * Messenger script runner
+ * =======================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * This class runs Messenger without its menus, from a script of commands
+ * read from a file or stdin, one per line:
+ *
+ *    user <login> <password> <phone>               creates a user
+ *    login <login> <password>                      checks the credentials
+ *    password <login> <old> <new>                  changes the password
+ *    status <login> <text>                         sets the status
+ *    contact <login> <member>                      adds to the contact list
+ *    block <login> <member>                        adds to the block list
+ *    [@label] chat <login> <type> [<member> ...]   creates a chat
+ *    members <chat> <member> [<member> ...]        adds members to a chat
+ *    send <login> <chat> <text>                    sends a message
+ *    chats <login>                                 lists the chats of a user
+ *    delete-account <login> <password>             deletes an account
+ *
+ * Arguments are separated by blanks, an argument in double quotes may
+ * hold blanks, \" and \\. The text of status and send is the rest of the
+ * line. A <chat> is a chat_id or the @label of a chat created earlier in
+ * the script. Lines starting with # are comments.
+ *
+ * The commands call the same Messenger methods as the menu handlers.
+ * Commands run on messenger.script.threads threads (8), each on its own
+ * pooled connection, and a command only waits for the earlier commands on
+ * the same users, chats or labels. Runs of the same write are batched,
+ * up to messenger.script.batchSize (256, at most 4096) commands: new
+ * users are inserted in one transaction, many rows per statement, and
+ * messages are queued together so the send queue commits them together.
+ * When a batch of users fails its users are created one at a time, so
+ * every line gets its own result.
+ *
+ * Every command prints one JSON line on stdout, in script order:
+ *
+ *    {"line":3,"command":"chat","ok":true,"result":42}
+ *    {"line":4,"command":"send","ok":false,"error":"No such user ..."}
+ *
+ * Everything else Messenger prints goes to stderr.
+ *
+ */
+public class ScriptRunner {
+
+   public static final int DEFAULT_THREADS = 8;
+   public static final int DEFAULT_BATCH_SIZE = 256;
+   // commands read ahead of the results printed
+   private static final int WINDOW = 4096;
+
+   // the argument counts of every command, -1 for any number
+   private static final Map<String, int[]> ARITY = new HashMap<String, int[]>();
+   static {
+      ARITY.put("user", new int[] {3, 3});
+      ARITY.put("login", new int[] {2, 2});
+      ARITY.put("password", new int[] {3, 3});
+      ARITY.put("status", new int[] {1, -1});
+      ARITY.put("contact", new int[] {2, 2});
+      ARITY.put("block", new int[] {2, 2});
+      ARITY.put("chat", new int[] {2, -1});
+      ARITY.put("members", new int[] {2, -1});
+      ARITY.put("send", new int[] {3, -1});
+      ARITY.put("chats", new int[] {1, 1});
+      ARITY.put("delete-account", new int[] {2, 2});
+   }//end static
+
+   /*
+    * One line of the script and its result.
+    **/
+   private static final class Command {
+      final int line;
+      final String name;
+      final String label;
+      final String[] args;
+      final Set<String> keys = new LinkedHashSet<String>();
+      Future<?> done;
+      volatile String output;
+
+      Command (int line, String name, String label, String[] args) {
+         this.line = line;
+         this.name = name;
+         this.label = label;
+         this.args = args;
+      }//end Command
+
+      /*
+       * @return the arguments from i on, joined by blanks
+       **/
+      String rest (int i) {
+         StringBuilder text = new StringBuilder();
+         for (int j = i; j < this.args.length; ++j)
+            text.append(j == i ? "" : " ").append(this.args[j]);
+         return text.toString();
+      }//end rest
+
+      void succeeded (Object result) {
+         this.output = "{\"line\":" + this.line + ",\"command\":" + quote(this.name) + ",\"ok\":true" +
+                       (result == null ? "" : ",\"result\":" + json(result)) + "}";
+      }//end succeeded
+
+      void failed (Throwable e) {
+         String message = e.getMessage() == null ? e.toString() : e.getMessage();
+         this.output = "{\"line\":" + this.line + ",\"command\":" + quote(this.name) +
+                       ",\"ok\":false,\"error\":" + quote(message) + "}";
+      }//end failed
+   }//end Command
+
+   // marks the end of the results
+   private static final Command END = new Command(0, "", null, new String[0]);
+
+   private final Messenger _esql;
+   private final PrintStream _results;
+   private final int _batchSize;
+   private final ExecutorService _workers;
+   private final Semaphore _window = new Semaphore(WINDOW);
+   private final BlockingQueue<Command> _pending = new LinkedBlockingQueue<Command>();
+   // the last task on every user, chat and label, only used by the reader
+   private final Map<String, Future<?>> _last = new HashMap<String, Future<?>>();
+   private final ConcurrentHashMap<String, Integer> _labels = new ConcurrentHashMap<String, Integer>();
+
+   public ScriptRunner (Messenger esql, PrintStream results, int threads, int batchSize) {
+      this._esql = esql;
+      this._results = results;
+      // a batch takes a permit per command, it could never get more than WINDOW
+      this._batchSize = Math.min(WINDOW, Math.max(1, batchSize));
+      this._workers = Executors.newFixedThreadPool(Math.max(1, threads));
+   }//end ScriptRunner
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> [script file]
+    */
+   public static void main (String[] args) {
+      if (args.length != 3 && args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            ScriptRunner.class.getName () +
+            " <dbname> <port> <user> [script file]");
+         return;
+      }//end if
+
+      // stdout only carries results
+      PrintStream results = System.out;
+      System.setOut(System.err);
+      Messenger esql = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Messenger (args[0], args[1], args[2], "");
+         BufferedReader in = new BufferedReader(args.length == 4 ? new FileReader(args[3])
+                                                                 : new InputStreamReader(System.in));
+         try{
+            new ScriptRunner(esql, results,
+                             Integer.getInteger("messenger.script.threads", DEFAULT_THREADS),
+                             Integer.getInteger("messenger.script.batchSize", DEFAULT_BATCH_SIZE)).run(in);
+         }finally{
+            in.close();
+         }//end try
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         results.flush();
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end main
+
+   /**
+    * Runs every command of the script and prints their results.
+    */
+   public void run (BufferedReader in) throws IOException, InterruptedException {
+      Thread printer = new Thread(new Runnable() {
+         public void run () {
+            printResults();
+         }
+      }, "script-results");
+      printer.start();
+      try{
+         List<Command> batch = new ArrayList<Command>();
+         String text;
+         int line = 0;
+         while ((text = in.readLine()) != null) {
+            ++line;
+            Command cmd;
+            try{
+               cmd = parse(line, text);
+            }catch (IllegalArgumentException e){
+               flush(batch);
+               cmd = new Command(line, "", null, new String[0]);
+               cmd.failed(e);
+               submit(Arrays.asList(cmd));
+               continue;
+            }//end try
+            if (cmd == null)
+               continue;
+            boolean batched = cmd.name.equals("user") || cmd.name.equals("send");
+            if (!batch.isEmpty() && (!cmd.name.equals(batch.get(0).name) || batch.size() >= this._batchSize))
+               flush(batch);
+            if (batched)
+               batch.add(cmd);
+            else
+               submit(Arrays.asList(cmd));
+            // a script typed or piped slowly does not wait for a full batch
+            if (!in.ready())
+               flush(batch);
+         }//end while
+         flush(batch);
+      }finally{
+         this._pending.put(END);
+         printer.join();
+         this._workers.shutdown();
+      }//end try
+   }//end run
+
+   /*
+    * @return the command of a line, null for a blank line or a comment
+    * @throws java.lang.IllegalArgumentException when the line is malformed
+    **/
+   static Command parse (int line, String text) {
+      List<String> tokens = tokenize(text);
+      if (tokens.isEmpty() || tokens.get(0).startsWith("#"))
+         return null;
+      String label = null;
+      if (tokens.get(0).startsWith("@")) {
+         label = tokens.remove(0);
+         if (tokens.isEmpty() || !tokens.get(0).equalsIgnoreCase("chat"))
+            throw new IllegalArgumentException("Only a chat can be labelled: " + text);
+      }//end if
+      String name = tokens.remove(0).toLowerCase();
+      int[] arity = ARITY.get(name);
+      if (arity == null)
+         throw new IllegalArgumentException("Unknown command: " + name);
+      if (tokens.size() < arity[0] || (arity[1] >= 0 && tokens.size() > arity[1]))
+         throw new IllegalArgumentException("Wrong number of arguments for " + name + ": " + text);
+      Command cmd = new Command(line, name, label, tokens.toArray(new String[tokens.size()]));
+
+      // what the command reads or writes, commands sharing any run in order
+      if (name.equals("members")) {
+         cmd.keys.add("chat:" + cmd.args[0]);
+      }else{
+         cmd.keys.add("user:" + cmd.args[0]);
+      }//end if
+      if (name.equals("contact") || name.equals("block"))
+         cmd.keys.add("user:" + cmd.args[1]);
+      if (name.equals("chat") || name.equals("members"))
+         for (int i = name.equals("chat") ? 2 : 1; i < cmd.args.length; ++i)
+            cmd.keys.add("user:" + cmd.args[i]);
+      if (name.equals("send"))
+         cmd.keys.add("chat:" + cmd.args[1]);
+      if (label != null)
+         cmd.keys.add("chat:" + label);
+      return cmd;
+   }//end parse
+
+   static List<String> tokenize (String text) {
+      List<String> tokens = new ArrayList<String>();
+      StringBuilder token = null;
+      boolean quoted = false;
+      for (int i = 0; i < text.length(); ++i) {
+         char c = text.charAt(i);
+         if (quoted) {
+            if (c == '\\' && i + 1 < text.length())
+               token.append(text.charAt(++i));
+            else if (c == '"')
+               quoted = false;
+            else
+               token.append(c);
+         }else if (Character.isWhitespace(c)) {
+            if (token != null)
+               tokens.add(token.toString());
+            token = null;
+         }else{
+            if (token == null)
+               token = new StringBuilder();
+            if (c == '"')
+               quoted = true;
+            else
+               token.append(c);
+         }//end if
+      }//end for
+      if (quoted)
+         throw new IllegalArgumentException("Unterminated quote: " + text);
+      if (token != null)
+         tokens.add(token.toString());
+      return tokens;
+   }//end tokenize
+
+   private void flush (List<Command> batch) throws InterruptedException {
+      if (batch.isEmpty())
+         return;
+      submit(new ArrayList<Command>(batch));
+      batch.clear();
+   }//end flush
+
+   /*
+    * Runs commands as one task once the earlier commands they depend on
+    * are done.
+    **/
+   private void submit (final List<Command> task) throws InterruptedException {
+      final List<Future<?>> waits = new ArrayList<Future<?>>();
+      for (Command cmd : task)
+         for (String key : cmd.keys) {
+            Future<?> last = this._last.get(key);
+            if (last != null && !last.isDone() && !waits.contains(last))
+               waits.add(last);
+         }//end for
+
+      this._window.acquire(task.size());
+      FutureTask<Void> future = new FutureTask<Void>(new Runnable() {
+         public void run () {
+            // the fixed pool starts tasks in order, so what is waited
+            // for has been started already
+            for (Future<?> wait : waits)
+               await(wait);
+            execute(task);
+         }
+      }, null);
+      for (Command cmd : task) {
+         for (String key : cmd.keys)
+            this._last.put(key, future);
+         cmd.done = future;
+         this._pending.put(cmd);
+      }//end for
+      if (task.get(0).output != null)
+         future.run();
+      else
+         this._workers.execute(future);
+
+      if (this._last.size() > 4 * WINDOW)
+         for (Iterator<Future<?>> i = this._last.values().iterator(); i.hasNext(); )
+            if (i.next().isDone())
+               i.remove();
+   }//end submit
+
+   private static void await (Future<?> future) {
+      try{
+         future.get();
+      }catch (ExecutionException e){
+         // every command records its own error.
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end await
+
+   private void printResults () {
+      try{
+         while (true) {
+            Command cmd = this._pending.take();
+            if (cmd == END)
+               break;
+            await(cmd.done);
+            this._results.println(cmd.output);
+            if (this._pending.isEmpty())
+               this._results.flush();
+            this._window.release();
+         }//end while
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+      this._results.flush();
+   }//end printResults
+
+   private void execute (List<Command> task) {
+      if (task.get(0).output != null)
+         return;
+      if (task.size() > 1 && task.get(0).name.equals("user")) {
+         List<String[]> users = new ArrayList<String[]>(task.size());
+         for (Command cmd : task)
+            users.add(cmd.args);
+         try{
+            this._esql.createUsers(users);
+            for (Command cmd : task)
+               cmd.succeeded(null);
+            return;
+         }catch (Exception e){
+            // one at a time below, to tell which failed
+         }//end try
+      }//end if
+      if (task.size() > 1 && task.get(0).name.equals("send")) {
+         sendAll(task);
+         return;
+      }//end if
+      for (Command cmd : task) {
+         try{
+            cmd.succeeded(perform(cmd));
+         }catch (Exception e){
+            cmd.failed(e);
+         }//end try
+      }//end for
+   }//end execute
+
+   /*
+    * Queues every message first, so they are committed together.
+    **/
+   private void sendAll (List<Command> task) {
+      SendQueue.Receipt[] receipts = new SendQueue.Receipt[task.size()];
+      for (int i = 0; i < task.size(); ++i) {
+         Command cmd = task.get(i);
+         try{
+            receipts[i] = this._esql.sendMessageAsync(cmd.args[0], chatId(cmd.args[1]), cmd.rest(2));
+         }catch (Exception e){
+            cmd.failed(e);
+         }//end try
+      }//end for
+      for (int i = 0; i < task.size(); ++i) {
+         if (receipts[i] == null)
+            continue;
+         try{
+            if (receipts[i].get())
+               task.get(i).succeeded(null);
+            else
+               task.get(i).failed(new SQLException("A member of this chat has blocked you, the message was not sent"));
+         }catch (SQLException e){
+            task.get(i).failed(e);
+         }//end try
+      }//end for
+   }//end sendAll
+
+   /*
+    * Runs one command through the Messenger methods of its menu handler.
+    * @return its result, null when it has none
+    **/
+   private Object perform (Command cmd) throws SQLException {
+      Messenger esql = this._esql;
+      String[] a = cmd.args;
+      if (cmd.name.equals("user")) {
+         esql.createUser(a[0], a[1], a[2]);
+      }else if (cmd.name.equals("login")) {
+         if (!esql.checkLogin(a[0], a[1]))
+            throw new SQLException("Username or Password is incorrect");
+      }else if (cmd.name.equals("password")) {
+         if (!esql.changePassword(a[0], a[1], a[2]))
+            throw new SQLException("Username or Password is incorrect");
+      }else if (cmd.name.equals("status")) {
+         if (!esql.userExists(a[0]))
+            throw new SQLException("User Login Provided Does not Exist");
+         esql.updateStatus(a[0], cmd.rest(1));
+      }else if (cmd.name.equals("contact") || cmd.name.equals("block")) {
+         String list = cmd.name.equals("contact") ? SocialGraphCache.CONTACT : SocialGraphCache.BLOCK;
+         if (!esql.userExists(a[1]))
+            throw new SQLException("User Login Provided Does not Exist");
+         if (esql.isListed(a[0], list, a[1]))
+            throw new SQLException("User Login Provided is already Added");
+         esql.addToList(a[0], list, a[1]);
+      }else if (cmd.name.equals("chat")) {
+         int chatId = esql.createChat(a[0], a[1], Arrays.asList(a).subList(2, a.length));
+         if (cmd.label != null)
+            this._labels.put(cmd.label, chatId);
+         return chatId;
+      }else if (cmd.name.equals("members")) {
+         return esql.addChatMembers(chatId(a[0]), Arrays.asList(a).subList(1, a.length));
+      }else if (cmd.name.equals("send")) {
+         if (!esql.sendMessage(a[0], chatId(a[1]), cmd.rest(2)))
+            throw new SQLException("A member of this chat has blocked you, the message was not sent");
+      }else if (cmd.name.equals("chats")) {
+         Vector<Messenger.chat> list = new Vector<Messenger.chat>();
+         esql.get_chat(Messenger.VIEW_CHATS_QUERY, list, a[0]);
+         List<Integer> ids = new ArrayList<Integer>(list.size());
+         for (Messenger.chat c : list)
+            ids.add(c.chat_id);
+         return ids;
+      }else if (cmd.name.equals("delete-account")) {
+         if (!esql.deleteAccount(a[0], a[1]))
+            throw new SQLException("Username or Password is incorrect");
+      }//end if
+      return null;
+   }//end perform
+
+   private int chatId (String chat) throws SQLException {
+      if (!chat.startsWith("@"))
+         return Integer.parseInt(chat);
+      Integer chatId = this._labels.get(chat);
+      if (chatId == null)
+         throw new SQLException("No chat created as " + chat);
+      return chatId;
+   }//end chatId
+
+   private static String json (Object value) {
+      if (value instanceof Number || value instanceof Boolean)
+         return value.toString();
+      if (value instanceof List) {
+         StringBuilder list = new StringBuilder("[");
+         for (Object item : (List<?>) value)
+            list.append(list.length() == 1 ? "" : ",").append(json(item));
+         return list.append(']').toString();
+      }//end if
+      return quote(value.toString());
+   }//end json
+
+   static String quote (String s) {
+      StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+      for (int i = 0; i < s.length(); ++i) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"': quoted.append("\\\""); break;
+            case '\\': quoted.append("\\\\"); break;
+            case '\n': quoted.append("\\n"); break;
+            case '\r': quoted.append("\\r"); break;
+            case '\t': quoted.append("\\t"); break;
+            default:
+               if (c < 0x20)
+                  quoted.append(String.format("\\u%04x", (int) c));
+               else
+                  quoted.append(c);
+         }//end switch
+      }//end for
+      return quoted.append('"').toString();
+   }//end quote
+}//end ScriptRunner
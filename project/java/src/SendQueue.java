@@ -0,0 +1,428 @@
+/*
+ * Send queue
+ * ==========
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ */
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class writes sent messages behind the senders, many per commit.
+ * send() puts a message on a bounded queue and returns a Receipt; one
+ * writer thread takes what is queued, waits at most maxDelay for more
+ * until it has batchSize messages, and inserts them with multi-row
+ * inserts in one transaction. Under a burst every message then shares
+ * the commit (and its fsync) with the others of its batch, where sending
+ * them one by one costs a commit each.
+ *
+ * A full queue makes send() wait up to offerTimeout for room, so senders
+ * slow down to the rate the database takes. When a batch fails its
+ * messages are retried one by one, so one bad message (e.g. to a chat
+ * deleted meanwhile) only fails its own receipt.
+ *
+ * close() writes what is queued and then stops; a send after it is
+ * refused. Should the writer stop anyway its pending receipts fail, and
+ * Receipt.get() gives up after a timeout, so a sender never waits forever.
+ *
+ * Settings, as system properties: messenger.send.queueSize (1024),
+ * messenger.send.batchSize (64), messenger.send.maxDelay (2 ms, 0 only
+ * batches what queued up during the previous commit) and
+ * messenger.send.offerTimeout (5000 ms).
+ *
+ */
+public class SendQueue {
+
+   public static final int DEFAULT_QUEUE_SIZE = 1024;
+   public static final int DEFAULT_BATCH_SIZE = 64;
+   public static final long DEFAULT_MAX_DELAY_MS = 2;
+   public static final long DEFAULT_OFFER_TIMEOUT_MS = 5000;
+   public static final long DEFAULT_RECEIPT_TIMEOUT_MS = 30000;
+
+   // most rows per insert, longer batches are split into power of two
+   // chunks so only a handful of statement shapes get cached
+   private static final int MAX_ROWS_PER_INSERT = 64;
+
+   /**
+    * Completion handle of one send.
+    */
+   public static class Receipt {
+      private final CountDownLatch _done = new CountDownLatch(1);
+      private volatile boolean _sent;
+      private volatile SQLException _error;
+
+      public boolean isDone () {
+         return this._done.getCount() == 0;
+      }//end isDone
+
+      /**
+       * Waits until the message is committed, at most
+       * DEFAULT_RECEIPT_TIMEOUT_MS.
+       *
+       * @return false when the message was refused before it was queued
+       * @throws java.sql.SQLException when the message could not be written
+       */
+      public boolean get () throws SQLException {
+         return get(DEFAULT_RECEIPT_TIMEOUT_MS);
+      }//end get
+
+      /**
+       * @param timeoutMs how long to wait for the commit
+       * @return false when the message was refused before it was queued
+       * @throws java.sql.SQLException when the message could not be written
+       *         or was not written in time (it may still be later)
+       */
+      public boolean get (long timeoutMs) throws SQLException {
+         try{
+            if (!this._done.await(timeoutMs, TimeUnit.MILLISECONDS))
+               throw new SQLException("The message was not sent within " + timeoutMs + " ms");
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the message to be sent");
+         }//end try
+         if (this._error != null)
+            throw this._error;
+         return this._sent;
+      }//end get
+
+      // the first completion wins, a receipt failed by the writer
+      // stopping is not completed again
+      synchronized boolean complete (boolean sent, SQLException error) {
+         if (isDone())
+            return false;
+         this._sent = sent;
+         this._error = error;
+         this._done.countDown();
+         return true;
+      }//end complete
+
+      /**
+       * @return a receipt of a message that was not sent
+       */
+      public static Receipt refused () {
+         Receipt receipt = new Receipt();
+         receipt.complete(false, null);
+         return receipt;
+      }//end refused
+   }//end Receipt
+
+   /**
+    * Told about every message written, right after its commit.
+    */
+   public interface Listener {
+      void written (int chatId, int msgId);
+   }//end Listener
+
+   /*
+    * One queued message.
+    **/
+   private static class Send {
+      final int msgId;
+      final String text;
+      final int chatId;
+      final String sender;
+      final long queued = System.nanoTime();
+      final Receipt receipt = new Receipt();
+
+      Send (int msgId, String text, int chatId, String sender) {
+         this.msgId = msgId;
+         this.text = text;
+         this.chatId = chatId;
+         this.sender = sender;
+      }//end Send
+   }//end Send
+
+   private final ConnectionPool _pool;
+   private final ArrayBlockingQueue<Send> _queue;
+   private final int _batchSize;
+   private final long _maxDelayNanos;
+   private final long _offerTimeoutMs;
+   private final Thread _writer;
+   private volatile boolean _running = true;
+   private volatile Listener _listener = null;
+
+   private final LatencyHistogram _latency = new LatencyHistogram();
+   private final AtomicLong _batches = new AtomicLong(0);
+   private final AtomicLong _messages = new AtomicLong(0);
+   private final AtomicLong _failed = new AtomicLong(0);
+
+   public SendQueue (ConnectionPool pool, int queueSize, int batchSize, long maxDelayMs, long offerTimeoutMs) {
+      this._pool = pool;
+      this._queue = new ArrayBlockingQueue<Send>(Math.max(1, queueSize));
+      this._batchSize = Math.max(1, batchSize);
+      this._maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMs));
+      this._offerTimeoutMs = offerTimeoutMs;
+      this._writer = new Thread(new Runnable() {
+         public void run () {
+            try{
+               writeLoop();
+            }finally{
+               // also when the loop died, nothing is written any more
+               _running = false;
+               failQueued();
+            }//end try
+         }
+      }, "messenger-send-writer");
+      this._writer.setDaemon(true);
+      this._writer.start();
+   }//end SendQueue
+
+   public static SendQueue fromSystemProperties (ConnectionPool pool) {
+      return new SendQueue(pool,
+                           Integer.getInteger("messenger.send.queueSize", DEFAULT_QUEUE_SIZE),
+                           Integer.getInteger("messenger.send.batchSize", DEFAULT_BATCH_SIZE),
+                           Long.getLong("messenger.send.maxDelay", DEFAULT_MAX_DELAY_MS),
+                           Long.getLong("messenger.send.offerTimeout", DEFAULT_OFFER_TIMEOUT_MS));
+   }//end fromSystemProperties
+
+   /**
+    * Queues a message, waiting for room when the queue is full.
+    *
+    * @param msgId the key of the new message
+    * @param text the message
+    * @param chatId the chat it is sent to
+    * @param sender login of the sender
+    * @return the receipt completed once the message is committed
+    * @throws java.sql.SQLException when the queue stayed full or is closed
+    */
+   public Receipt send (int msgId, String text, int chatId, String sender) throws SQLException {
+      if (!this._running)
+         throw new SQLException("The send queue is closed");
+      Send send = new Send(msgId, text, chatId, sender);
+      try{
+         if (!this._queue.offer(send, this._offerTimeoutMs, TimeUnit.MILLISECONDS))
+            throw new SQLException("The send queue is full, try again later");
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while queueing the message");
+      }//end try
+      // closed while offering: the writer may have stopped before the
+      // message got in, unless it still takes it the message is refused
+      if (!this._running && this._queue.remove(send))
+         throw new SQLException("The send queue is closed");
+      return send.receipt;
+   }//end send
+
+   public void setListener (Listener listener) {
+      this._listener = listener;
+   }//end setListener
+
+   /**
+    * Stops taking messages, writes the ones queued and stops the writer.
+    */
+   public void close () {
+      this._running = false;
+      try{
+         this._writer.join();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end close
+
+   private void writeLoop () {
+      List<Send> batch = new ArrayList<Send>(this._batchSize);
+      while (this._running || !this._queue.isEmpty()) {
+         try{
+            Send first = this._queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null)
+               continue;
+            batch.add(first);
+            long deadline = System.nanoTime() + this._maxDelayNanos;
+            this._queue.drainTo(batch, this._batchSize - batch.size());
+            while (batch.size() < this._batchSize) {
+               long remaining = deadline - System.nanoTime();
+               if (remaining <= 0)
+                  break;
+               Send next = this._queue.poll(remaining, TimeUnit.NANOSECONDS);
+               if (next == null)
+                  break;
+               batch.add(next);
+               this._queue.drainTo(batch, this._batchSize - batch.size());
+            }//end while
+         }catch (InterruptedException e){
+            // keeps writing until closed.
+         }//end try
+         try{
+            if (!batch.isEmpty())
+               write(batch);
+         }catch (RuntimeException e){
+            // fails what the batch left pending, the writer goes on
+            System.err.println(e.getMessage());
+            completeAll(batch, new SQLException("The message could not be written: " + e));
+         }//end try
+         batch.clear();
+      }//end while
+   }//end writeLoop
+
+   /*
+    * Writes a batch in one transaction, or message by message when that
+    * fails, and completes the receipts.
+    **/
+   private void write (List<Send> batch) {
+      ConnectionPool.PooledConnection conn;
+      try{
+         conn = this._pool.borrow();
+      }catch (SQLException e){
+         completeAll(batch, e);
+         return;
+      }//end try
+      try{
+         try{
+            conn.getConnection().setAutoCommit(false);
+            int done = 0;
+            while (done < batch.size()) {
+               int rows = MAX_ROWS_PER_INSERT;
+               while (rows > batch.size() - done)
+                  rows /= 2;
+               insert(conn, batch.subList(done, done + rows));
+               done += rows;
+            }//end while
+            conn.getConnection().commit();
+            this._batches.incrementAndGet();
+            completeAll(batch, null);
+            return;
+         }catch (SQLException e){
+            try{
+               conn.getConnection().rollback();
+               conn.getConnection().setAutoCommit(true);
+            }catch (SQLException ignored){
+               completeAll(batch, e);
+               return;
+            }//end try
+         }//end try
+         for (int i = 0; i < batch.size(); ++i) {
+            try{
+               insert(conn, batch.subList(i, i + 1));
+               this._batches.incrementAndGet();
+               complete(batch.get(i), null);
+            }catch (SQLException e){
+               complete(batch.get(i), e);
+            }//end try
+         }//end for
+      }finally{
+         try{
+            conn.getConnection().setAutoCommit(true);
+         }catch (SQLException e){
+            // ignored, the pool validates the connection on the next borrow.
+         }//end try
+         this._pool.release(conn);
+      }//end try
+   }//end write
+
+   /*
+    * One multi-row insert. The sender ids are looked up by login, all rows
+    * of a transaction share its current_timestamp and keep their order
+    * through their msg_id. The join would silently drop the row of an
+    * unknown sender, and the insert count cannot tell since MESSAGE routes
+    * its rows to a partition, so the senders are checked first: a missing
+    * one fails the batch, and the retry one by one fails only its message.
+    **/
+   private static void insert (ConnectionPool.PooledConnection conn, List<Send> rows) throws SQLException {
+      checkSenders(conn, rows);
+      StringBuilder sql = new StringBuilder(
+         "insert into message(msg_id, msg_text, msg_timestamp, sender_id, chat_id) " +
+         "select v.id, v.txt, current_timestamp, u.user_id, v.chat from (values ");
+      Object[] params = new Object[rows.size() * 4];
+      for (int i = 0; i < rows.size(); ++i) {
+         Send send = rows.get(i);
+         sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+         params[4 * i] = send.msgId;
+         params[4 * i + 1] = send.text;
+         params[4 * i + 2] = send.chatId;
+         params[4 * i + 3] = send.sender;
+      }//end for
+      sql.append(") as v(id, txt, chat, login) join usr u on u.login = v.login");
+      long begin = System.nanoTime();
+      int changed = -1;
+      try{
+         // 0 rows changed is normal, MESSAGE routes its rows to a partition
+         changed = conn.prepare(sql.toString(), params).executeUpdate();
+      }finally{
+         QueryStats.record(sql.toString(), begin, changed < 0 ? -1 : rows.size(), params);
+      }//end try
+   }//end insert
+
+   /*
+    * Fails the messages left on the queue once the writer stopped.
+    **/
+   private void failQueued () {
+      SQLException closed = new SQLException("The send queue is closed");
+      Send send;
+      while ((send = this._queue.poll()) != null)
+         complete(send, closed);
+   }//end failQueued
+
+   /*
+    * Throws when a sender of the rows has no account.
+    **/
+   private static void checkSenders (ConnectionPool.PooledConnection conn, List<Send> rows) throws SQLException {
+      StringBuilder sql = new StringBuilder("select v.login from (values ");
+      Object[] params = new Object[rows.size()];
+      for (int i = 0; i < rows.size(); ++i) {
+         sql.append(i == 0 ? "(?)" : ", (?)");
+         params[i] = rows.get(i).sender;
+      }//end for
+      sql.append(") as v(login) where not exists (select 1 from usr u where u.login = v.login) limit 1");
+      long begin = System.nanoTime();
+      int found = -1;
+      String missing = null;
+      try{
+         ResultSet rs = conn.prepare(sql.toString(), params).executeQuery();
+         if (rs.next())
+            missing = rs.getString(1);
+         rs.close();
+         found = missing == null ? 0 : 1;
+      }finally{
+         QueryStats.record(sql.toString(), begin, found, params);
+      }//end try
+      if (missing != null)
+         throw new SQLException("No user " + missing + ", the message was not sent");
+   }//end checkSenders
+
+   private void completeAll (List<Send> batch, SQLException error) {
+      for (Send send : batch)
+         complete(send, error);
+   }//end completeAll
+
+   private void complete (Send send, SQLException error) {
+      if (!send.receipt.complete(error == null, error))
+         return;
+      this._latency.recordNanos(System.nanoTime() - send.queued);
+      if (error == null)
+         this._messages.incrementAndGet();
+      else
+         this._failed.incrementAndGet();
+      Listener listener = this._listener;
+      try{
+         if (error == null && listener != null)
+            listener.written(send.chatId, send.msgId);
+      }catch (RuntimeException e){
+         System.err.println(e.getMessage());
+      }//end try
+   }//end complete
+
+   /**
+    * @return the time from send() to commit of the messages written so far
+    */
+   public LatencyHistogram getLatency () {
+      return this._latency;
+   }//end getLatency
+
+   public String toString () {
+      long batches = this._batches.get();
+      return String.format("%d sent in %d commits (%.1f per commit), %d failed, %d queued, latency %s",
+                           this._messages.get(), batches,
+                           batches == 0 ? 0.0 : (double) this._messages.get() / batches,
+                           this._failed.get(), this._queue.size(), this._latency);
+   }//end toString
+}//end SendQueue
@@ -0,0 +1,117 @@
+/*
+ * Send queue benchmark
+ * ====================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures sending messages with 1, 10 and 100 concurrent
+ * senders, once with an autocommit insert per message (how addMessage
+ * wrote before SendQueue) and once through the send queue. Every sender
+ * sends to one chat it is a member of and waits for each message to be
+ * committed before sending the next, as a user at the console does. It
+ * reports messages per second and the p50/p95/p99 latency of a send, and
+ * deletes the messages it sent.
+ *
+ */
+public class SendQueueBenchmark {
+
+   private static final int[] SENDERS = {1, 10, 100};
+   private static final int MESSAGES = 2000;
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> [messages per run]
+    */
+   public static void main (String[] args) {
+      if (args.length != 3 && args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            SendQueueBenchmark.class.getName () +
+            " <dbname> <port> <user> [messages per run]");
+         return;
+      }//end if
+
+      Messenger esql = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Messenger (args[0], args[1], args[2], "");
+         int messages = args.length == 4 ? Integer.parseInt(args[3]) : MESSAGES;
+
+         // senders and the chat each of them sends to
+         List<List<String>> members = esql.executeQueryAndReturnResult(
+            "select u.login, cl.chat_id from chat_list cl join usr u on u.user_id = cl.member_id " +
+            "order by cl.chat_id limit ?", SENDERS[SENDERS.length - 1]);
+         int lastMsg = Integer.parseInt(esql.executeQueryString("select coalesce(max(msg_id), 0) from message"));
+
+         System.out.println(String.format("%8s %8s %12s %10s %10s %10s", "senders", "mode", "msgs/s", "p50 us", "p95 us", "p99 us"));
+         for (int senders : SENDERS) {
+            run(esql, members, Math.min(senders, members.size()), messages, false);
+            run(esql, members, Math.min(senders, members.size()), messages, true);
+         }//end for
+
+         esql.executeUpdate("delete from message where msg_id > ? and msg_text like 'send queue benchmark %'", lastMsg);
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end main
+
+   private static void run (final Messenger esql, final List<List<String>> members, int senders,
+                            final int messages, final boolean queued) throws InterruptedException {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong failed = new AtomicLong(0);
+      final CountDownLatch done = new CountDownLatch(senders);
+      final int perSender = Math.max(1, messages / senders);
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int s = 0; s < senders; ++s) {
+         final String sender = members.get(s).get(0);
+         final int chat = Integer.parseInt(members.get(s).get(1));
+         threads.add(new Thread(new Runnable() {
+            public void run () {
+               for (int i = 0; i < perSender; ++i) {
+                  long begin = System.nanoTime();
+                  try{
+                     String text = "send queue benchmark " + i;
+                     if (queued)
+                        esql.sendMessageAsync(sender, chat, text).get();
+                     else
+                        esql.executeUpdate("insert into message(msg_id, msg_text, msg_timestamp, sender_id, chat_id) " +
+                                           "select ?, ?, current_timestamp, user_id, ? from usr where login = ?",
+                                           esql.getNextSeqVal("message_msg_id_seq"), text, chat, sender);
+                  }catch (Exception e){
+                     failed.incrementAndGet();
+                  }//end try
+                  latency.recordNanos(System.nanoTime() - begin);
+               }//end for
+               done.countDown();
+            }
+         }));
+      }//end for
+      long begin = System.nanoTime();
+      for (Thread thread : threads)
+         thread.start();
+      done.await();
+      double seconds = (System.nanoTime() - begin) / 1e9;
+      System.out.println(String.format("%8d %8s %12.0f %10d %10d %10d%s", senders, queued ? "queued" : "direct",
+                                       latency.getCount() / seconds,
+                                       latency.getPercentileMicros(50), latency.getPercentileMicros(95),
+                                       latency.getPercentileMicros(99),
+                                       failed.get() == 0 ? "" : "  (" + failed.get() + " failed)"));
+   }//end run
+}//end SendQueueBenchmark
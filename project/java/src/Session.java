@@ -0,0 +1,271 @@
+/*
+ * Messenger session
+ * =================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class holds the state of one user session: its input, its output
+ * and the time it spent waiting for the user. The menu handlers in
+ * Messenger read through Messenger.in and write through System.out; both
+ * are routed to the session bound to the current thread, and fall back to
+ * the console when no session is bound, so the same handlers serve the
+ * console and every network client.
+ *
+ */
+public class Session {
+
+   /**
+    * Thrown from a read when the client went away. It is an Error so it
+    * unwinds through the catch (Exception) blocks of the menu handlers.
+    */
+   public static class Closed extends Error {
+      private static final long serialVersionUID = 1L;
+
+      public Closed () { super("session closed"); }
+   }//end Closed
+
+   // session bound to the running thread, null for the console
+   private static final ThreadLocal<Session> CURRENT = new ThreadLocal<Session>();
+
+   // console streams, captured before install() replaces System.out/err
+   private static final PrintStream CONSOLE_OUT = System.out;
+   private static final PrintStream CONSOLE_ERR = System.err;
+   private static final BufferedReader CONSOLE_IN = new BufferedReader(new InputStreamReader(System.in));
+
+   // time the console spent blocked on input, only read by its own thread
+   private static long consoleInputWaitNanos = 0;
+
+   // per command latency, excluding time spent waiting for user input
+   private static final ConcurrentHashMap<String, LatencyHistogram> COMMANDS =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+
+   private final BufferedReader _in;
+   private final PrintStream _out;
+   private final PrintStream _err;
+   private final String _name;
+
+   // total time this session spent blocked on input
+   private long _inputWaitNanos = 0;
+
+   /**
+    * Creates a session over a pair of streams
+    *
+    * @param name shown in logs, e.g. the remote address
+    */
+   public Session (String name, InputStream in, OutputStream out) {
+      this._name = name;
+      this._in = new BufferedReader(new InputStreamReader(in));
+      this._out = new PrintStream(new BufferedOutputStream(out, 8192), false);
+      this._err = this._out;
+   }//end Session
+
+   /**
+    * Creates a session whose System.err goes apart from its output, e.g.
+    * to tell the commands that failed
+    */
+   public Session (String name, InputStream in, OutputStream out, OutputStream err) {
+      this._name = name;
+      this._in = new BufferedReader(new InputStreamReader(in));
+      this._out = new PrintStream(new BufferedOutputStream(out, 8192), false);
+      this._err = new PrintStream(err, true);
+   }//end Session
+
+   public String getName () { return this._name; }
+   public PrintStream getOut () { return this._out; }
+
+   /**
+    * Binds a session to the running thread, null unbinds it.
+    */
+   public static void attach (Session session) {
+      if (session == null)
+         CURRENT.remove();
+      else
+         CURRENT.set(session);
+   }//end attach
+
+   public static Session current () {
+      return CURRENT.get();
+   }//end current
+
+   public static PrintStream console () {
+      return CONSOLE_OUT;
+   }//end console
+
+   /**
+    * Routes System.out and System.err through the current session. Only
+    * needed when sessions other than the console are served.
+    */
+   public static void install () {
+      System.setOut(new RoutingPrintStream(CONSOLE_OUT, false));
+      System.setErr(new RoutingPrintStream(CONSOLE_ERR, true));
+   }//end install
+
+   /**
+    * @return the reader used as Messenger.in
+    */
+   public static BufferedReader input () {
+      return new RoutingReader();
+   }//end input
+
+   /**
+    * Reads a password, hidden on a real console and as a plain line
+    * everywhere else.
+    */
+   public static String readPassword () throws IOException {
+      if (current() == null && System.console() != null)
+         return new String(System.console().readPassword());
+      String line = Messenger.in.readLine();
+      return line == null ? "" : line;
+   }//end readPassword
+
+   /**
+    * @return a timestamp to pass to endCommand
+    */
+   public static long beginCommand () {
+      return System.nanoTime() - inputWaitNanos();
+   }//end beginCommand
+
+   /**
+    * Records how long a command ran, not counting the time it spent
+    * waiting for the user to type.
+    */
+   public static void endCommand (String command, long begin) {
+      long nanos = System.nanoTime() - inputWaitNanos() - begin;
+      LatencyHistogram hist = COMMANDS.get(command);
+      if (hist == null) {
+         LatencyHistogram created = new LatencyHistogram();
+         hist = COMMANDS.putIfAbsent(command, created);
+         if (hist == null)
+            hist = created;
+      }//end if
+      hist.recordNanos(nanos);
+   }//end endCommand
+
+   /**
+    * @return the latency histogram of every command run so far, by name
+    */
+   public static Map<String, LatencyHistogram> commandStats () {
+      return new TreeMap<String, LatencyHistogram>(COMMANDS);
+   }//end commandStats
+
+   private static long inputWaitNanos () {
+      Session s = current();
+      return s == null ? consoleInputWaitNanos : s._inputWaitNanos;
+   }//end inputWaitNanos
+
+   public void close () {
+      this._err.flush();
+      this._out.flush();
+      this._out.close();
+      try{
+         this._in.close();
+      }catch (IOException e){
+         // ignored.
+      }//end try
+   }//end close
+
+   /**
+    * Reader installed as Messenger.in, reads from the current session.
+    */
+   private static class RoutingReader extends BufferedReader {
+      RoutingReader () {
+         super(new InputStreamReader(System.in), 1);
+      }//end RoutingReader
+
+      public String readLine () throws IOException {
+         Session s = current();
+         if (s == null) {
+            long start = System.nanoTime();
+            try{
+               return CONSOLE_IN.readLine();
+            }finally{
+               consoleInputWaitNanos += System.nanoTime() - start;
+            }//end try
+         }//end if
+         // the prompt has to reach the client before we block
+         s._out.flush();
+         long start = System.nanoTime();
+         String line;
+         try{
+            line = s._in.readLine();
+         }finally{
+            s._inputWaitNanos += System.nanoTime() - start;
+         }//end try
+         if (line == null)
+            throw new Closed();
+         return line;
+      }//end readLine
+   }//end RoutingReader
+
+   /**
+    * PrintStream installed as System.out/err. Every method forwards to the
+    * current session's stream without taking a shared lock, so a slow
+    * client only ever stalls its own session.
+    */
+   private static class RoutingPrintStream extends PrintStream {
+      private final PrintStream _console;
+      private final boolean _error;
+
+      RoutingPrintStream (PrintStream console, boolean error) {
+         super(console, true);
+         this._console = console;
+         this._error = error;
+      }//end RoutingPrintStream
+
+      private PrintStream target () {
+         Session s = current();
+         if (s == null)
+            return this._console;
+         return this._error ? s._err : s._out;
+      }//end target
+
+      public void flush () { target().flush(); }
+      public void close () { target().flush(); }
+      public boolean checkError () { return target().checkError(); }
+      public void write (int b) { target().write(b); }
+      public void write (byte[] buf, int off, int len) { target().write(buf, off, len); }
+      public void print (boolean b) { target().print(b); }
+      public void print (char c) { target().print(c); }
+      public void print (int i) { target().print(i); }
+      public void print (long l) { target().print(l); }
+      public void print (float f) { target().print(f); }
+      public void print (double d) { target().print(d); }
+      public void print (char[] s) { target().print(s); }
+      public void print (String s) { target().print(s); }
+      public void print (Object obj) { target().print(obj); }
+      public void println () { target().println(); }
+      public void println (boolean x) { target().println(x); }
+      public void println (char x) { target().println(x); }
+      public void println (int x) { target().println(x); }
+      public void println (long x) { target().println(x); }
+      public void println (float x) { target().println(x); }
+      public void println (double x) { target().println(x); }
+      public void println (char[] x) { target().println(x); }
+      public void println (String x) { target().println(x); }
+      public void println (Object x) { target().println(x); }
+      public PrintStream printf (String format, Object... args) { target().printf(format, args); return this; }
+      public PrintStream printf (Locale l, String format, Object... args) { target().printf(l, format, args); return this; }
+      public PrintStream format (String format, Object... args) { target().format(format, args); return this; }
+      public PrintStream format (Locale l, String format, Object... args) { target().format(l, format, args); return this; }
+      public PrintStream append (CharSequence csq) { target().append(csq); return this; }
+      public PrintStream append (CharSequence csq, int start, int end) { target().append(csq, start, end); return this; }
+      public PrintStream append (char c) { target().append(c); return this; }
+   }//end RoutingPrintStream
+}//end Session
@@ -0,0 +1,246 @@
+/*
+ * Social graph cache
+ * ==================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps the contact and block lists of recently active users in
+ * memory: the ids of both USER_LIST rows and their members. Next to it a
+ * map of known logins to their status answers "does this user exist" and
+ * feeds the list browsing screens. Both maps are bounded and drop their
+ * least recently used entries.
+ *
+ * For every user whose block list was read it also keeps a BloomFilter of
+ * the blocked logins. Those are small enough to keep many more of them
+ * than full lists, and let the send path rule out blocks among the
+ * members of a chat without touching the database.
+ *
+ * The cache is write-through: Messenger updates it right after every
+ * change it makes to USER_LIST_CONTAINS or USR. Changes made by other
+ * processes are not seen until the entry is evicted or reloaded.
+ *
+ */
+public class SocialGraphCache {
+
+   public static final int DEFAULT_CAPACITY = 10000;
+
+   public static final String CONTACT = "contact";
+   public static final String BLOCK = "block";
+
+   /**
+    * Contact and block list of one user.
+    */
+   public static class Lists {
+      final int contactListId;
+      final int blockListId;
+      final LinkedHashSet<String> contacts = new LinkedHashSet<String>();
+      final LinkedHashSet<String> blocks = new LinkedHashSet<String>();
+
+      public Lists (int contactListId, int blockListId) {
+         this.contactListId = contactListId;
+         this.blockListId = blockListId;
+      }//end Lists
+
+      public int listId (String listType) {
+         return BLOCK.equals(listType) ? this.blockListId : this.contactListId;
+      }//end listId
+
+      LinkedHashSet<String> members (String listType) {
+         return BLOCK.equals(listType) ? this.blocks : this.contacts;
+      }//end members
+
+      /**
+       * Adds a member while the lists are being loaded.
+       */
+      public void load (String listType, String member) {
+         members(listType).add(key(member));
+      }//end load
+   }//end Lists
+
+   private final int _capacity;
+   private final LinkedHashMap<String, Lists> _lists;
+   private final LinkedHashMap<String, String> _status;
+   private final LinkedHashMap<String, BloomFilter> _blockFilters;
+
+   private long _hits = 0;
+   private long _misses = 0;
+
+   public SocialGraphCache (final int capacity) {
+      this._capacity = capacity;
+      this._lists = new LinkedHashMap<String, Lists>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, Lists> eldest) {
+            return size() > capacity;
+         }
+      };
+      // every cached list member has its status cached as well
+      this._status = new LinkedHashMap<String, String>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, String> eldest) {
+            return size() > 4 * capacity;
+         }
+      };
+      this._blockFilters = new LinkedHashMap<String, BloomFilter>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, BloomFilter> eldest) {
+            return size() > 8 * capacity;
+         }
+      };
+   }//end SocialGraphCache
+
+   /**
+    * Logins are compared without trailing blanks, the way the char(50)
+    * columns of the first schema compared them, so typed logins with a
+    * stray blank still match.
+    */
+   public static String key (String login) {
+      if (login == null)
+         return null;
+      int end = login.length();
+      while (end > 0 && login.charAt(end - 1) == ' ')
+         --end;
+      return login.substring(0, end);
+   }//end key
+
+   /**
+    * @return the cached lists of a user, null when they have to be loaded
+    */
+   public synchronized Lists get (String login) {
+      Lists lists = this._lists.get(key(login));
+      if (lists == null)
+         ++this._misses;
+      else
+         ++this._hits;
+      return lists;
+   }//end get
+
+   /**
+    * Caches the lists of a user, and a block filter built from them.
+    */
+   public synchronized void put (String login, Lists lists) {
+      this._lists.put(key(login), lists);
+      this._blockFilters.put(key(login), BloomFilter.of(lists.blocks, lists.blocks.size()));
+   }//end put
+
+   /**
+    * @return whether member is on the given list
+    */
+   public synchronized boolean contains (Lists lists, String listType, String member) {
+      return lists.members(listType).contains(key(member));
+   }//end contains
+
+   /**
+    * @return a copy of the members of the given list
+    */
+   public synchronized List<String> members (Lists lists, String listType) {
+      return new ArrayList<String>(lists.members(listType));
+   }//end members
+
+   public synchronized void add (String login, String listType, String member) {
+      Lists lists = this._lists.get(key(login));
+      if (lists != null)
+         lists.members(listType).add(key(member));
+      if (!BLOCK.equals(listType))
+         return;
+      BloomFilter filter = this._blockFilters.get(key(login));
+      if (filter != null && filter.isFull())
+         rebuildBlockFilter(login, lists);
+      else if (filter != null)
+         filter.add(member);
+   }//end add
+
+   public synchronized void remove (String login, String listType, String member) {
+      Lists lists = this._lists.get(key(login));
+      if (lists != null)
+         lists.members(listType).remove(key(member));
+      // a Bloom filter cannot forget, so it is rebuilt from the block list
+      if (BLOCK.equals(listType) && this._blockFilters.containsKey(key(login)))
+         rebuildBlockFilter(login, lists);
+   }//end remove
+
+   /*
+    * Rebuilds the block filter of login from its cached lists, or drops it
+    * to be loaded again when the lists are not cached.
+    **/
+   private void rebuildBlockFilter (String login, Lists lists) {
+      if (lists == null)
+         this._blockFilters.remove(key(login));
+      else
+         this._blockFilters.put(key(login), BloomFilter.of(lists.blocks, lists.blocks.size()));
+   }//end rebuildBlockFilter
+
+   /**
+    * Caches the block filter of a user whose full lists are not loaded.
+    */
+   public synchronized void putBlockFilter (String login, BloomFilter filter) {
+      this._blockFilters.put(key(login), filter);
+   }//end putBlockFilter
+
+   /**
+    * Checks the block filters of the members of a chat for a sender.
+    *
+    * @param members the logins whose block lists are checked
+    * @param sender the login that may be blocked
+    * @param missing receives the members that have no filter cached
+    * @return the members whose filter reports a possible block of sender
+    */
+   public synchronized List<String> mightBlock (Collection<String> members, String sender,
+                                                List<String> missing) {
+      List<String> hits = new ArrayList<String>();
+      for (String member : members) {
+         BloomFilter filter = this._blockFilters.get(key(member));
+         if (filter == null)
+            missing.add(member);
+         else if (filter.mightContain(sender))
+            hits.add(member);
+      }//end for
+      return hits;
+   }//end mightBlock
+
+   /**
+    * @return true when login is known to exist
+    */
+   public synchronized boolean isKnownUser (String login) {
+      return this._status.containsKey(key(login));
+   }//end isKnownUser
+
+   /**
+    * @return the cached status of a user, null when not cached
+    */
+   public synchronized String status (String login) {
+      return this._status.get(key(login));
+   }//end status
+
+   public synchronized void putUser (String login, String status) {
+      this._status.put(key(login), status == null ? "" : key(status));
+   }//end putUser
+
+   /**
+    * Forgets a deleted user, including every list it was a member of.
+    */
+   public synchronized void removeUser (String login) {
+      String k = key(login);
+      this._lists.remove(k);
+      this._status.remove(k);
+      this._blockFilters.remove(k);
+      for (Lists lists : this._lists.values()) {
+         lists.contacts.remove(k);
+         lists.blocks.remove(k);
+      }//end for
+   }//end removeUser
+
+   public synchronized String toString () {
+      return String.format("%d users cached (max %d), %d statuses, %d block filters, %d hits, %d misses",
+                           this._lists.size(), this._capacity, this._status.size(),
+                           this._blockFilters.size(), this._hits, this._misses);
+   }//end toString
+}//end SocialGraphCache
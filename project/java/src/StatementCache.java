@@ -0,0 +1,172 @@
+/*
+ * Prepared statement cache
+ * ========================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGStatement;
+
+/**
+ * This class keeps a bounded, least recently used set of prepared statements
+ * for a single connection. Statements are keyed by their SQL text, so every
+ * call site that binds its values with '?' placeholders shares one statement
+ * (and one server side plan) per query shape.
+ *
+ */
+public class StatementCache {
+
+   /**
+    * Counters several caches add to, e.g. those of the connections of one
+    * pool, so the totals outlive the connections that are closed.
+    */
+   public static class Counters {
+      final AtomicLong hits = new AtomicLong(0);
+      final AtomicLong misses = new AtomicLong(0);
+      final AtomicLong evictions = new AtomicLong(0);
+
+      public long getHits () { return this.hits.get(); }
+      public long getMisses () { return this.misses.get(); }
+      public long getEvictions () { return this.evictions.get(); }
+
+      public String toString () {
+         return String.format("%d hits, %d misses, %d evictions",
+                              getHits(), getMisses(), getEvictions());
+      }//end toString
+   }//end Counters
+
+   // default number of statements kept open per connection
+   public static final int DEFAULT_CAPACITY = 64;
+
+   // connection that owns every cached statement
+   private final Connection _connection;
+
+   // maximum number of statements kept open
+   private final int _capacity;
+
+   // access ordered map, the eldest entry is the least recently used one
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   private long _hits = 0;
+   private long _misses = 0;
+   private long _evictions = 0;
+
+   // shared totals this cache adds to as well
+   private final Counters _totals;
+
+   /**
+    * Creates a new cache on top of an open connection
+    *
+    * @param connection the connection the statements are prepared on
+    * @param capacity the maximum number of statements kept open
+    */
+   public StatementCache (Connection connection, int capacity) {
+      this(connection, capacity, new Counters());
+   }//end StatementCache
+
+   /**
+    * @param totals counters shared with other caches, added to on every
+    *        hit, miss and eviction
+    */
+   public StatementCache (Connection connection, int capacity, Counters totals) {
+      this._connection = connection;
+      this._capacity = capacity;
+      this._totals = totals;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= _capacity)
+               return false;
+            closeQuietly(eldest.getValue());
+            ++_evictions;
+            _totals.evictions.incrementAndGet();
+            return true;
+         }
+      };
+   }//end StatementCache
+
+   /**
+    * Returns the prepared statement for the given query shape, preparing it
+    * on a miss, and binds the parameters in order.
+    *
+    * @param sql the query with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return a ready to execute statement, owned by the cache (do not close)
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare (String sql, Object... params) throws SQLException {
+      return prepare(sql, true, params);
+   }//end prepare
+
+   /**
+    * Like prepare, for the commands PostgreSQL cannot PREPARE (DECLARE,
+    * FETCH, CLOSE): the pg73 driver would send them as PREPARE ... AS, so
+    * they are cached but sent as they are.
+    */
+   public PreparedStatement prepareCommand (String sql, Object... params) throws SQLException {
+      return prepare(sql, false, params);
+   }//end prepareCommand
+
+   private synchronized PreparedStatement prepare (String sql, boolean serverPrepare, Object[] params) throws SQLException {
+      PreparedStatement stmt = this._statements.get(sql);
+      if (stmt == null) {
+         ++this._misses;
+         this._totals.misses.incrementAndGet();
+         stmt = this._connection.prepareStatement(sql);
+         // ask the driver to PREPARE on the server so the plan is reused
+         if (stmt instanceof PGStatement)
+            ((PGStatement) stmt).setUseServerPrepare(serverPrepare);
+         this._statements.put(sql, stmt);
+      }else{
+         ++this._hits;
+         this._totals.hits.incrementAndGet();
+         stmt.clearParameters();
+      }//end if
+      for (int i = 0; i < params.length; ++i)
+         stmt.setObject(i + 1, params[i]);
+      return stmt;
+   }//end prepare
+
+   public synchronized long getHits () { return this._hits; }
+   public synchronized long getMisses () { return this._misses; }
+   public synchronized long getEvictions () { return this._evictions; }
+   public synchronized int size () { return this._statements.size(); }
+
+   /**
+    * Closes every cached statement.
+    */
+   public synchronized void close () {
+      Iterator<PreparedStatement> it = this._statements.values().iterator();
+      while (it.hasNext()) {
+         closeQuietly(it.next());
+         it.remove();
+      }//end while
+   }//end close
+
+   public synchronized String toString () {
+      return String.format("%d hits, %d misses, %d evictions, %d/%d open",
+                           this._hits, this._misses, this._evictions,
+                           this._statements.size(), this._capacity);
+   }//end toString
+
+   private static void closeQuietly (PreparedStatement stmt) {
+      try{
+         if (stmt != null)
+            stmt.close();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+}//end StatementCache
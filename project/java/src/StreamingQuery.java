@@ -0,0 +1,106 @@
+/*
+ * Streaming query
+ * ===============
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This class runs a query through a server side cursor and hands its rows
+ * to a RowHandler fetchSize at a time, so the memory a query needs does
+ * not grow with its result. A plain executeQuery makes the driver read
+ * the whole result into the JVM first, and the pg73 driver does not
+ * implement Statement.setFetchSize, so the cursor is declared and fetched
+ * from explicitly:
+ *
+ *    DECLARE messenger_rows NO SCROLL CURSOR FOR <query>
+ *    FETCH FORWARD <fetchSize> FROM messenger_rows   (until a short batch)
+ *    CLOSE messenger_rows
+ *
+ * in a transaction of its own. PostgreSQL cannot PREPARE these commands,
+ * so they are not server prepared (PooledConnection.prepareCommand). That
+ * costs three round trips more than a plain query, so small results (a
+ * page of messages, one user) are better read the plain way. The fetch
+ * size is messenger.fetchSize (256 rows).
+ *
+ */
+public class StreamingQuery {
+
+   public static final int DEFAULT_FETCH_SIZE = 256;
+
+   private static final String CURSOR = "messenger_rows";
+
+   /**
+    * Called for every row of a streamed query. The result set is
+    * positioned on the row and must not be advanced or kept.
+    */
+   public interface RowHandler {
+      void row (ResultSet rs) throws SQLException;
+   }//end RowHandler
+
+   public static int fetchSize () {
+      return Math.max(1, Integer.getInteger("messenger.fetchSize", DEFAULT_FETCH_SIZE));
+   }//end fetchSize
+
+   /**
+    * Streams the rows of a query over a borrowed connection. The
+    * connection is left in autocommit mode, as it was found.
+    *
+    * @param conn a connection in autocommit mode
+    * @param query the query, values given as '?' placeholders
+    * @param fetchSize rows read per round trip
+    * @param handler receives every row
+    * @param params the values bound to the placeholders
+    * @return the number of rows
+    * @throws java.sql.SQLException when the query or the handler failed
+    */
+   public static int stream (ConnectionPool.PooledConnection conn, String query, int fetchSize,
+                             RowHandler handler, Object... params) throws SQLException {
+      Connection connection = conn.getConnection();
+      connection.setAutoCommit(false);
+      try{
+         conn.prepareCommand("DECLARE " + CURSOR + " NO SCROLL CURSOR FOR " + query, params).execute();
+         int rows = 0;
+         while (true) {
+            ResultSet rs = conn.prepareCommand("FETCH FORWARD " + fetchSize + " FROM " + CURSOR).executeQuery();
+            int fetched = 0;
+            try{
+               while (rs.next()) {
+                  handler.row(rs);
+                  ++fetched;
+               }//end while
+            }finally{
+               rs.close();
+            }//end try
+            rows += fetched;
+            if (fetched < fetchSize)
+               break;
+         }//end while
+         conn.prepareCommand("CLOSE " + CURSOR).execute();
+         connection.commit();
+         return rows;
+      }catch (SQLException e){
+         try{
+            connection.rollback();
+         }catch (SQLException ignored){
+            // the original error is reported.
+         }//end try
+         throw e;
+      }finally{
+         try{
+            connection.setAutoCommit(true);
+         }catch (SQLException e){
+            // ignored, the pool validates the connection on the next borrow.
+         }//end try
+      }//end try
+   }//end stream
+}//end StreamingQuery
@@ -0,0 +1,252 @@
+/*
+ * Table renderer
+ * ==============
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ */
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class draws the chat, message and contact tables into a reused
+ * buffer and writes each page to the terminal at once. A row is laid out
+ * by a Layout compiled once from the printf format the table used to be
+ * printed with, so the output stays the same character for character
+ * while a row costs no format parsing, boxing or temporary strings:
+ *
+ *    static final Layout ROW = Layout.compile("%-1.1s %-5.5s %-1.1s%n");
+ *    TableRenderer.get().row(ROW).cell(" ").cell(id).cell(" ").end().print(System.out);
+ *
+ * Only %s (with the - flag, a width and a precision), %n and %% are
+ * supported. Every thread has its own renderer, see get().
+ *
+ */
+public class TableRenderer {
+
+   private static final String NEWLINE = System.getProperty("line.separator");
+   private static final char[] SPACES = new char[256];
+   static {
+      Arrays.fill(SPACES, ' ');
+   }//end static
+
+   private static final int INITIAL_CAPACITY = 8192;
+   // a page bigger than this does not keep its buffer after print()
+   private static final int MAX_RETAINED = 64 * 1024;
+
+   private static final ThreadLocal<TableRenderer> RENDERERS = new ThreadLocal<TableRenderer>() {
+      protected TableRenderer initialValue () {
+         return new TableRenderer();
+      }
+   };
+
+   /**
+    * The fields of a row and the text around them.
+    */
+   public static final class Layout {
+      // literal text before every field, and after the last one
+      private final String[] _literals;
+      private final int[] _widths;
+      private final int[] _precisions;
+      private final boolean[] _left;
+
+      private Layout (List<String> literals, List<int[]> fields) {
+         this._literals = literals.toArray(new String[literals.size()]);
+         this._widths = new int[fields.size()];
+         this._precisions = new int[fields.size()];
+         this._left = new boolean[fields.size()];
+         for (int i = 0; i < fields.size(); ++i) {
+            this._widths[i] = fields.get(i)[0];
+            this._precisions[i] = fields.get(i)[1];
+            this._left[i] = fields.get(i)[2] == 1;
+         }//end for
+      }//end Layout
+
+      /**
+       * @param format a printf format of %s fields
+       * @throws java.lang.IllegalArgumentException for other conversions
+       */
+      public static Layout compile (String format) {
+         List<String> literals = new ArrayList<String>();
+         List<int[]> fields = new ArrayList<int[]>();
+         StringBuilder literal = new StringBuilder();
+         int i = 0;
+         while (i < format.length()) {
+            char c = format.charAt(i++);
+            if (c != '%') {
+               literal.append(c);
+               continue;
+            }//end if
+            boolean left = i < format.length() && format.charAt(i) == '-';
+            if (left)
+               ++i;
+            int width = -1;
+            int precision = -1;
+            int start = i;
+            while (i < format.length() && Character.isDigit(format.charAt(i)))
+               ++i;
+            if (i > start)
+               width = Integer.parseInt(format.substring(start, i));
+            if (i < format.length() && format.charAt(i) == '.') {
+               start = ++i;
+               while (i < format.length() && Character.isDigit(format.charAt(i)))
+                  ++i;
+               precision = Integer.parseInt(format.substring(start, i));
+            }//end if
+            char conversion = i < format.length() ? format.charAt(i++) : ' ';
+            if (conversion == 'n' && !left && width < 0 && precision < 0) {
+               literal.append(NEWLINE);
+            }else if (conversion == '%' && !left && width < 0 && precision < 0) {
+               literal.append('%');
+            }else if (conversion == 's' && (!left || width >= 0)) {
+               literals.add(literal.toString());
+               literal.setLength(0);
+               fields.add(new int[] {width, precision, left ? 1 : 0});
+            }else{
+               throw new IllegalArgumentException("Unsupported format: " + format);
+            }//end if
+         }//end while
+         literals.add(literal.toString());
+         return new Layout(literals, fields);
+      }//end compile
+   }//end Layout
+
+   private StringBuilder _buffer = new StringBuilder(INITIAL_CAPACITY);
+   private Layout _layout = null;
+   private int _field = 0;
+
+   /**
+    * @return the renderer of the running thread, with an empty page
+    */
+   public static TableRenderer get () {
+      TableRenderer renderer = RENDERERS.get();
+      renderer._buffer.setLength(0);
+      renderer._layout = null;
+      return renderer;
+   }//end get
+
+   /**
+    * Appends text as it is, e.g. a header drawn once.
+    */
+   public TableRenderer text (String text) {
+      this._buffer.append(text);
+      return this;
+   }//end text
+
+   /**
+    * Starts a row, its fields are given in order by cell().
+    */
+   public TableRenderer row (Layout layout) {
+      this._layout = layout;
+      this._field = 0;
+      return this;
+   }//end row
+
+   public TableRenderer cell (CharSequence value) {
+      if (value == null)
+         value = "null";
+      return cell(value, 0, value.length(), null);
+   }//end cell
+
+   /**
+    * Lays out value.subSequence(from, to) without copying it, e.g. a line
+    * of a wrapped message.
+    */
+   public TableRenderer cell (CharSequence value, int from, int to) {
+      return cell(value, from, to, null);
+   }//end cell
+
+   /**
+    * Lays out value followed by suffix, as printf lays out value + suffix.
+    */
+   public TableRenderer cell (CharSequence value, CharSequence suffix) {
+      if (value == null)
+         value = "null";
+      return cell(value, 0, value.length(), suffix);
+   }//end cell
+
+   public TableRenderer cell (int value) {
+      int start = begin();
+      this._buffer.append(value);
+      int length = this._buffer.length() - start;
+      int precision = this._layout._precisions[this._field];
+      if (precision >= 0 && length > precision) {
+         this._buffer.setLength(start + precision);
+         length = precision;
+      }//end if
+      return pad(start, length);
+   }//end cell
+
+   private TableRenderer cell (CharSequence value, int from, int to, CharSequence suffix) {
+      int start = begin();
+      int precision = this._layout._precisions[this._field];
+      int limit = precision < 0 ? Integer.MAX_VALUE : precision;
+      int length = Math.min(to - from, limit);
+      this._buffer.append(value, from, from + length);
+      if (suffix != null && length < limit) {
+         int more = Math.min(suffix.length(), limit - length);
+         this._buffer.append(suffix, 0, more);
+         length += more;
+      }//end if
+      return pad(start, length);
+   }//end cell
+
+   /*
+    * Appends the literal before the next field.
+    * @return where the field starts
+    **/
+   private int begin () {
+      if (this._layout == null || this._field >= this._layout._widths.length)
+         throw new IllegalStateException("No field left in the row");
+      this._buffer.append(this._layout._literals[this._field]);
+      return this._buffer.length();
+   }//end begin
+
+   private TableRenderer pad (int start, int length) {
+      int width = this._layout._widths[this._field];
+      boolean left = this._layout._left[this._field];
+      for (int missing = width - length; missing > 0; missing -= SPACES.length) {
+         if (left)
+            this._buffer.append(SPACES, 0, Math.min(missing, SPACES.length));
+         else
+            this._buffer.insert(start, SPACES, 0, Math.min(missing, SPACES.length));
+      }//end for
+      ++this._field;
+      return this;
+   }//end pad
+
+   /**
+    * Ends a row with the text after its last field.
+    */
+   public TableRenderer end () {
+      if (this._layout == null || this._field != this._layout._widths.length)
+         throw new IllegalStateException("The row is missing fields");
+      this._buffer.append(this._layout._literals[this._field]);
+      this._layout = null;
+      return this;
+   }//end end
+
+   /**
+    * Writes the page in one call and flushes, then empties it.
+    */
+   public void print (PrintStream out) {
+      out.append(this._buffer);
+      out.flush();
+      if (this._buffer.capacity() > MAX_RETAINED)
+         this._buffer = new StringBuilder(INITIAL_CAPACITY);
+      else
+         this._buffer.setLength(0);
+   }//end print
+
+   /**
+    * @return the page drawn so far
+    */
+   public String toString () {
+      return this._buffer.toString();
+   }//end toString
+}//end TableRenderer
@@ -1,5 +1,9 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -p 1521 vgarc018db < $DIR/../src/create_tables.sql
+# load before partitioning and building constraints and indexes, the
+# rows are then moved to their partitions and indexed once per partition
+bash $DIR/../../java/scripts/bulk_load.sh || exit 1
+psql -p 1521 vgarc018db < $DIR/../src/create_partitions.sql
+psql -p 1521 vgarc018db < $DIR/../src/create_constraints.sql
 psql -p 1521 vgarc018db < $DIR/../src/create_indexes.sql
-psql -p 1521 vgarc018db < $DIR/../src/load_data.sql
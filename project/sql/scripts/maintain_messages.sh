@@ -0,0 +1,18 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Creates the MESSAGE partitions of the coming months before they are
+# written to and moves the months older than the archive age to
+# MESSAGE_ARCHIVE. Meant to run daily from cron.
+#
+# usage: maintain_messages.sh [archive age] [months ahead] [archive tablespace]
+AGE=${1:-12 months}
+AHEAD=${2:-3}
+TABLESPACE=${3:+"'$3'"}
+psql -p 1521 vgarc018db -c "SELECT create_message_partitions($AHEAD)" || exit 1
+ARCHIVED=$(psql -p 1521 vgarc018db -v ON_ERROR_STOP=1 -tA -c \
+	"SELECT archive_message_partitions('$AGE', ${TABLESPACE:-NULL})") || exit 1
+# archived partitions are not written to again, freeze them once
+for PART in $ARCHIVED; do
+	echo "archived $PART"
+	psql -p 1521 vgarc018db -c "VACUUM FREEZE ANALYZE $PART"
+done
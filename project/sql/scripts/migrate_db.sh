@@ -0,0 +1,27 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# upgrades a database created with an older schema in place, every step
+# copies the data in one transaction that is rolled back on any error
+VERSION=$(psql -p 1521 vgarc018db -tA -c "SELECT max(version) FROM SCHEMA_VERSION" 2>/dev/null)
+if [ -z "$VERSION" ]; then
+	psql -p 1521 vgarc018db -v ON_ERROR_STOP=1 -1 -f $DIR/../src/migrate_v2.sql || exit 1
+	VERSION=2
+	NEW_TABLES=1
+fi
+if [ "$VERSION" -lt 3 ]; then
+	psql -p 1521 vgarc018db -v ON_ERROR_STOP=1 -v src=$DIR/../src -1 -f $DIR/../src/migrate_v3.sql || exit 1
+fi
+if [ "$VERSION" -lt 4 ]; then
+	psql -p 1521 vgarc018db -v ON_ERROR_STOP=1 -1 -f $DIR/../src/migrate_v4.sql || exit 1
+fi
+if [ "$VERSION" -lt 5 ]; then
+	psql -p 1521 vgarc018db -v ON_ERROR_STOP=1 -1 -f $DIR/../src/migrate_v5.sql || exit 1
+fi
+# the tables copied by migrate_v2.sql need all their constraints again
+if [ -n "$NEW_TABLES" ]; then
+	psql -p 1521 vgarc018db < $DIR/../src/create_constraints.sql
+fi
+# reloads the partition functions, older versions of them are replaced
+psql -p 1521 vgarc018db < $DIR/../src/create_partitions.sql
+psql -p 1521 vgarc018db < $DIR/../src/create_indexes.sql
+psql -p 1521 vgarc018db -c "VACUUM ANALYZE"
@@ -0,0 +1,29 @@
+ALTER TABLE USR ADD
+	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id);
+ALTER TABLE USR ADD
+	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id);
+
+ALTER TABLE USER_LIST_CONTAINS ADD
+	FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE;
+ALTER TABLE USER_LIST_CONTAINS ADD
+	FOREIGN KEY(member_id) REFERENCES USR(user_id) ON DELETE CASCADE;
+
+ALTER TABLE CHAT ADD
+	FOREIGN KEY(init_sender_id) REFERENCES USR(user_id);
+
+ALTER TABLE CHAT_LIST ADD
+	FOREIGN KEY(member_id) REFERENCES USR(user_id);
+ALTER TABLE CHAT_LIST ADD
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id);
+
+-- named, so running this again does not add them twice; the partitions
+-- get their own copies from sync_message_partitions
+ALTER TABLE MESSAGE ADD CONSTRAINT message_sender_id_fkey
+	FOREIGN KEY(sender_id) REFERENCES USR(user_id);
+ALTER TABLE MESSAGE ADD CONSTRAINT message_chat_id_fkey
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id);
+
+ALTER TABLE CHAT_SUMMARY ADD
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE;
+
+SELECT sync_message_partitions();
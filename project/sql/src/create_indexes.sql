@@ -1,25 +1,159 @@
-CREATE LANGUAGE plpgsql;
-CREATE OR REPLACE FUNCTION next_val() RETURNS trigger as
+-- OR REPLACE, migrate_db.sh runs this file again
+CREATE OR REPLACE LANGUAGE plpgsql;
+
+-- message keys are handed out by the application (IdAllocator.java), the
+-- per row nextval trigger of older versions of this script is dropped
+DROP TRIGGER IF EXISTS get_id ON MESSAGE;
+DROP FUNCTION IF EXISTS next_val();
+
+-- migrate_db.sh runs this file again, an index that exists is kept: an
+-- index whose definition changes gets a new name (and the old one a DROP
+-- INDEX IF EXISTS) so upgrades build it
+
+create index if not exists msg_id 
+on message using btree
+(sender_id, chat_id);
+
+create index if not exists msg
+on message using btree
+(msg_id, chat_id);
+
+create index if not exists chats
+on chat using btree
+(chat_id, init_sender_id);
+
+create index if not exists msg_page
+on message using btree
+(chat_id, msg_timestamp, msg_id);
+
+create index if not exists chat_member
+on chat_list using btree
+(member_id, chat_id);
+
+-- the chats waiting for PurgeWorker, a handful at any time
+create index if not exists chat_deleted
+on chat using btree
+(deleted_at, chat_id) where deleted_at is not null;
+
+-- what PurgeWorker looks up by the user of a deleted account: the chats
+-- it started and the lists of other users it is in
+create index if not exists chat_init_sender
+on chat using btree
+(init_sender_id);
+
+create index if not exists list_member
+on user_list_contains using btree
+(member_id);
+
+-- full text search of the messages, see Messenger.loadSearchPage
+create index if not exists msg_text_search
+on message using gin
+(to_tsvector('english', msg_text));
+
+CREATE OR REPLACE FUNCTION refresh_chat_summary(cid integer) RETURNS void as
 	$BODY$
         BEGIN
-		NEW.msg_id := nextval('message_msg_id_seq');
-		return NEW;
+		DELETE FROM CHAT_SUMMARY WHERE chat_id = cid;
+		INSERT INTO CHAT_SUMMARY(chat_id, last_msg_id, last_sender_id, preview, last_timestamp)
+		SELECT m.chat_id, m.msg_id, m.sender_id, substring(m.msg_text, 1, 30), m.msg_timestamp
+		FROM MESSAGE m
+		WHERE m.chat_id = cid
+		ORDER BY m.msg_timestamp desc, m.msg_id desc
+		LIMIT 1;
+		IF NOT FOUND THEN
+			-- every message left in the chat is archived
+			INSERT INTO CHAT_SUMMARY(chat_id, last_msg_id, last_sender_id, preview, last_timestamp)
+			SELECT m.chat_id, m.msg_id, m.sender_id, substring(m.msg_text, 1, 30), m.msg_timestamp
+			FROM MESSAGE_ARCHIVE m
+			WHERE m.chat_id = cid
+			ORDER BY m.msg_timestamp desc, m.msg_id desc
+			LIMIT 1;
+		END IF;
 	END;
         $BODY$
 LANGUAGE plpgsql VOLATILE;
 
+CREATE OR REPLACE FUNCTION chat_summary_changed() RETURNS trigger as
+	$BODY$
+        BEGIN
+		IF TG_OP = 'INSERT' THEN
+			LOOP
+				UPDATE CHAT_SUMMARY
+				SET last_msg_id = NEW.msg_id, last_sender_id = NEW.sender_id,
+				    preview = substring(NEW.msg_text, 1, 30),
+				    last_timestamp = NEW.msg_timestamp
+				WHERE chat_id = NEW.chat_id
+				  AND (last_timestamp, last_msg_id) < (NEW.msg_timestamp, NEW.msg_id);
+				IF FOUND THEN
+					return NEW;
+				END IF;
+				-- the summary may already show a newer message
+				PERFORM 1 FROM CHAT_SUMMARY WHERE chat_id = NEW.chat_id;
+				IF FOUND THEN
+					return NEW;
+				END IF;
+				BEGIN
+					INSERT INTO CHAT_SUMMARY(chat_id, last_msg_id, last_sender_id, preview, last_timestamp)
+					VALUES (NEW.chat_id, NEW.msg_id, NEW.sender_id, substring(NEW.msg_text, 1, 30), NEW.msg_timestamp);
+					return NEW;
+				EXCEPTION WHEN unique_violation THEN
+					-- the first message of the chat was also sent by
+					-- another session, compare with its summary
+				END;
+			END LOOP;
+		ELSIF TG_OP = 'UPDATE' THEN
+			-- edits move the message to the top of the chat
+			PERFORM refresh_chat_summary(NEW.chat_id);
+			IF OLD.chat_id <> NEW.chat_id THEN
+				PERFORM refresh_chat_summary(OLD.chat_id);
+			END IF;
+			return NEW;
+		ELSE
+			-- only deleting the last message changes the summary
+			PERFORM 1 FROM CHAT_SUMMARY WHERE chat_id = OLD.chat_id AND last_msg_id = OLD.msg_id;
+			IF FOUND THEN
+				PERFORM refresh_chat_summary(OLD.chat_id);
+			END IF;
+			return OLD;
+		END IF;
+	END;
+        $BODY$
+LANGUAGE plpgsql VOLATILE;
 
-CREATE TRIGGER get_id BEFORE INSERT ON MESSAGE
-for each row execute procedure next_val();
+-- rows live in the partitions, their copies of the trigger are the ones that fire
+DROP TRIGGER IF EXISTS chat_summary ON MESSAGE;
+CREATE TRIGGER chat_summary AFTER INSERT OR UPDATE OR DELETE ON MESSAGE
+for each row execute procedure chat_summary_changed();
 
-create index msg_id 
-on message using btree
-(sender_login, chat_id);
+-- tells the listening messengers (MessageNotifier.java) about every new
+-- message of a chat on the channel chat_<chat_id>, with the msg_id as
+-- payload for the clients that read it. The row edit_message() inserts
+-- again is an edit, not a new message, and is skipped. Reading an unset
+-- setting with missing_ok needs PostgreSQL 9.6, the minimum this schema
+-- supports; an EXCEPTION block instead would cost every insert a
+-- subtransaction.
+CREATE OR REPLACE FUNCTION notify_message() RETURNS trigger as
+	$BODY$
+        BEGIN
+		IF current_setting('messenger.edited_msg', true) = cast(NEW.msg_id as text) THEN
+			return NULL;
+		END IF;
+		PERFORM pg_notify('chat_' || NEW.chat_id, cast(NEW.msg_id as text));
+		return NULL;
+	END;
+        $BODY$
+LANGUAGE plpgsql VOLATILE;
 
-create index msg
-on message using btree
-(msg_id, chat_id);
+DROP TRIGGER IF EXISTS message_notify ON MESSAGE;
+CREATE TRIGGER message_notify AFTER INSERT ON MESSAGE
+for each row execute procedure notify_message();
 
-create index chats
-on chat using btree
-(chat_id, init_sender);
+-- only chats without a summary, migrate_db.sh runs this file again
+INSERT INTO CHAT_SUMMARY(chat_id, last_msg_id, last_sender_id, preview, last_timestamp)
+SELECT DISTINCT ON (m.chat_id) m.chat_id, m.msg_id, m.sender_id, substring(m.msg_text, 1, 30), m.msg_timestamp
+FROM MESSAGE m
+WHERE NOT EXISTS (SELECT 1 FROM CHAT_SUMMARY s WHERE s.chat_id = m.chat_id)
+ORDER BY m.chat_id, m.msg_timestamp desc, m.msg_id desc;
+
+-- builds the indexes and triggers above on every partition of MESSAGE
+SELECT sync_message_partitions();
@@ -0,0 +1,246 @@
+-- MESSAGE is range partitioned by msg_timestamp, one child table per
+-- month named message_pYYYYMM that inherits MESSAGE and holds its range
+-- as a CHECK constraint. MESSAGE itself stays empty: rows inserted into
+-- it are routed to their partition, which is created the first time a
+-- month is written to (so an insert into MESSAGE reports 0 rows). Rows
+-- bulk loaded before this file ran are moved to their partitions at its
+-- end, see partition_loaded_messages().
+--
+-- A partition gets the indexes, foreign keys and row triggers MESSAGE
+-- has when it is created; sync_message_partitions() copies those
+-- added later (create_constraints.sql and create_indexes.sql call it).
+--
+-- archive_message_partitions() moves the months older than a given age
+-- from MESSAGE to MESSAGE_ARCHIVE, the cold tier read only when a user
+-- pages past the hot months. See scripts/maintain_messages.sh.
+
+-- OR REPLACE, so migrate_v3.sql can include this in its transaction
+CREATE OR REPLACE LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION message_partition(ts timestamp) RETURNS text as
+	$BODY$
+        BEGIN
+		return 'message_p' || to_char(ts, 'YYYYMM');
+	END;
+        $BODY$
+LANGUAGE plpgsql IMMUTABLE;
+
+-- copies to a partition what MESSAGE has and the partition lacks
+CREATE OR REPLACE FUNCTION sync_message_partition(part text) RETURNS void as
+	$BODY$
+        DECLARE
+		r record;
+        BEGIN
+		FOR r IN SELECT i.relname, pg_get_indexdef(i.oid) AS def
+		         FROM pg_index x JOIN pg_class i ON i.oid = x.indexrelid
+		         WHERE x.indrelid = 'message'::regclass LOOP
+			PERFORM 1 FROM pg_class WHERE relname = part || '_' || r.relname;
+			IF NOT FOUND THEN
+				EXECUTE regexp_replace(r.def, 'INDEX ' || r.relname || E' ON (\\w+\\.)?message ',
+				                       'INDEX ' || part || '_' || r.relname || ' ON ' || part || ' ', 'i');
+			END IF;
+		END LOOP;
+		FOR r IN SELECT conname, pg_get_constraintdef(oid) AS def
+		         FROM pg_constraint
+		         WHERE conrelid = 'message'::regclass AND contype = 'f' LOOP
+			PERFORM 1 FROM pg_constraint
+			WHERE conrelid = part::regclass AND conname = part || '_' || r.conname;
+			IF NOT FOUND THEN
+				EXECUTE 'ALTER TABLE ' || part || ' ADD CONSTRAINT ' || part || '_' || r.conname || ' ' || r.def;
+			END IF;
+		END LOOP;
+		-- the row triggers (chat_summary, message_notify), not the routing one
+		FOR r IN SELECT tgname, pg_get_triggerdef(oid) AS def
+		         FROM pg_trigger
+		         WHERE tgrelid = 'message'::regclass AND NOT tgisinternal
+		           AND tgname <> 'route_message' LOOP
+			PERFORM 1 FROM pg_trigger WHERE tgrelid = part::regclass AND tgname = r.tgname;
+			IF NOT FOUND THEN
+				EXECUTE regexp_replace(r.def, E' ON (\\w+\\.)?message ', ' ON ' || part || ' ', 'i');
+			END IF;
+		END LOOP;
+	END;
+        $BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION sync_message_partitions() RETURNS integer as
+	$BODY$
+        DECLARE
+		r record;
+		n integer := 0;
+        BEGIN
+		FOR r IN SELECT c.relname FROM pg_inherits h JOIN pg_class c ON c.oid = h.inhrelid
+		         WHERE h.inhparent = 'message'::regclass LOOP
+			PERFORM sync_message_partition(r.relname);
+			n := n + 1;
+		END LOOP;
+		return n;
+	END;
+        $BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- creates the table of the month of ts unless it exists, without the
+-- indexes, foreign keys and triggers of MESSAGE; returns true when it did
+CREATE OR REPLACE FUNCTION create_message_partition_table(ts timestamp) RETURNS boolean as
+	$BODY$
+        DECLARE
+		part text := message_partition(ts);
+		lo timestamp := date_trunc('month', ts);
+        BEGIN
+		PERFORM 1 FROM pg_class WHERE relname = part;
+		IF FOUND THEN
+			return false;
+		END IF;
+		BEGIN
+			EXECUTE 'CREATE TABLE ' || part || ' (CHECK (msg_timestamp >= ' || quote_literal(lo) ||
+			        ' AND msg_timestamp < ' || quote_literal(lo + interval '1 month') || ')) INHERITS (MESSAGE)';
+		EXCEPTION WHEN duplicate_table THEN
+			-- created by a concurrent insert
+			return false;
+		END;
+		return true;
+	END;
+        $BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- creates the partition of the month of ts unless it exists, returns its name
+CREATE OR REPLACE FUNCTION create_message_partition(ts timestamp) RETURNS text as
+	$BODY$
+        DECLARE
+		part text := message_partition(ts);
+        BEGIN
+		IF create_message_partition_table(ts) THEN
+			PERFORM sync_message_partition(part);
+		END IF;
+		return part;
+	END;
+        $BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Moves the rows MESSAGE holds itself to their partitions, a month at a
+-- time. bulk_load.sh loads MESSAGE before this file runs, so the load
+-- does not go through route_message row by row; a partition gets its
+-- indexes once its rows are in. Returns the rows moved.
+CREATE OR REPLACE FUNCTION partition_loaded_messages() RETURNS bigint as
+	$BODY$
+        DECLARE
+		r record;
+		n bigint;
+		total bigint := 0;
+        BEGIN
+		FOR r IN SELECT DISTINCT date_trunc('month', msg_timestamp) AS lo FROM ONLY MESSAGE ORDER BY 1 LOOP
+			PERFORM create_message_partition_table(r.lo);
+			-- written in msg_page order, the order chats are read in
+			EXECUTE 'INSERT INTO ' || message_partition(r.lo) || ' SELECT * FROM ONLY MESSAGE ' ||
+			        'WHERE msg_timestamp >= $1 AND msg_timestamp < $2 ORDER BY chat_id, msg_timestamp, msg_id'
+			USING r.lo, r.lo + interval '1 month';
+			GET DIAGNOSTICS n = ROW_COUNT;
+			total := total + n;
+			PERFORM sync_message_partition(message_partition(r.lo));
+		END LOOP;
+		IF total > 0 THEN
+			TRUNCATE ONLY MESSAGE;
+		END IF;
+		return total;
+	END;
+        $BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- creates the partitions of the current month and of the months ahead
+CREATE OR REPLACE FUNCTION create_message_partitions(months integer) RETURNS integer as
+	$BODY$
+        BEGIN
+		FOR i IN 0..months LOOP
+			PERFORM create_message_partition(cast(current_timestamp as timestamp) + i * interval '1 month');
+		END LOOP;
+		return months + 1;
+	END;
+        $BODY$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION route_message() RETURNS trigger as
+	$BODY$
+        DECLARE
+		part text := message_partition(NEW.msg_timestamp);
+        BEGIN
+		PERFORM 1 FROM pg_class WHERE relname = part;
+		IF NOT FOUND THEN
+			PERFORM create_message_partition(NEW.msg_timestamp);
+		END IF;
+		EXECUTE 'INSERT INTO ' || part || ' SELECT ($1).*' USING NEW;
+		return NULL;
+	END;
+        $BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- this file is run again by migrate_db.sh
+DROP TRIGGER IF EXISTS route_message ON MESSAGE;
+CREATE TRIGGER route_message BEFORE INSERT ON MESSAGE
+for each row execute procedure route_message();
+
+SELECT partition_loaded_messages();
+
+-- Moves the partitions whose month ended more than age ago to
+-- MESSAGE_ARCHIVE. An archived partition keeps its primary key and
+-- msg_page index, the ones archive reads, edits and deletes use, and is
+-- rewritten compact in msg_page order, into tblspace when it is not null
+-- (e.g. a tablespace on a compressed file system). Returns the partitions
+-- archived, to be frozen by VACUUM FREEZE once.
+CREATE OR REPLACE FUNCTION archive_message_partitions(age interval, tblspace text) RETURNS SETOF text as
+	$BODY$
+        DECLARE
+		r record;
+		r2 record;
+        BEGIN
+		FOR r IN SELECT c.relname FROM pg_inherits h JOIN pg_class c ON c.oid = h.inhrelid
+		         WHERE h.inhparent = 'message'::regclass
+		           AND c.relname ~ '^message_p[0-9]{6}$'
+		           AND to_timestamp(substring(c.relname from 10), 'YYYYMM') + interval '1 month'
+		               <= current_timestamp - age
+		         ORDER BY c.relname LOOP
+			EXECUTE 'ALTER TABLE ' || r.relname || ' NO INHERIT MESSAGE';
+			EXECUTE 'ALTER TABLE ' || r.relname || ' INHERIT MESSAGE_ARCHIVE';
+			FOR r2 IN SELECT i.relname FROM pg_index x JOIN pg_class i ON i.oid = x.indexrelid
+			          WHERE x.indrelid = r.relname::regclass
+			            AND i.relname NOT IN (r.relname || '_message_pkey', r.relname || '_msg_page') LOOP
+				EXECUTE 'DROP INDEX ' || r2.relname;
+			END LOOP;
+			EXECUTE 'ALTER TABLE ' || r.relname || ' SET (fillfactor = 100)';
+			EXECUTE 'CLUSTER ' || r.relname || ' USING ' || r.relname || '_msg_page';
+			IF tblspace IS NOT NULL THEN
+				EXECUTE 'ALTER TABLE ' || r.relname || ' SET TABLESPACE ' || quote_ident(tblspace);
+				EXECUTE 'ALTER INDEX ' || r.relname || '_message_pkey SET TABLESPACE ' || quote_ident(tblspace);
+				EXECUTE 'ALTER INDEX ' || r.relname || '_msg_page SET TABLESPACE ' || quote_ident(tblspace);
+			END IF;
+			return next r.relname;
+		END LOOP;
+		return;
+	END;
+        $BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- An edit moves a message to the current month, out of its partition
+-- when it is older, so it is deleted and inserted again. The insert is
+-- flagged in messenger.edited_msg for notify_message (create_indexes.sql)
+-- so it is not announced as a new message. Returns false when no message
+-- has the id.
+CREATE OR REPLACE FUNCTION edit_message(mid integer, txt text) RETURNS boolean as
+	$BODY$
+        DECLARE
+		r record;
+        BEGIN
+		DELETE FROM MESSAGE WHERE msg_id = mid RETURNING * INTO r;
+		IF NOT FOUND THEN
+			DELETE FROM MESSAGE_ARCHIVE WHERE msg_id = mid RETURNING * INTO r;
+			IF NOT FOUND THEN
+				return false;
+			END IF;
+		END IF;
+		PERFORM set_config('messenger.edited_msg', cast(mid as text), true);
+		INSERT INTO MESSAGE(msg_id, msg_text, msg_timestamp, sender_id, chat_id)
+		VALUES (r.msg_id, txt, current_timestamp, r.sender_id, r.chat_id);
+		PERFORM set_config('messenger.edited_msg', '', true);
+		return true;
+	END;
+        $BODY$
+LANGUAGE plpgsql VOLATILE;
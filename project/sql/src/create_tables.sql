@@ -1,55 +1,94 @@
-DROP TABLE MESSAGE;
+DROP TABLE CHAT_SUMMARY;
+-- the partitions of MESSAGE go with it
+DROP TABLE MESSAGE CASCADE;
+DROP TABLE MESSAGE_ARCHIVE CASCADE;
 DROP TABLE CHAT_LIST;
 DROP TABLE CHAT;
 DROP TABLE USER_LIST_CONTAINS;
+DROP TABLE USR_TOMBSTONE;
 DROP TABLE USR;
 DROP TABLE USER_LIST;
+DROP TABLE LOAD_CHECKPOINT;
+DROP TABLE SCHEMA_VERSION;
+
+-- foreign keys are added by create_constraints.sql once the data is loaded
+
+-- schema version 5: text columns are variable length, users are
+-- referenced by their integer user_id, MESSAGE is partitioned by month
+-- and deleted chats and accounts are marked, see migrate_v2.sql to
+-- migrate_v5.sql for older versions
+CREATE TABLE SCHEMA_VERSION(
+	version integer NOT NULL);
+INSERT INTO SCHEMA_VERSION(version) VALUES (5);
 
 CREATE TABLE USER_LIST(
 	list_id serial,
-	list_type char(10) NOT NULL, 
+	list_type varchar(10) NOT NULL, 
 	PRIMARY KEY(list_id));
 
 CREATE TABLE USR(
-	login char(50), 
-	phoneNum CHAR(16) UNIQUE NOT NULL, 
-	password char(50) NOT NULL,
-	status char(140),
+	user_id serial,
+	login varchar(50) UNIQUE NOT NULL, 
+	phoneNum varchar(16) UNIQUE NOT NULL, 
+	password varchar(50) NOT NULL,
+	status varchar(140),
 	block_list integer,
 	contact_list integer,
-	Primary Key(login),
-	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id),
-	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id));
+	Primary Key(user_id));
+
+-- a deleted account: the user can no longer log in, PurgeWorker.java
+-- removes its rows in the background and then this one
+CREATE TABLE USR_TOMBSTONE(
+	user_id integer,
+	login varchar(50) NOT NULL,
+	requested timestamp NOT NULL,
+	PRIMARY KEY(user_id));
 
 CREATE TABLE USER_LIST_CONTAINS(
 	list_id integer,
-	list_member char(50),
-	PRIMARY KEY(list_id,list_member), 
-	FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
-	FOREIGN KEY(list_member) REFERENCES USR(login) ON DELETE CASCADE);
+	member_id integer,
+	PRIMARY KEY(list_id,member_id));
 
+-- deleted_at is set when the chat is deleted, PurgeWorker.java removes
+-- its rows in the background
 CREATE TABLE CHAT(
 	chat_id serial, 
-	chat_type char(50) NOT NULL,
-	init_sender char(50),
-	PRIMARY KEY(chat_id), 
-	FOREIGN KEY(init_sender) REFERENCES USR(login));
+	chat_type varchar(50) NOT NULL,
+	init_sender_id integer,
+	deleted_at timestamp,
+	PRIMARY KEY(chat_id));
 
 CREATE TABLE CHAT_LIST(
 	chat_id integer, 
-	member char(50),
-	PRIMARY KEY(chat_id,member), 
-	FOREIGN KEY(member) REFERENCES USR(login), 
-	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
+	member_id integer,
+	PRIMARY KEY(chat_id,member_id));
 
+-- holds no rows, its partitions do, see create_partitions.sql
 CREATE TABLE MESSAGE(
 	msg_id serial, 
-	msg_text char(300) NOT NULL, 
+	msg_text varchar(300) NOT NULL, 
 	msg_timestamp timestamp NOT NULL,
-		sender_login char(50),
+	sender_id integer,
 	chat_id integer,
-	PRIMARY KEY(msg_id), 
-	FOREIGN KEY(sender_login) REFERENCES USR(login),
-	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
+	PRIMARY KEY(msg_id));
 
+-- parent of the partitions moved out of MESSAGE by archive_message_partitions
+CREATE TABLE MESSAGE_ARCHIVE(
+	msg_id integer NOT NULL,
+	msg_text varchar(300) NOT NULL,
+	msg_timestamp timestamp NOT NULL,
+	sender_id integer,
+	chat_id integer);
+
+CREATE TABLE CHAT_SUMMARY(
+	chat_id integer,
+	last_msg_id integer NOT NULL,
+	last_sender_id integer,
+	preview varchar(30),
+	last_timestamp timestamp NOT NULL,
+	PRIMARY KEY(chat_id));
 
+CREATE TABLE LOAD_CHECKPOINT(
+	file_name varchar(255),
+	lines_loaded bigint NOT NULL,
+	PRIMARY KEY(file_name));
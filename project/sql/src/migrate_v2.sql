@@ -0,0 +1,116 @@
+-- Migrates a database created with schema version 1 (blank padded char
+-- columns, users referenced by login) to version 2 (create_tables.sql).
+-- Run by migrate_db.sh in a single transaction that stops at the first
+-- error; creating SCHEMA_VERSION fails on a database already migrated.
+--
+-- Every table is copied once into its new layout, so the new tables and
+-- their indexes are built compact, then the old tables are dropped and
+-- the copies take their names. Foreign keys, indexes and triggers are
+-- added again by create_constraints.sql and create_indexes.sql.
+
+CREATE TABLE SCHEMA_VERSION(
+	version integer NOT NULL);
+INSERT INTO SCHEMA_VERSION(version) VALUES (2);
+
+-- the serial sequences keep their names and values when the old tables go
+ALTER SEQUENCE user_list_list_id_seq OWNED BY NONE;
+ALTER SEQUENCE chat_chat_id_seq OWNED BY NONE;
+ALTER SEQUENCE message_msg_id_seq OWNED BY NONE;
+
+CREATE TABLE USER_LIST_V2(
+	list_id integer DEFAULT nextval('user_list_list_id_seq'),
+	list_type varchar(10) NOT NULL,
+	PRIMARY KEY(list_id));
+INSERT INTO USER_LIST_V2(list_id, list_type)
+SELECT list_id, rtrim(list_type) FROM USER_LIST;
+
+CREATE TABLE USR_V2(
+	user_id serial,
+	login varchar(50) UNIQUE NOT NULL,
+	phoneNum varchar(16) UNIQUE NOT NULL,
+	password varchar(50) NOT NULL,
+	status varchar(140),
+	block_list integer,
+	contact_list integer,
+	Primary Key(user_id));
+INSERT INTO USR_V2(login, phoneNum, password, status, block_list, contact_list)
+SELECT rtrim(login), rtrim(phoneNum), rtrim(password), rtrim(status), block_list, contact_list
+FROM USR ORDER BY login;
+
+CREATE TABLE USER_LIST_CONTAINS_V2(
+	list_id integer,
+	member_id integer,
+	PRIMARY KEY(list_id,member_id));
+INSERT INTO USER_LIST_CONTAINS_V2(list_id, member_id)
+SELECT c.list_id, u.user_id
+FROM USER_LIST_CONTAINS c JOIN USR_V2 u ON u.login = rtrim(c.list_member);
+
+CREATE TABLE CHAT_V2(
+	chat_id integer DEFAULT nextval('chat_chat_id_seq'),
+	chat_type varchar(50) NOT NULL,
+	init_sender_id integer,
+	PRIMARY KEY(chat_id));
+INSERT INTO CHAT_V2(chat_id, chat_type, init_sender_id)
+SELECT c.chat_id, rtrim(c.chat_type), u.user_id
+FROM CHAT c LEFT JOIN USR_V2 u ON u.login = rtrim(c.init_sender);
+
+CREATE TABLE CHAT_LIST_V2(
+	chat_id integer,
+	member_id integer,
+	PRIMARY KEY(chat_id,member_id));
+INSERT INTO CHAT_LIST_V2(chat_id, member_id)
+SELECT l.chat_id, u.user_id
+FROM CHAT_LIST l JOIN USR_V2 u ON u.login = rtrim(l.member);
+
+-- written in msg_page order, the order chats are read in
+CREATE TABLE MESSAGE_V2(
+	msg_id integer DEFAULT nextval('message_msg_id_seq'),
+	msg_text varchar(300) NOT NULL,
+	msg_timestamp timestamp NOT NULL,
+	sender_id integer,
+	chat_id integer,
+	PRIMARY KEY(msg_id));
+INSERT INTO MESSAGE_V2(msg_id, msg_text, msg_timestamp, sender_id, chat_id)
+SELECT m.msg_id, rtrim(m.msg_text), m.msg_timestamp, u.user_id, m.chat_id
+FROM MESSAGE m LEFT JOIN USR_V2 u ON u.login = rtrim(m.sender_login)
+ORDER BY m.chat_id, m.msg_timestamp, m.msg_id;
+
+-- filled again from MESSAGE by create_indexes.sql
+CREATE TABLE CHAT_SUMMARY_V2(
+	chat_id integer,
+	last_msg_id integer NOT NULL,
+	last_sender_id integer,
+	preview varchar(30),
+	last_timestamp timestamp NOT NULL,
+	PRIMARY KEY(chat_id));
+
+DROP TABLE IF EXISTS CHAT_SUMMARY;
+DROP TABLE MESSAGE;
+DROP TABLE CHAT_LIST;
+DROP TABLE CHAT;
+DROP TABLE USER_LIST_CONTAINS;
+DROP TABLE USR;
+DROP TABLE USER_LIST;
+
+ALTER TABLE USER_LIST_V2 RENAME TO USER_LIST;
+ALTER TABLE USR_V2 RENAME TO USR;
+ALTER TABLE USER_LIST_CONTAINS_V2 RENAME TO USER_LIST_CONTAINS;
+ALTER TABLE CHAT_V2 RENAME TO CHAT;
+ALTER TABLE CHAT_LIST_V2 RENAME TO CHAT_LIST;
+ALTER TABLE MESSAGE_V2 RENAME TO MESSAGE;
+ALTER TABLE CHAT_SUMMARY_V2 RENAME TO CHAT_SUMMARY;
+
+-- same names as in a database created with create_tables.sql
+ALTER INDEX user_list_v2_pkey RENAME TO user_list_pkey;
+ALTER INDEX usr_v2_pkey RENAME TO usr_pkey;
+ALTER INDEX usr_v2_login_key RENAME TO usr_login_key;
+ALTER INDEX usr_v2_phonenum_key RENAME TO usr_phonenum_key;
+ALTER INDEX user_list_contains_v2_pkey RENAME TO user_list_contains_pkey;
+ALTER INDEX chat_v2_pkey RENAME TO chat_pkey;
+ALTER INDEX chat_list_v2_pkey RENAME TO chat_list_pkey;
+ALTER INDEX message_v2_pkey RENAME TO message_pkey;
+ALTER INDEX chat_summary_v2_pkey RENAME TO chat_summary_pkey;
+ALTER SEQUENCE usr_v2_user_id_seq RENAME TO usr_user_id_seq;
+ALTER SEQUENCE user_list_list_id_seq OWNED BY USER_LIST.list_id;
+ALTER SEQUENCE chat_chat_id_seq OWNED BY CHAT.chat_id;
+ALTER SEQUENCE message_msg_id_seq OWNED BY MESSAGE.msg_id;
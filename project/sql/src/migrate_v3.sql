@@ -0,0 +1,52 @@
+-- Migrates a database at schema version 2 to version 3, MESSAGE
+-- partitioned by month (create_partitions.sql). Run by migrate_db.sh in a
+-- single transaction that stops at the first error, with the variable src
+-- set to this directory.
+--
+-- The old MESSAGE is renamed, an empty partitioned MESSAGE takes its name
+-- and the rows are inserted into it, which creates the partitions. The
+-- indexes and triggers are built on the partitions by create_indexes.sql.
+
+UPDATE SCHEMA_VERSION SET version = 3 WHERE version = 2;
+
+-- the serial sequence keeps its name and value when the old table goes
+ALTER SEQUENCE message_msg_id_seq OWNED BY NONE;
+
+ALTER TABLE MESSAGE RENAME TO MESSAGE_V2;
+ALTER INDEX message_pkey RENAME TO message_v2_pkey;
+-- a MESSAGE just copied by migrate_v2.sql has no triggers yet
+DROP TRIGGER IF EXISTS get_id ON MESSAGE_V2;
+DROP TRIGGER IF EXISTS chat_summary ON MESSAGE_V2;
+
+CREATE TABLE MESSAGE(
+	msg_id integer DEFAULT nextval('message_msg_id_seq'),
+	msg_text varchar(300) NOT NULL,
+	msg_timestamp timestamp NOT NULL,
+	sender_id integer,
+	chat_id integer,
+	PRIMARY KEY(msg_id));
+
+CREATE TABLE MESSAGE_ARCHIVE(
+	msg_id integer NOT NULL,
+	msg_text varchar(300) NOT NULL,
+	msg_timestamp timestamp NOT NULL,
+	sender_id integer,
+	chat_id integer);
+
+\i :src/create_partitions.sql
+
+ALTER TABLE MESSAGE ADD CONSTRAINT message_sender_id_fkey
+	FOREIGN KEY(sender_id) REFERENCES USR(user_id);
+ALTER TABLE MESSAGE ADD CONSTRAINT message_chat_id_fkey
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id);
+
+-- written in msg_page order, the order chats are read in
+INSERT INTO MESSAGE(msg_id, msg_text, msg_timestamp, sender_id, chat_id)
+SELECT msg_id, msg_text, msg_timestamp, sender_id, chat_id
+FROM MESSAGE_V2
+ORDER BY chat_id, msg_timestamp, msg_id;
+
+-- takes the indexes of version 2 along
+DROP TABLE MESSAGE_V2;
+
+ALTER SEQUENCE message_msg_id_seq OWNED BY MESSAGE.msg_id;
@@ -0,0 +1,8 @@
+-- Migrates a database at schema version 3 to version 4, chats are
+-- deleted by marking them and purging their rows in the background
+-- (PurgeWorker.java). Run by migrate_db.sh in a single transaction that
+-- stops at the first error.
+
+UPDATE SCHEMA_VERSION SET version = 4 WHERE version = 3;
+
+ALTER TABLE CHAT ADD COLUMN deleted_at timestamp;
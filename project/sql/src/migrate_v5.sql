@@ -0,0 +1,12 @@
+-- Migrates a database at schema version 4 to version 5, accounts are
+-- deleted by recording a tombstone and purging their rows in the
+-- background (PurgeWorker.java). Run by migrate_db.sh in a single
+-- transaction that stops at the first error.
+
+UPDATE SCHEMA_VERSION SET version = 5 WHERE version = 4;
+
+CREATE TABLE USR_TOMBSTONE(
+	user_id integer,
+	login varchar(50) NOT NULL,
+	requested timestamp NOT NULL,
+	PRIMARY KEY(user_id));